@@ -2,6 +2,7 @@ package com.brettnamba.capsules.activities;
 
 import android.accounts.Account;
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -19,7 +20,10 @@ import com.brettnamba.capsules.dataaccess.Capsule;
 import com.brettnamba.capsules.dataaccess.Discovery;
 import com.brettnamba.capsules.fragments.CapsuleFragment;
 import com.brettnamba.capsules.fragments.DiscoveryFragment;
+import com.brettnamba.capsules.http.RequestContract;
 import com.brettnamba.capsules.http.RequestHandler;
+import com.brettnamba.capsules.http.RequestScheduler;
+import com.brettnamba.capsules.http.SingleFlight;
 import com.brettnamba.capsules.os.AsyncTaskListeners;
 import com.brettnamba.capsules.os.GetMemoirBitmapTask;
 import com.brettnamba.capsules.os.RetainedBitmapCacheFragment;
@@ -97,6 +101,11 @@ public class CapsuleActivity extends FragmentActivity implements
      */
     private static final String TAG_DISCOVERY_FRAGMENT = "retained_discovery_fragment";
 
+    /**
+     * Collapses concurrent requests for the same Memoir image, such as after a rotation
+     */
+    private static final SingleFlight<Bitmap> sMemoirBitmapFlights = new SingleFlight<Bitmap>();
+
     /**
      * onCreate
      *
@@ -288,19 +297,42 @@ public class CapsuleActivity extends FragmentActivity implements
      * @return The Memoir's Bitmap
      */
     @Override
-    public Bitmap duringGetMemoirBitmap(long memoirId) {
+    public Bitmap duringGetMemoirBitmap(final long memoirId) {
+        // Share the image with any identical request already in progress.  The shared load must
+        // not hold on to this Activity, since a caller from a recreated Activity may share it.
+        final Context context = this.getApplicationContext();
+        final Account account = this.mAccount;
+        String key = SingleFlight.buildKey(RequestContract.Uri.MEMOIR_URI + String.valueOf(memoirId),
+                null, account);
+        Bitmap bitmap = sMemoirBitmapFlights.execute(key, new SingleFlight.Loader<Bitmap>() {
+            @Override
+            public Bitmap load() {
+                // The image is on screen, so it goes ahead of the sync and uploads
+                final RequestScheduler scheduler = RequestScheduler.getInstance();
+                scheduler.acquire(RequestScheduler.Priority.INTERACTIVE);
+                HttpUrlGetRequest request = null;
+                try {
+                    // Open a connection to the Memoir image
+                    request = RequestHandler.requestMemoirImage(context, account, memoirId);
+                    // Convert the image to a Bitmap
+                    return BitmapFactory.decodeStream(request.getResponseStream());
+                } catch (Exception e) {
+                    return null;
+                } finally {
+                    // Close the connection, even if the image could not be decoded
+                    if (request != null) {
+                        request.close();
+                    }
+                    scheduler.release(RequestScheduler.Priority.INTERACTIVE);
+                }
+            }
+        });
+        if (bitmap == null) {
+            return null;
+        }
         try {
-            // Open a connection to the Memoir image
-            HttpUrlGetRequest request = RequestHandler
-                    .requestMemoirImage(this.getApplicationContext(), this.mAccount, memoirId);
-            // Convert the image to a Bitmap
-            Bitmap bitmap = BitmapFactory.decodeStream(request.getResponseStream());
-            // Scale the Bitmap
-            bitmap = Images.scaleBitmap(this, bitmap, /* widthScaleFactor */ 1);
-            // Close the connection
-            request.close();
-
-            return bitmap;
+            // Scale the Bitmap for this Activity's screen
+            return Images.scaleBitmap(this, bitmap, /* widthScaleFactor */ 1);
         } catch (Exception e) {
             return null;
         }
@@ -17,11 +17,12 @@ import com.brettnamba.capsules.dataaccess.Capsule;
 import com.brettnamba.capsules.fragments.NavigationDrawerFragment;
 import com.brettnamba.capsules.fragments.SortDialogFragment;
 import com.brettnamba.capsules.http.CapsuleRequestParameters;
+import com.brettnamba.capsules.http.HttpCache;
 import com.brettnamba.capsules.http.RequestHandler;
-import com.brettnamba.capsules.http.response.JsonResponse;
 import com.brettnamba.capsules.os.AsyncTaskListeners;
 import com.brettnamba.capsules.os.GetCapsulesTask;
 import com.brettnamba.capsules.os.RetainedTaskFragment;
+import com.brettnamba.capsules.util.JSONStreamParser;
 import com.brettnamba.capsules.util.Widgets;
 import com.brettnamba.capsules.widget.CapsuleArrayAdapter;
 import com.brettnamba.capsules.widget.NavigationDrawerItem;
@@ -161,6 +162,16 @@ public abstract class CapsuleListActivity extends FragmentActivity implements
         outState.putParcelableArrayList(TAG_CAPSULES, this.mCapsules);
     }
 
+    /**
+     * onStop
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Write the cached responses to disk
+        HttpCache.flush();
+    }
+
     /**
      * onActivityResult
      *
@@ -421,9 +432,16 @@ public abstract class CapsuleListActivity extends FragmentActivity implements
          */
         @Override
         public List<Capsule> duringGetCapsules(CapsuleRequestParameters params) {
-            JsonResponse response = RequestHandler.requestCapsules(this.getApplicationContext(),
-                    this.mAccount, params);
-            return response.getCapsules();
+            // Collect the Capsules as they are parsed from the response stream
+            final List<Capsule> capsules = new ArrayList<Capsule>();
+            RequestHandler.requestCapsules(this.getApplicationContext(), this.mAccount, params,
+                    new JSONStreamParser.CapsuleConsumer<Capsule>() {
+                        @Override
+                        public void onCapsule(Capsule capsule) {
+                            capsules.add(capsule);
+                        }
+                    });
+            return capsules;
         }
 
         /**
@@ -488,9 +506,16 @@ public abstract class CapsuleListActivity extends FragmentActivity implements
          */
         @Override
         public List<Capsule> duringGetCapsules(CapsuleRequestParameters params) {
-            JsonResponse response = RequestHandler.requestDiscoveries(this.getApplicationContext(),
-                    this.mAccount, params);
-            return response.getCapsules();
+            // Collect the Capsules as they are parsed from the response stream
+            final List<Capsule> capsules = new ArrayList<Capsule>();
+            RequestHandler.requestDiscoveries(this.getApplicationContext(), this.mAccount, params,
+                    new JSONStreamParser.CapsuleConsumer<Capsule>() {
+                        @Override
+                        public void onCapsule(Capsule capsule) {
+                            capsules.add(capsule);
+                        }
+                    });
+            return capsules;
         }
 
         /**
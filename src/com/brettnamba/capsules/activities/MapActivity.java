@@ -24,7 +24,12 @@ import com.brettnamba.capsules.fragments.NavigationDrawerFragment;
 import com.brettnamba.capsules.fragments.RetainedMapFragment;
 import com.brettnamba.capsules.http.RequestHandler;
 import com.brettnamba.capsules.http.response.JsonResponse;
+import com.brettnamba.capsules.maps.CapsuleClusterLayer;
+import com.brettnamba.capsules.maps.CapsuleRegistry;
+import com.brettnamba.capsules.location.DiscoveryTrigger;
 import com.brettnamba.capsules.os.AsyncTaskListeners;
+import com.brettnamba.capsules.provider.TileCache;
+import com.brettnamba.capsules.services.SaveCapsuleService;
 import com.brettnamba.capsules.util.Accounts;
 import com.brettnamba.capsules.util.Widgets;
 import com.brettnamba.capsules.widget.NavigationDrawerItem;
@@ -40,7 +45,6 @@ import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.Circle;
 import com.google.android.gms.maps.model.CircleOptions;
 import com.google.android.gms.maps.model.LatLng;
-import com.google.android.gms.maps.model.MarkerOptions;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -71,15 +75,20 @@ public class MapActivity extends FragmentActivity implements
      */
     private GoogleMap mMap;
 
+    /**
+     * Clusters the Capsule markers on the GoogleMap
+     */
+    private CapsuleClusterLayer mClusterLayer;
+
     /**
      * Reference to the Circle that surrounds the user's location, designating their "discovery" radius.
      */
     private Circle mUserCircle;
 
     /**
-     * Collection of Discovery Capsules
+     * Discovery Capsules keyed by sync ID
      */
-    private ArrayList<Capsule> mDiscoveryCapsules;
+    private CapsuleRegistry mCapsuleRegistry;
 
     /**
      * Reference to the GoogleApiClient.
@@ -157,6 +166,9 @@ public class MapActivity extends FragmentActivity implements
 
         // Get the Fragment that retains the background thread tasks
         this.mRetainedFragment = RetainedMapFragment.findOrCreate(fragmentManager);
+        if (this.mRetainedFragment.getDiscoveryTrigger() == null) {
+            this.mRetainedFragment.setDiscoveryTrigger(new DiscoveryTrigger(DISCOVERY_RADIUS));
+        }
 
         // Set up the GoogleMap
         SupportMapFragment mapFragment =
@@ -172,14 +184,21 @@ public class MapActivity extends FragmentActivity implements
         // AccountManager
         this.mAccountManager = AccountManager.get(this);
 
+        // Resume any Capsule saves left in the outbox by a previous process
+        if (savedInstanceState == null) {
+            this.startService(SaveCapsuleService.buildDrainIntent(this));
+        }
+
+        // Instantiate the Discovery Capsules collection
+        this.mCapsuleRegistry = new CapsuleRegistry();
         // Check if there was any state data
         if (savedInstanceState != null) {
             // Recover the state data
-            this.mDiscoveryCapsules =
+            ArrayList<Capsule> capsules =
                     savedInstanceState.getParcelableArrayList("discovery_capsules");
-        } else {
-            // Instantiate the Discovery Capsules collection
-            this.mDiscoveryCapsules = new ArrayList<Capsule>();
+            if (capsules != null) {
+                this.mCapsuleRegistry.addAll(capsules);
+            }
         }
 
         // Navigation Drawer
@@ -254,7 +273,7 @@ public class MapActivity extends FragmentActivity implements
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         // Save the Capsule collection
-        outState.putParcelableArrayList("discovery_capsules", this.mDiscoveryCapsules);
+        outState.putParcelableArrayList("discovery_capsules", this.mCapsuleRegistry.getCapsules());
     }
 
     /**
@@ -297,9 +316,11 @@ public class MapActivity extends FragmentActivity implements
                         .strokeWidth(0)
                         .fillColor(USER_CIRCLE_COLOR)
         );
+        // Cluster the Capsule markers
+        this.mClusterLayer = new CapsuleClusterLayer(this, this.mMap);
         // Add any stored Capsules
-        if (this.mDiscoveryCapsules != null && this.mDiscoveryCapsules.size() > 0) {
-            this.addCapsulesAsMarkers(this.mDiscoveryCapsules);
+        if (this.mCapsuleRegistry.size() > 0) {
+            this.addCapsulesAsMarkers(this.mCapsuleRegistry.getCapsules());
         }
     }
 
@@ -361,7 +382,7 @@ public class MapActivity extends FragmentActivity implements
         if (this.mUserCircle != null && this.isUserCirclePositionDifferent(location)) {
             this.mUserCircle.setCenter(new LatLng(location.getLatitude(), location.getLongitude()));
         }
-        // Discover any nearby Capsules
+        // Discover any nearby Capsules if the user has moved far enough since the last request
         if (this.mRetainedFragment != null) {
             this.mRetainedFragment.startDiscoverCapsules(this, this.mAccount, location);
         }
@@ -438,9 +459,19 @@ public class MapActivity extends FragmentActivity implements
         Double lat = params[0];
         Double lng = params[1];
         if (!lat.isNaN() && !lng.isNaN()) {
-            JsonResponse response = RequestHandler
-                    .requestDiscoverCapsules(this.getApplicationContext(), this.mAccount, lat, lng);
-            return response.getCapsules();
+            TileCache cache = new TileCache(this.getContentResolver());
+            long now = System.currentTimeMillis();
+            // Only ask the server if part of the discovery radius has not been fetched recently
+            if (!cache.isFresh(this.mAccount, lat, lng, DISCOVERY_RADIUS, now)) {
+                JsonResponse response = RequestHandler
+                        .requestDiscoverCapsules(this.getApplicationContext(), this.mAccount, lat, lng);
+                if (response.isSuccess() && !cache.put(this.mAccount, lat, lng, DISCOVERY_RADIUS,
+                        response.getCapsules(), now)) {
+                    return response.getCapsules();
+                }
+            }
+            // Answer from the cache, which still has the last known Capsules if the request failed
+            return cache.getCapsules(this.mAccount, lat, lng, DISCOVERY_RADIUS);
         }
         return null;
     }
@@ -463,11 +494,16 @@ public class MapActivity extends FragmentActivity implements
     @Override
     public void onPostDiscoverCapsules(List<Capsule> capsules) {
         Log.i(TAG, "onPostDiscoverCapsules()");
-        if (capsules != null && capsules.size() > 0) {
-            // Add the Capsules to the collection
-            this.mDiscoveryCapsules.addAll(capsules);
-            // Add them as Markers
-            this.addCapsulesAsMarkers(capsules);
+        Location location = this.mRetainedFragment != null
+                ? this.mRetainedFragment.getDiscoveryLocation() : null;
+        if (capsules != null && location != null) {
+            // Compare the result to the Capsules already shown and evict the far away ones
+            CapsuleRegistry.Diff diff = this.mCapsuleRegistry.apply(capsules,
+                    location.getLatitude(), location.getLongitude(), DISCOVERY_RADIUS);
+            // Only update the Markers that changed
+            if (this.mClusterLayer != null && !diff.isEmpty()) {
+                this.mClusterLayer.apply(diff);
+            }
         }
         // Set the LocationRequest fastest interval back to a quicker value now that the request is done
         this.setLocationRequestFastestInterval(LOCATION_REQUEST_INTERVAL_FAST);
@@ -479,6 +515,10 @@ public class MapActivity extends FragmentActivity implements
     @Override
     public void onDiscoverCapsulesCancelled() {
         Log.i(TAG, "onDiscoverCapsulesCancelled()");
+        // The discovery did not finish, so let the next location fix retry it
+        if (this.mRetainedFragment != null && this.mRetainedFragment.getDiscoveryTrigger() != null) {
+            this.mRetainedFragment.getDiscoveryTrigger().reset();
+        }
         // Set the LocationRequest fastest interval back to a faster value
         this.setLocationRequestFastestInterval(LOCATION_REQUEST_INTERVAL_FAST);
     }
@@ -592,19 +632,17 @@ public class MapActivity extends FragmentActivity implements
     }
 
     /**
-     * Adds the specified Capsules as Markers to the GoogleMap
+     * Adds the specified Capsules as Markers to the GoogleMap, clustered with the Capsules around
+     * them
      *
      * @param capsules The collection of Capsules
      */
     private void addCapsulesAsMarkers(List<Capsule> capsules) {
-        if (this.mMap == null || capsules == null || capsules.size() < 1) {
+        if (this.mClusterLayer == null || capsules == null || capsules.size() < 1) {
             return;
         }
 
-        for (Capsule capsule : capsules) {
-            this.mMap.addMarker(new MarkerOptions()
-                    .position(new LatLng(capsule.getLatitude(), capsule.getLongitude())));
-        }
+        this.mClusterLayer.addCapsules(capsules);
     }
 
     /**
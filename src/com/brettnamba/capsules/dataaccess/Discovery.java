@@ -40,6 +40,12 @@ public class Discovery implements Parcelable {
      */
     private int mRating;
 
+    /**
+     * Constructor
+     */
+    public Discovery() {
+    }
+
     /**
      * Constructor that clones the specified Discovery
      *
@@ -6,17 +6,20 @@ import android.app.ProgressDialog;
 import android.location.Location;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.util.Log;
 
 import com.brettnamba.capsules.R;
 import com.brettnamba.capsules.dataaccess.Capsule;
+import com.brettnamba.capsules.location.DiscoveryTrigger;
 import com.brettnamba.capsules.os.AsyncTaskListeners;
 import com.brettnamba.capsules.os.AuthTokenRetrievalTask;
 import com.brettnamba.capsules.os.CapsuleOpenTask;
 import com.brettnamba.capsules.os.CapsulePingTask;
 import com.brettnamba.capsules.os.DiscoverCapsulesTask;
+import com.brettnamba.capsules.provider.TileCache;
 import com.brettnamba.tomoeame.os.AsyncListenerTask;
 
 /**
@@ -49,6 +52,16 @@ public class RetainedMapFragment extends Fragment {
      */
     private DiscoverCapsulesTask mDiscoverCapsulesTask;
 
+    /**
+     * Decides which location fixes are worth a discovery request
+     */
+    private DiscoveryTrigger mDiscoveryTrigger;
+
+    /**
+     * The location of the last discovery request
+     */
+    private Location mDiscoveryLocation;
+
     /**
      * Progress indicator to show when a background task is running
      */
@@ -156,6 +169,33 @@ public class RetainedMapFragment extends Fragment {
         this.mAccount = account;
     }
 
+    /**
+     * Gets the retained DiscoveryTrigger
+     *
+     * @return The DiscoveryTrigger or null if none has been set
+     */
+    public DiscoveryTrigger getDiscoveryTrigger() {
+        return this.mDiscoveryTrigger;
+    }
+
+    /**
+     * Sets the DiscoveryTrigger that decides which location fixes are worth a discovery request
+     *
+     * @param discoveryTrigger The DiscoveryTrigger to retain
+     */
+    public void setDiscoveryTrigger(DiscoveryTrigger discoveryTrigger) {
+        this.mDiscoveryTrigger = discoveryTrigger;
+    }
+
+    /**
+     * Gets the location of the last discovery request
+     *
+     * @return The location or null if no discovery has been started
+     */
+    public Location getDiscoveryLocation() {
+        return this.mDiscoveryLocation;
+    }
+
     /**
      * Cancels any running AsyncTasks
      */
@@ -284,8 +324,8 @@ public class RetainedMapFragment extends Fragment {
             // Send a request on the background thread to open the Capsule
             if (!this.isOpeningCapsule()) {
                 Log.i(TAG, "Opening capsule...");
-                this.mCapsuleOpenTask =
-                        new CapsuleOpenTask((AsyncListenerTask.TaskListener) activity);
+                this.mCapsuleOpenTask = new CapsuleOpenTask((AsyncListenerTask.TaskListener) activity,
+                        new TileCache(activity.getContentResolver()), account);
                 String lat = Double.toString(location.getLatitude());
                 String lng = Double.toString(location.getLongitude());
                 String syncId = Long.toString(capsule.getSyncId());
@@ -316,7 +356,8 @@ public class RetainedMapFragment extends Fragment {
     }
 
     /**
-     * Starts the background thread task to discover Capsules
+     * Starts the background thread task to discover Capsules if the DiscoveryTrigger decides the
+     * location is worth a request
      *
      * @param activity The current Activity
      * @param account  The current Account
@@ -328,11 +369,30 @@ public class RetainedMapFragment extends Fragment {
             this.cancelTasks();
             // Retain the new Account
             this.setAccount(account);
+            // The new Account has not discovered anything yet
+            if (this.mDiscoveryTrigger != null) {
+                this.mDiscoveryTrigger.reset();
+            }
         } else {
             if (!this.isDiscoveringCapsules()) {
+                // Skip the request if the user has not moved far enough since the last one
+                long now = SystemClock.elapsedRealtime();
+                if (this.mDiscoveryTrigger != null && !this.mDiscoveryTrigger.shouldDiscover(
+                        location.getLatitude(), location.getLongitude(),
+                        location.hasAccuracy() ? location.getAccuracy() : 0, now)) {
+                    return;
+                }
+                this.mDiscoveryLocation = location;
                 this.mDiscoverCapsulesTask = new DiscoverCapsulesTask(
                         (AsyncTaskListeners.DiscoverCapsulesTaskListener) activity);
                 this.mDiscoverCapsulesTask.execute(location.getLatitude(), location.getLongitude());
+                if (this.mDiscoveryTrigger != null) {
+                    this.mDiscoveryTrigger.onDiscoveryIssued(location.getLatitude(),
+                            location.getLongitude(), now);
+                    Log.i(TAG, "startDiscoverCapsules(): "
+                            + this.mDiscoveryTrigger.getIssuedCount() + " issued, "
+                            + this.mDiscoveryTrigger.getSuppressedCount() + " suppressed");
+                }
             }
         }
     }
@@ -344,6 +404,10 @@ public class RetainedMapFragment extends Fragment {
         if (this.isDiscoveringCapsules()) {
             this.mDiscoverCapsulesTask.cancel(true);
             this.mDiscoverCapsulesTask = null;
+            // The request did not finish, so the next location fix should send it again
+            if (this.mDiscoveryTrigger != null) {
+                this.mDiscoveryTrigger.reset();
+            }
         }
     }
 
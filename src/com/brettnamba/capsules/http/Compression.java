@@ -0,0 +1,261 @@
+package com.brettnamba.capsules.http;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Handles gzip compression of HTTP bodies and keeps count of the bytes sent and received, both
+ * on the wire and after decoding, so the data saved by compression can be measured.
+ *
+ * @author Brett Namba
+ */
+public final class Compression {
+
+    /**
+     * HTTP header advertising the encodings the client accepts
+     */
+    public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+
+    /**
+     * HTTP header naming the encoding of a body
+     */
+    public static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+
+    /**
+     * The gzip encoding
+     */
+    public static final String GZIP = "gzip";
+
+    /**
+     * Request bodies smaller than this are not worth compressing
+     */
+    public static final int MIN_COMPRESSED_REQUEST_SIZE = 1024;
+
+    /**
+     * Whether or not large request bodies should be compressed.  Off by default since the server
+     * has to be able to decode them.
+     */
+    private static volatile boolean sCompressRequests = false;
+
+    /**
+     * Response bytes as they were received on the wire
+     */
+    private static final AtomicLong sBytesReceived = new AtomicLong();
+
+    /**
+     * Response bytes after they were decoded
+     */
+    private static final AtomicLong sBytesDecoded = new AtomicLong();
+
+    /**
+     * Request bytes as they were sent on the wire
+     */
+    private static final AtomicLong sBytesSent = new AtomicLong();
+
+    /**
+     * Request bytes before they were encoded
+     */
+    private static final AtomicLong sBytesUnencoded = new AtomicLong();
+
+    /**
+     * Constructor
+     */
+    private Compression() {
+    }
+
+    /**
+     * Sets whether or not large request bodies should be compressed
+     *
+     * @param compressRequests True to compress large request bodies
+     */
+    public static void setCompressRequests(boolean compressRequests) {
+        sCompressRequests = compressRequests;
+    }
+
+    /**
+     * Wraps a response stream so that it is decoded if it is gzip compressed.  The body is
+     * checked for the gzip magic number instead of relying on headers, so a body that was not
+     * compressed is passed through untouched.
+     *
+     * @param in The response stream as it was received
+     * @return The decoded response stream
+     * @throws IOException
+     */
+    public static InputStream decode(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(
+                new CountingInputStream(in, sBytesReceived), 2);
+        // Peek at the first two bytes
+        byte[] magic = new byte[2];
+        int read = 0;
+        while (read < magic.length) {
+            int count = pushback.read(magic, read, magic.length - read);
+            if (count == -1) {
+                break;
+            }
+            read += count;
+        }
+        if (read > 0) {
+            pushback.unread(magic, 0, read);
+        }
+        boolean gzipped = read == 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b;
+        InputStream decoded = gzipped ? new GZIPInputStream(pushback) : pushback;
+        return new CountingInputStream(decoded, sBytesDecoded);
+    }
+
+    /**
+     * Wraps a response entity so its content is decoded as it is read
+     *
+     * @param entity The response entity
+     * @return The decoding entity
+     */
+    public static HttpEntity decode(HttpEntity entity) {
+        return new HttpEntityWrapper(entity) {
+            @Override
+            public InputStream getContent() throws IOException {
+                return Compression.decode(this.wrappedEntity.getContent());
+            }
+
+            @Override
+            public long getContentLength() {
+                // The decoded length is not known ahead of time
+                return -1;
+            }
+
+            @Override
+            public Header getContentEncoding() {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Compresses a request entity if compression is enabled and the body is large enough to
+     * benefit.  Either way the bytes are counted.
+     *
+     * @param entity The request entity
+     * @return The compressed entity, or the original entity if it was not compressed
+     * @throws IOException
+     */
+    public static HttpEntity encode(HttpEntity entity) throws IOException {
+        long length = entity.getContentLength();
+        if (!sCompressRequests || length < MIN_COMPRESSED_REQUEST_SIZE) {
+            if (length > 0) {
+                sBytesUnencoded.addAndGet(length);
+                sBytesSent.addAndGet(length);
+            }
+            return entity;
+        }
+
+        // Compress the body
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) length / 4);
+        GZIPOutputStream out = new GZIPOutputStream(buffer);
+        try {
+            entity.writeTo(out);
+        } finally {
+            out.close();
+        }
+        ByteArrayEntity compressed = new ByteArrayEntity(buffer.toByteArray());
+        compressed.setContentType(entity.getContentType());
+        compressed.setContentEncoding(GZIP);
+
+        sBytesUnencoded.addAndGet(length);
+        sBytesSent.addAndGet(compressed.getContentLength());
+        return compressed;
+    }
+
+    /**
+     * Gets the number of response bytes received on the wire
+     *
+     * @return The number of bytes received
+     */
+    public static long getBytesReceived() {
+        return sBytesReceived.get();
+    }
+
+    /**
+     * Gets the number of response bytes after decoding
+     *
+     * @return The number of decoded bytes
+     */
+    public static long getBytesDecoded() {
+        return sBytesDecoded.get();
+    }
+
+    /**
+     * Gets the number of request bytes sent on the wire
+     *
+     * @return The number of bytes sent
+     */
+    public static long getBytesSent() {
+        return sBytesSent.get();
+    }
+
+    /**
+     * Gets the number of bytes that compression kept off the wire in both directions
+     *
+     * @return The number of bytes saved
+     */
+    public static long getBytesSaved() {
+        return (sBytesDecoded.get() - sBytesReceived.get()) + (sBytesUnencoded.get() - sBytesSent.get());
+    }
+
+    /**
+     * Counts the bytes read through a stream
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        /**
+         * Receives the count
+         */
+        private final AtomicLong mCounter;
+
+        /**
+         * Constructor
+         *
+         * @param in      The stream to count
+         * @param counter Receives the count
+         */
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                this.mCounter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                this.mCounter.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            this.mCounter.addAndGet(skipped);
+            return skipped;
+        }
+
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.brettnamba.capsules.http;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.http.HttpResponseCache;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * On-disk cache for the HttpURLConnection responses.
+ *
+ * The cache is keyed by the full request URL, which includes the query parameters, so each page,
+ * sort and filter of a Capsule collection is cached separately.  Cached responses are revalidated
+ * with If-None-Match and If-Modified-Since, and a 304 is served from disk.  The least recently
+ * used responses are evicted once the cache reaches its maximum size.
+ *
+ * The platform cache requires Android 3.2.  On older versions nothing is cached.
+ *
+ * @author Brett Namba
+ */
+public final class HttpCache {
+
+    /**
+     * The maximum size of the cache in bytes
+     */
+    public static final long MAX_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The name of the cache directory
+     */
+    private static final String DIRECTORY = "http";
+
+    /**
+     * The tag used for logging
+     */
+    private static final String TAG = "HttpCache";
+
+    /**
+     * Constructor
+     */
+    private HttpCache() {
+    }
+
+    /**
+     * Installs the cache if it is supported and is not already installed
+     *
+     * @param context The current Context
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
+    public static synchronized void install(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR2
+                || HttpResponseCache.getInstalled() != null) {
+            return;
+        }
+        try {
+            HttpResponseCache.install(new File(context.getApplicationContext().getCacheDir(), DIRECTORY),
+                    MAX_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "install(): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes any buffered cache operations to disk
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
+    public static void flush() {
+        HttpResponseCache cache = HttpCache.getInstalled();
+        if (cache != null) {
+            cache.flush();
+        }
+    }
+
+    /**
+     * Gets the number of responses that were served from the cache, including those that were
+     * revalidated with a 304
+     *
+     * @return The number of cache hits
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
+    public static int getHitCount() {
+        HttpResponseCache cache = HttpCache.getInstalled();
+        return cache != null ? cache.getHitCount() : 0;
+    }
+
+    /**
+     * Gets the number of responses that had to be downloaded from the network
+     *
+     * @return The number of cache misses
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
+    public static int getMissCount() {
+        HttpResponseCache cache = HttpCache.getInstalled();
+        return cache != null ? cache.getRequestCount() - cache.getHitCount() : 0;
+    }
+
+    /**
+     * Gets the installed cache
+     *
+     * @return The cache or null if none is installed
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
+    private static HttpResponseCache getInstalled() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR2) {
+            return null;
+        }
+        return HttpResponseCache.getInstalled();
+    }
+
+}
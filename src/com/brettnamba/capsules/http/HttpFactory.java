@@ -1,20 +1,48 @@
 package com.brettnamba.capsules.http;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.client.HttpClient;
-import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
 import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Factory class for creating an instance of an HTTP client.
- * 
+ * Factory class for the process-wide HTTP client.
+ *
+ * A single HttpClient and connection pool is shared by every caller so that keep-alive
+ * connections opened by one part of the app (such as the sync) are reused by the others.  Idle
+ * connections are closed in the background.  Responses are requested with gzip and decoded
+ * before they reach the ApiResponse parsers.  The HttpURLConnection requests made through
+ * tomoeame use the platform's own keep-alive pool, which is configured with the same limits.
+ *
  * @author Brett Namba
  *
  */
@@ -26,26 +54,200 @@ public class HttpFactory {
     public static final int TIMEOUT = 30 * 1000;
 
     /**
-     * Factory method for an instance of HttpClient.
-     * 
+     * The default maximum number of pooled connections to a single host.  Sized so the sync's
+     * concurrent requests are not queued behind the connection manager's default of two.
+     */
+    public static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+    /**
+     * The maximum number of pooled connections across all hosts.
+     */
+    public static final int MAX_TOTAL_CONNECTIONS = 8;
+
+    /**
+     * How long a connection can sit unused in the pool before it is closed.
+     */
+    public static final long IDLE_TIMEOUT = 60 * 1000;
+
+    /**
+     * The shared client.
+     */
+    private static HttpClient sClient;
+
+    /**
+     * Per-host limits for the shared connection pool.
+     */
+    private static final ConnPerRouteBean sConnPerRoute = new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE);
+
+    /**
+     * The number of connections that were opened with a new handshake.
+     */
+    private static final AtomicLong sConnectionsOpened = new AtomicLong();
+
+    /**
+     * The number of connections that were leased from the pool, whether new or reused.
+     */
+    private static final AtomicLong sConnectionsLeased = new AtomicLong();
+
+    /**
+     * Factory method for the shared instance of HttpClient.
+     *
      * @return HttpClient
      */
-    public static HttpClient getInstance() {
+    public static synchronized HttpClient getInstance() {
+        if (sClient != null) {
+            return sClient;
+        }
+
         // HTTP parameters
         final HttpParams params = new BasicHttpParams();
         HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
         HttpConnectionParams.setSoTimeout(params, TIMEOUT);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
         ConnManagerParams.setTimeout(params, TIMEOUT);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, sConnPerRoute);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
 
         // Scheme registry
         SchemeRegistry registry = new SchemeRegistry();
         registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
 
         // HTTP client
-        ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
-        HttpClient client = new DefaultHttpClient(manager, params);
+        final ThreadSafeClientConnManager manager = new CountingClientConnManager(params, registry);
+        DefaultHttpClient client = new DefaultHttpClient(manager, params);
+
+        // Ask for compressed responses
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+                if (!request.containsHeader(Compression.ACCEPT_ENCODING_HEADER)) {
+                    request.addHeader(Compression.ACCEPT_ENCODING_HEADER, Compression.GZIP);
+                }
+            }
+        });
+        // Decode the responses before they are parsed
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    response.setEntity(Compression.decode(entity));
+                }
+            }
+        });
+        sClient = client;
+
+        // Close idle connections in the background
+        new Timer("HttpFactory", /* isDaemon */ true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                manager.closeExpiredConnections();
+                manager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }, IDLE_TIMEOUT, IDLE_TIMEOUT / 2);
+
+        return sClient;
+    }
+
+    /**
+     * Configures the platform's HttpURLConnection keep-alive pool with the same limits as the
+     * shared HttpClient.  Must be called before the first HttpURLConnection is opened.
+     */
+    public static void configureUrlConnections() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS_PER_ROUTE));
+        System.setProperty("http.keepAliveDuration", String.valueOf(IDLE_TIMEOUT));
+    }
+
+    /**
+     * Overrides the maximum number of pooled connections for a single host.
+     *
+     * @param host The host
+     * @param max  The maximum number of connections
+     */
+    public static void setMaxConnectionsPerHost(HttpHost host, int max) {
+        sConnPerRoute.setMaxForRoute(new HttpRoute(host), max);
+    }
+
+    /**
+     * Gets the number of connections that were opened with a new handshake.
+     *
+     * @return The number of new connections
+     */
+    public static long getConnectionsOpened() {
+        return sConnectionsOpened.get();
+    }
+
+    /**
+     * Gets the number of times a pooled keep-alive connection was reused instead of opening a
+     * new one.
+     *
+     * @return The number of reused connections
+     */
+    public static long getConnectionsReused() {
+        return Math.max(0, sConnectionsLeased.get() - sConnectionsOpened.get());
+    }
+
+    /**
+     * Connection manager that counts leased and newly opened connections.
+     */
+    private static class CountingClientConnManager extends ThreadSafeClientConnManager {
+
+        /**
+         * Constructor
+         *
+         * @param params   The HTTP parameters
+         * @param registry The scheme registry
+         */
+        public CountingClientConnManager(HttpParams params, SchemeRegistry registry) {
+            super(params, registry);
+        }
+
+        /**
+         * Counts each connection that is opened
+         *
+         * @param registry The scheme registry
+         * @return The connection operator
+         */
+        @Override
+        protected ClientConnectionOperator createConnectionOperator(SchemeRegistry registry) {
+            return new DefaultClientConnectionOperator(registry) {
+                @Override
+                public void openConnection(OperatedClientConnection conn, HttpHost target,
+                                           InetAddress local, HttpContext context,
+                                           HttpParams params) throws IOException {
+                    super.openConnection(conn, target, local, context, params);
+                    sConnectionsOpened.incrementAndGet();
+                }
+            };
+        }
+
+        /**
+         * Counts each connection that is leased from the pool
+         *
+         * @param route The route
+         * @param state The connection state
+         * @return The connection request
+         */
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    ManagedClientConnection connection = request.getConnection(timeout, unit);
+                    sConnectionsLeased.incrementAndGet();
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
 
-        return client;
     }
 
 }
@@ -22,6 +22,16 @@ public final class RequestContract {
      */
     public static final String AUTH_HEADER = "Authorization";
 
+    /**
+     * HTTP Content-Range header, used for the position of a chunk in a resumable upload.
+     */
+    public static final String CONTENT_RANGE_HEADER = "Content-Range";
+
+    /**
+     * HTTP Idempotency-Key header, which lets the server recognize a save it has already stored.
+     */
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
     /**
      * Request URIs
      */
@@ -67,6 +77,16 @@ public final class RequestContract {
          */
         public static final String OWNERSHIP_REPORT_URI = "/api/report/capsules";
 
+        /**
+         * URI for saving and deleting multiple Ownership Capsules in a single request
+         */
+        public static final String OWNERSHIP_BATCH_URI = "/api/batch/capsules";
+
+        /**
+         * URI for the Ownership Capsules that changed since a sync token
+         */
+        public static final String OWNERSHIP_CHANGES_URI = "/api/changes/capsules";
+
         /**
          * URI for a collection of Capsules
          */
@@ -87,6 +107,11 @@ public final class RequestContract {
          */
         public static final String SAVE_CAPSULE_URI = "/api/capsule/?validate=false";
 
+        /**
+         * URI for resumable file uploads
+         */
+        public static final String UPLOAD_URI = "/api/upload/";
+
         /**
          * URI for a Memoir entity
          */
@@ -114,6 +139,21 @@ public final class RequestContract {
          */
         public static final String MESSAGES = "messages";
 
+        /**
+         * The key for a collection of per-item results in a batch response
+         */
+        public static final String RESULTS = "results";
+
+        /**
+         * The field storing the HTTP status of a single item in a batch response
+         */
+        public static final String STATUS = "status";
+
+        /**
+         * The field storing what should be done with a single item in a batch request
+         */
+        public static final String BATCH_ACTION = "action";
+
         /**
          * The field name for sorting
          */
@@ -144,6 +184,16 @@ public final class RequestContract {
          */
         public static final String CTAG = "ctag";
 
+        /**
+         * The name of the field storing the sync token for requesting changes
+         */
+        public static final String SYNC_TOKEN = "sync_token";
+
+        /**
+         * The key for the collection of sync IDs that were deleted since a sync token
+         */
+        public static final String DELETED_COLLECTION = "deleted";
+
         /**
          * The name of the field storing a username in a JSON response body.
          */
@@ -289,6 +339,36 @@ public final class RequestContract {
          */
         public static final String MEMOIR_FILE = "file";
 
+        /**
+         * The field for the ID of a completed resumable upload that holds the Memoir file
+         */
+        public static final String MEMOIR_UPLOAD_ID = "upload_id";
+
+        /**
+         * The field for a resumable upload session
+         */
+        public static final String UPLOAD = "upload";
+
+        /**
+         * The field for a resumable upload session's unique identifier
+         */
+        public static final String UPLOAD_ID = "id";
+
+        /**
+         * The field for the number of bytes the server has received for a resumable upload
+         */
+        public static final String UPLOAD_OFFSET = "offset";
+
+        /**
+         * The field for the total size of a resumable upload in bytes
+         */
+        public static final String UPLOAD_SIZE = "size";
+
+        /**
+         * The field for the content type of a resumable upload
+         */
+        public static final String UPLOAD_TYPE = "type";
+
         /**
          * The field name for a User entity
          */
@@ -351,6 +431,16 @@ public final class RequestContract {
          */
         public static final int CAPSULE_FILTER_UNOPENED = 5;
 
+        /**
+         * Batch action for creating or updating an item
+         */
+        public static final String BATCH_ACTION_SAVE = "save";
+
+        /**
+         * Batch action for deleting an item
+         */
+        public static final String BATCH_ACTION_DELETE = "delete";
+
     }
 
     /**
@@ -10,11 +10,13 @@ import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
 import com.brettnamba.capsules.dataaccess.Discovery;
 import com.brettnamba.capsules.dataaccess.Memoir;
 import com.brettnamba.capsules.http.response.JsonResponse;
+import com.brettnamba.capsules.util.JSONStreamParser;
 import com.brettnamba.tomoeame.http.HttpUrlConnectionRequest;
 import com.brettnamba.tomoeame.http.HttpUrlGetRequest;
 import com.brettnamba.tomoeame.http.HttpUrlMultiPartRequest;
 import com.brettnamba.tomoeame.http.HttpUrlWwwFormRequest;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.ParseException;
@@ -23,13 +25,22 @@ import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.HTTP;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles general HTTP requests and responses.
@@ -48,6 +59,44 @@ public class RequestHandler {
      */
     private static final String TAG = "RequestHandler";
 
+    static {
+        // Share keep-alive connections between the HttpURLConnection requests
+        HttpFactory.configureUrlConnections();
+    }
+
+    /**
+     * Collapses concurrent identical Capsule collection requests
+     */
+    private static final SingleFlight<SharedCapsules> sCapsuleFlights = new SingleFlight<SharedCapsules>();
+
+    /**
+     * A Capsule collection response that is shared between identical requests
+     */
+    private static class SharedCapsules {
+
+        /**
+         * The response
+         */
+        private final JsonResponse mResponse;
+
+        /**
+         * The Capsules parsed from the response
+         */
+        private final List<Capsule> mCapsules;
+
+        /**
+         * Constructor
+         *
+         * @param response The response
+         * @param capsules The Capsules parsed from the response
+         */
+        private SharedCapsules(JsonResponse response, List<Capsule> capsules) {
+            this.mResponse = response;
+            this.mCapsules = capsules;
+        }
+
+    }
+
     /**
      * Constructor
      *
@@ -57,6 +106,119 @@ public class RequestHandler {
         this.mClient = client;
     }
 
+    /**
+     * Executes a sync request once the RequestScheduler admits it, so the sync yields to any
+     * interactive request between its own requests
+     *
+     * @param request The request
+     * @return HTTP response object
+     * @throws IOException
+     */
+    private HttpResponse execute(HttpUriRequest request) throws IOException {
+        return this.execute(request, RequestScheduler.Priority.BACKGROUND_SYNC);
+    }
+
+    /**
+     * Executes a request once the RequestScheduler admits its priority class.  The slot is held
+     * until the response body has been read, so large bodies are also covered by the scheduling.
+     *
+     * @param request  The request
+     * @param priority The priority class of the request
+     * @return HTTP response object
+     * @throws IOException
+     */
+    private HttpResponse execute(HttpUriRequest request, RequestScheduler.Priority priority)
+            throws IOException {
+        RequestScheduler scheduler = RequestScheduler.getInstance();
+        scheduler.acquire(priority);
+        HttpResponse response;
+        try {
+            response = this.mClient.execute(request);
+        } catch (IOException | RuntimeException e) {
+            scheduler.release(priority);
+            throw e;
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            scheduler.release(priority);
+        } else {
+            response.setEntity(RequestHandler.releaseWhenConsumed(entity, priority));
+        }
+        return response;
+    }
+
+    /**
+     * Wraps a response entity so the RequestScheduler slot of its request is released once the
+     * body has been read to the end, closed or consumed, whichever comes first
+     *
+     * @param entity   The response entity
+     * @param priority The priority class of the request
+     * @return The wrapping entity
+     */
+    private static HttpEntity releaseWhenConsumed(HttpEntity entity,
+                                                  final RequestScheduler.Priority priority) {
+        final AtomicBoolean released = new AtomicBoolean();
+        final Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                if (released.compareAndSet(false, true)) {
+                    RequestScheduler.getInstance().release(priority);
+                }
+            }
+        };
+        return new HttpEntityWrapper(entity) {
+            @Override
+            public InputStream getContent() throws IOException {
+                return new FilterInputStream(this.wrappedEntity.getContent()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b == -1) {
+                            release.run();
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int count) throws IOException {
+                        int read = super.read(buffer, offset, count);
+                        if (read == -1) {
+                            release.run();
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            release.run();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try {
+                    super.writeTo(out);
+                } finally {
+                    release.run();
+                }
+            }
+
+            @Override
+            public void consumeContent() throws IOException {
+                try {
+                    super.consumeContent();
+                } finally {
+                    release.run();
+                }
+            }
+        };
+    }
+
     /**
      * Sends an HTTP request to authenticate a user with the specified username and password
      *
@@ -78,7 +240,7 @@ public class RequestHandler {
                 Base64.encodeToString((username + ":" + password).getBytes(), Base64.DEFAULT));
 
         // Send
-        request.send();
+        RequestHandler.send(request, RequestScheduler.Priority.INTERACTIVE);
 
         // Initialize the response
         return new JsonResponse(request);
@@ -110,7 +272,7 @@ public class RequestHandler {
         request.addRequestParameter(RequestContract.Field.PASSWORD_CONFIRMATION, passwordConfirm);
 
         // Send
-        request.send();
+        RequestHandler.send(request, RequestScheduler.Priority.INTERACTIVE);
 
         // Initialize the response
         return new JsonResponse(request);
@@ -133,7 +295,7 @@ public class RequestHandler {
 
         // Headers
         request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
-        request.addHeader(RequestContract.AUTH_HEADER, Base64.encodeToString((authToken).getBytes(), Base64.URL_SAFE | Base64.NO_WRAP));
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
         request.addHeader(HTTP.CONTENT_TYPE, URLEncodedUtils.CONTENT_TYPE);
 
         // POST body
@@ -143,7 +305,7 @@ public class RequestHandler {
         request.setEntity(new UrlEncodedFormEntity(params));
 
         // Send the request and get the response
-        return this.mClient.execute(request);
+        return this.execute(request);
     }
 
     /**
@@ -163,7 +325,7 @@ public class RequestHandler {
 
         // Headers
         request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
-        request.addHeader(RequestContract.AUTH_HEADER, Base64.encodeToString((authToken).getBytes(), Base64.URL_SAFE | Base64.NO_WRAP));
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
         request.addHeader(HTTP.CONTENT_TYPE, URLEncodedUtils.CONTENT_TYPE);
 
         // POST body
@@ -174,7 +336,7 @@ public class RequestHandler {
         request.setEntity(new UrlEncodedFormEntity(params));
 
         // Send and get the response
-        return this.mClient.execute(request);
+        return this.execute(request);
     }
 
     /**
@@ -192,10 +354,10 @@ public class RequestHandler {
 
         // Headers
         request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
-        request.addHeader(RequestContract.AUTH_HEADER, Base64.encodeToString((authToken).getBytes(), Base64.URL_SAFE | Base64.NO_WRAP));
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
 
         // Send and get the response
-        return this.mClient.execute(request);
+        return this.execute(request);
     }
 
     /**
@@ -213,7 +375,7 @@ public class RequestHandler {
 
         // Headers
         request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
-        request.addHeader(RequestContract.AUTH_HEADER, Base64.encodeToString((authToken).getBytes(), Base64.URL_SAFE | Base64.NO_WRAP));
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
         request.addHeader(HTTP.CONTENT_TYPE, URLEncodedUtils.CONTENT_TYPE);
 
         // POST body
@@ -227,7 +389,7 @@ public class RequestHandler {
         request.setEntity(new UrlEncodedFormEntity(params));
 
         // Send and get the response
-        return this.mClient.execute(request);
+        return this.execute(request);
     }
 
     /**
@@ -244,10 +406,53 @@ public class RequestHandler {
 
         // Headers
         request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
-        request.addHeader(RequestContract.AUTH_HEADER, Base64.encodeToString((authToken).getBytes(), Base64.URL_SAFE | Base64.NO_WRAP));
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
 
         // Send and get the response
-        return this.mClient.execute(request);
+        return this.execute(request);
+    }
+
+    /**
+     * Sends a single request that saves or deletes each of the specified Capsules.  Capsules
+     * flagged as deleted are deleted on the server and the rest are created or updated.  The
+     * response holds a result for each Capsule in the same order.
+     *
+     * @param authToken The authentication token
+     * @param capsules  The Capsules to save or delete
+     * @return HTTP response object
+     * @throws IOException
+     */
+    public HttpResponse requestOwnershipBatch(String authToken, List<CapsuleOwnership> capsules) throws IOException {
+        // POST
+        HttpPost request = new HttpPost(RequestContract.BASE_URL + RequestContract.Uri.OWNERSHIP_BATCH_URI);
+
+        // Headers
+        request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
+        request.addHeader(HTTP.CONTENT_TYPE, URLEncodedUtils.CONTENT_TYPE);
+
+        // POST body
+        ArrayList<NameValuePair> params = new ArrayList<NameValuePair>();
+        for (int i = 0; i < capsules.size(); i++) {
+            CapsuleOwnership capsule = capsules.get(i);
+            RequestTemplates.BatchKeys keys = RequestTemplates.batchKeys(i);
+            if (capsule.getDeleted() >= 1) {
+                params.add(new BasicNameValuePair(keys.mAction, RequestContract.Value.BATCH_ACTION_DELETE));
+                params.add(new BasicNameValuePair(keys.mSyncId, Long.toString(capsule.getSyncId())));
+                continue;
+            }
+            params.add(new BasicNameValuePair(keys.mAction, RequestContract.Value.BATCH_ACTION_SAVE));
+            if (capsule.getSyncId() > 0) {
+                params.add(new BasicNameValuePair(keys.mSyncId, Long.toString(capsule.getSyncId())));
+            }
+            params.add(new BasicNameValuePair(keys.mName, capsule.getName()));
+            params.add(new BasicNameValuePair(keys.mLatitude, Double.toString(capsule.getLatitude())));
+            params.add(new BasicNameValuePair(keys.mLongitude, Double.toString(capsule.getLongitude())));
+        }
+        request.setEntity(Compression.encode(new UrlEncodedFormEntity(params)));
+
+        // Send and get the response
+        return this.execute(request);
     }
 
     /**
@@ -263,10 +468,34 @@ public class RequestHandler {
 
         // Headers
         request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
-        request.addHeader(RequestContract.AUTH_HEADER, Base64.encodeToString((authToken).getBytes(), Base64.URL_SAFE | Base64.NO_WRAP));
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
+
+        // Send and get the response
+        return this.execute(request);
+    }
+
+    /**
+     * Requests the user's Capsules that have changed since the specified sync token
+     *
+     * @param authToken The authentication token
+     * @param syncToken The sync token from the last successful sync
+     * @return HTTP response object
+     * @throws IOException
+     */
+    public HttpResponse requestOwnershipChanges(String authToken, String syncToken) throws IOException {
+        // Query string
+        ArrayList<NameValuePair> params = new ArrayList<NameValuePair>();
+        params.add(new BasicNameValuePair(RequestContract.Field.SYNC_TOKEN, syncToken));
+
+        // GET
+        HttpGet request = new HttpGet(RequestContract.BASE_URL + RequestContract.Uri.OWNERSHIP_CHANGES_URI + "?" + URLEncodedUtils.format(params, HTTP.UTF_8));
+
+        // Headers
+        request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
 
         // Send and get the response
-        return this.mClient.execute(request);
+        return this.execute(request);
     }
 
     /**
@@ -283,18 +512,103 @@ public class RequestHandler {
 
         // Headers
         request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
-        request.addHeader(RequestContract.AUTH_HEADER, Base64.encodeToString((authToken).getBytes(), Base64.URL_SAFE | Base64.NO_WRAP));
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
         request.addHeader(HTTP.CONTENT_TYPE, URLEncodedUtils.CONTENT_TYPE);
 
         // POST body
         ArrayList<NameValuePair> params = new ArrayList<NameValuePair>();
         for (int i = 0; i < capsules.size(); i++) {
-            params.add(new BasicNameValuePair("data[" + RequestContract.Field.CAPSULE_SYNC_ID + "][" + i + "]", Long.toString(capsules.get(i).getSyncId())));
+            params.add(new BasicNameValuePair(RequestTemplates.reportSyncIdKey(i), Long.toString(capsules.get(i).getSyncId())));
+        }
+        request.setEntity(Compression.encode(new UrlEncodedFormEntity(params)));
+
+        // Send and get the response
+        return this.execute(request);
+    }
+
+    /**
+     * Starts a resumable upload session for a file
+     *
+     * @param authToken   The authentication token
+     * @param size        The size of the file in bytes
+     * @param contentType The content type of the file
+     * @return HTTP response object
+     * @throws IOException
+     */
+    public HttpResponse requestUploadStart(String authToken, long size, String contentType)
+            throws IOException {
+        // POST
+        HttpPost request = new HttpPost(RequestContract.BASE_URL + RequestContract.Uri.UPLOAD_URI);
+
+        // Headers
+        request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
+        request.addHeader(HTTP.CONTENT_TYPE, URLEncodedUtils.CONTENT_TYPE);
+
+        // POST body
+        ArrayList<NameValuePair> params = new ArrayList<NameValuePair>();
+        params.add(new BasicNameValuePair(RequestTemplates.UPLOAD_SIZE_KEY, Long.toString(size)));
+        if (contentType != null) {
+            params.add(new BasicNameValuePair(RequestTemplates.UPLOAD_TYPE_KEY, contentType));
         }
         request.setEntity(new UrlEncodedFormEntity(params));
 
         // Send and get the response
-        return this.mClient.execute(request);
+        return this.execute(request, RequestScheduler.Priority.BULK_UPLOAD);
+    }
+
+    /**
+     * Requests the number of bytes the server has stored for a resumable upload
+     *
+     * @param authToken The authentication token
+     * @param uploadId  The ID of the upload session
+     * @return HTTP response object
+     * @throws IOException
+     */
+    public HttpResponse requestUploadStatus(String authToken, String uploadId) throws IOException {
+        // GET
+        HttpGet request = new HttpGet(RequestContract.BASE_URL + RequestContract.Uri.UPLOAD_URI + uploadId);
+
+        // Headers
+        request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
+
+        // Send and get the response
+        return this.execute(request, RequestScheduler.Priority.BULK_UPLOAD);
+    }
+
+    /**
+     * Sends a chunk of a resumable upload.  The server only accepts the chunk if it starts at the
+     * offset it has stored.
+     *
+     * @param authToken The authentication token
+     * @param uploadId  The ID of the upload session
+     * @param chunk     Holds the bytes of the chunk
+     * @param length    The number of bytes in the chunk
+     * @param offset    The position of the chunk in the file
+     * @param total     The size of the file in bytes
+     * @return HTTP response object
+     * @throws IOException
+     */
+    public HttpResponse requestUploadChunk(String authToken, String uploadId, byte[] chunk,
+                                           int length, long offset, long total) throws IOException {
+        // PUT
+        HttpPut request = new HttpPut(RequestContract.BASE_URL + RequestContract.Uri.UPLOAD_URI + uploadId);
+
+        // Headers
+        request.addHeader(HTTP.TARGET_HOST, RequestContract.HOST);
+        request.addHeader(RequestContract.AUTH_HEADER, RequestTemplates.authHeader(authToken));
+        request.addHeader(RequestContract.CONTENT_RANGE_HEADER,
+                "bytes " + offset + "-" + (offset + length - 1) + "/" + total);
+
+        // PUT body
+        ByteArrayEntity entity = new ByteArrayEntity(length == chunk.length ? chunk
+                : Arrays.copyOf(chunk, length));
+        entity.setContentType("application/octet-stream");
+        request.setEntity(entity);
+
+        // Send and get the response
+        return this.execute(request, RequestScheduler.Priority.BULK_UPLOAD);
     }
 
     /**
@@ -307,6 +621,9 @@ public class RequestHandler {
      */
     public static JsonResponse requestCapsules(Context context, Account account,
                                                CapsuleRequestParameters parameters) {
+        // Serve unchanged pages from the cache
+        HttpCache.install(context);
+
         // Initialize the request
         HttpUrlGetRequest request = new HttpUrlGetRequest(context,
                 RequestContract.BASE_URL + RequestContract.Uri.CAPSULES_URI, account,
@@ -317,11 +634,45 @@ public class RequestHandler {
         request.addAllQueryParameters(parameters.getAsCollection());
 
         // Send the request
-        request.send();
+        RequestHandler.send(request, RequestHandler.getPriority(parameters));
 
         return new JsonResponse(request);
     }
 
+    /**
+     * Requests a collection of Capsules and hands each one to the consumer as it is parsed from
+     * the response stream.  Falls back to parsing the whole response body if streaming is not
+     * supported on this platform.  Identical requests that are already in progress share a single
+     * response.
+     *
+     * @param context    The current Context
+     * @param account    The Account to be used for authentication
+     * @param parameters Parameters for the HTTP request
+     * @param consumer   Receives each Capsule
+     * @return HTTP response object
+     */
+    public static JsonResponse requestCapsules(Context context, Account account,
+                                               CapsuleRequestParameters parameters,
+                                               JSONStreamParser.CapsuleConsumer<Capsule> consumer) {
+        // Serve unchanged pages from the cache
+        HttpCache.install(context);
+
+        // Initialize the request
+        HttpUrlGetRequest request = new HttpUrlGetRequest(context,
+                RequestContract.BASE_URL + RequestContract.Uri.CAPSULES_URI, account,
+                Constants.AUTH_TOKEN_TYPE);
+        request.addRequestHeader("Accept", "application/json");
+
+        // Add the query parameters
+        request.addAllQueryParameters(parameters.getAsCollection());
+
+        // Share the response with any identical request already in progress
+        String key = SingleFlight.buildKey(RequestContract.Uri.CAPSULES_URI,
+                parameters.getAsCollection(), account);
+        return RequestHandler.streamCapsulesShared(key, request,
+                RequestHandler.getPriority(parameters), consumer);
+    }
+
     /**
      * Requests a collection of Discoveries
      *
@@ -332,6 +683,9 @@ public class RequestHandler {
      */
     public static JsonResponse requestDiscoveries(Context context, Account account,
                                                   CapsuleRequestParameters parameters) {
+        // Serve unchanged pages from the cache
+        HttpCache.install(context);
+
         // Initialize the request
         HttpUrlGetRequest request = new HttpUrlGetRequest(context,
                 RequestContract.BASE_URL + RequestContract.Uri.DISCOVERIES_URI, account,
@@ -342,11 +696,123 @@ public class RequestHandler {
         request.addAllQueryParameters(parameters.getAsCollection());
 
         // Send the request
-        request.send();
+        RequestHandler.send(request, RequestHandler.getPriority(parameters));
 
         return new JsonResponse(request);
     }
 
+    /**
+     * Requests a collection of Discoveries and hands each one to the consumer as it is parsed
+     * from the response stream.  Falls back to parsing the whole response body if streaming is not
+     * supported on this platform.  Identical requests that are already in progress share a single
+     * response.
+     *
+     * @param context    The current Context
+     * @param account    The Account to be used for authentication
+     * @param parameters Parameters for the HTTP request
+     * @param consumer   Receives each Capsule
+     * @return HTTP response object
+     */
+    public static JsonResponse requestDiscoveries(Context context, Account account,
+                                                  CapsuleRequestParameters parameters,
+                                                  JSONStreamParser.CapsuleConsumer<Capsule> consumer) {
+        // Serve unchanged pages from the cache
+        HttpCache.install(context);
+
+        // Initialize the request
+        HttpUrlGetRequest request = new HttpUrlGetRequest(context,
+                RequestContract.BASE_URL + RequestContract.Uri.DISCOVERIES_URI, account,
+                Constants.AUTH_TOKEN_TYPE);
+        request.addRequestHeader("Accept", "application/json");
+
+        // Add the query parameters
+        request.addAllQueryParameters(parameters.getAsCollection());
+
+        // Share the response with any identical request already in progress
+        String key = SingleFlight.buildKey(RequestContract.Uri.DISCOVERIES_URI,
+                parameters.getAsCollection(), account);
+        return RequestHandler.streamCapsulesShared(key, request,
+                RequestHandler.getPriority(parameters), consumer);
+    }
+
+    /**
+     * Sends the request unless an identical one is already in progress.  The caller that sends
+     * the request streams the Capsules to its consumer as they are parsed, while recording them for
+     * any identical request that arrives in the meantime, which gets them once the response ends.
+     *
+     * @param key      Identifies the request
+     * @param request  The initialized request
+     * @param priority The priority class of the request
+     * @param consumer Receives each Capsule
+     * @return HTTP response object
+     */
+    private static JsonResponse streamCapsulesShared(String key, final HttpUrlGetRequest request,
+                                                     final RequestScheduler.Priority priority,
+                                                     final JSONStreamParser.CapsuleConsumer<Capsule> consumer) {
+        final boolean[] streamed = new boolean[1];
+        SharedCapsules shared = sCapsuleFlights.execute(key, new SingleFlight.Loader<SharedCapsules>() {
+            @Override
+            public SharedCapsules load() {
+                streamed[0] = true;
+                final List<Capsule> capsules = new ArrayList<Capsule>();
+                JsonResponse response = RequestHandler.streamCapsules(request, priority,
+                        new JSONStreamParser.CapsuleConsumer<Capsule>() {
+                            @Override
+                            public void onCapsule(Capsule capsule) {
+                                capsules.add(capsule);
+                                consumer.onCapsule(capsule);
+                            }
+                        });
+                return new SharedCapsules(response, capsules);
+            }
+        });
+        // Replay the shared response to a caller that did not send the request
+        if (!streamed[0]) {
+            for (Capsule capsule : shared.mCapsules) {
+                consumer.onCapsule(capsule);
+            }
+        }
+        return shared.mResponse;
+    }
+
+    /**
+     * Sends the request and streams the Capsules in the response to the consumer, or parses the
+     * whole response body and then hands its Capsules to the consumer if streaming is not
+     * supported
+     *
+     * @param request  The initialized request
+     * @param priority The priority class of the request
+     * @param consumer Receives each Capsule
+     * @return HTTP response object
+     */
+    private static JsonResponse streamCapsules(HttpUrlGetRequest request,
+                                               RequestScheduler.Priority priority,
+                                               JSONStreamParser.CapsuleConsumer<Capsule> consumer) {
+        if (!JSONStreamParser.isSupported()) {
+            // Parse the whole response body
+            RequestHandler.send(request, priority);
+            JsonResponse response = new JsonResponse(request);
+            for (Capsule capsule : response.getCapsules()) {
+                consumer.onCapsule(capsule);
+            }
+            return response;
+        }
+
+        // Ask for a compressed response, which is decoded by the JsonResponse
+        request.addRequestHeader(Compression.ACCEPT_ENCODING_HEADER, Compression.GZIP);
+
+        // Open the connection and parse the response as it is read
+        RequestScheduler scheduler = RequestScheduler.getInstance();
+        scheduler.acquire(priority);
+        try {
+            request.connect();
+            return new JsonResponse(request, consumer);
+        } finally {
+            request.close();
+            scheduler.release(priority);
+        }
+    }
+
     /**
      * Requests to discover all the Capsules near the specified latitude and longitude
      *
@@ -365,13 +831,13 @@ public class RequestHandler {
         request.addRequestHeader("Accept", "application/json");
         // Add the request parameters
         request.addRequestParameter(
-                String.format("data[%1$s]", RequestContract.Field.CAPSULE_LATITUDE),
+                RequestTemplates.LATITUDE_KEY,
                 String.valueOf(lat));
         request.addRequestParameter(
-                String.format("data[%1$s]", RequestContract.Field.CAPSULE_LONGITUDE),
+                RequestTemplates.LONGITUDE_KEY,
                 String.valueOf(lng));
         // Send the request
-        request.send();
+        RequestHandler.send(request, RequestScheduler.Priority.INTERACTIVE);
 
         return new JsonResponse(request);
     }
@@ -404,7 +870,7 @@ public class RequestHandler {
         // Add the request parameters
         RequestHandler.addCapsuleRequestParameters(httpRequest, capsule);
         // Send the request
-        httpRequest.send();
+        RequestHandler.send(httpRequest, RequestScheduler.Priority.BULK_UPLOAD);
 
         return httpRequest;
     }
@@ -416,12 +882,13 @@ public class RequestHandler {
      * @param context            The current Context
      * @param account            The Account used to authenticate the request
      * @param capsule            The Capsule to save
+     * @param saveKey            The idempotency key that is the same for every attempt of the save
      * @param onDataSentListener The listener that will receive updates on the amount of data sent.
      *                           If not needed, use null.
      * @return The HTTP request object which also contains the response data
      */
     public static HttpUrlMultiPartRequest saveCapsule(Context context, Account account,
-                                                      Capsule capsule,
+                                                      Capsule capsule, String saveKey,
                                                       HttpUrlConnectionRequest.DataSentListener
                                                               onDataSentListener) {
         HttpUrlMultiPartRequest httpRequest = new HttpUrlMultiPartRequest(
@@ -430,6 +897,8 @@ public class RequestHandler {
                 account, Constants.AUTH_TOKEN_TYPE
         );
         httpRequest.addRequestHeader("Accept", "application/json");
+        // Let the server recognize a retry of a save it already stored
+        httpRequest.addRequestHeader(RequestContract.IDEMPOTENCY_KEY_HEADER, saveKey);
         // Add the listener
         if (onDataSentListener != null) {
             httpRequest.setListener(onDataSentListener);
@@ -439,7 +908,39 @@ public class RequestHandler {
         // Add the file upload to the request
         RequestHandler.addCapsuleUploadRequestParameters(httpRequest, capsule);
         // Execute
-        httpRequest.send();
+        RequestHandler.send(httpRequest, RequestScheduler.Priority.BULK_UPLOAD);
+
+        return httpRequest;
+    }
+
+    /**
+     * Sends a Capsule save request that refers to a Memoir file already sent with a resumable
+     * upload, and returns the HTTP request object also containing the response data
+     *
+     * @param context  The current Context
+     * @param account  The Account used to authenticate the request
+     * @param capsule  The Capsule to save
+     * @param saveKey  The idempotency key that is the same for every attempt of the save
+     * @param uploadId The ID of the completed upload that holds the Memoir file
+     * @return The HTTP request object which also contains the response data
+     */
+    public static HttpUrlWwwFormRequest saveCapsule(Context context, Account account,
+                                                    Capsule capsule, String saveKey,
+                                                    String uploadId) {
+        HttpUrlWwwFormRequest httpRequest = new HttpUrlWwwFormRequest(
+                context,
+                RequestContract.BASE_URL + RequestContract.Uri.SAVE_CAPSULE_URI,
+                account, Constants.AUTH_TOKEN_TYPE
+        );
+        httpRequest.addRequestHeader("Accept", "application/json");
+        // Let the server recognize a retry of a save it already stored
+        httpRequest.addRequestHeader(RequestContract.IDEMPOTENCY_KEY_HEADER, saveKey);
+        // Add the request parameters
+        RequestHandler.addCapsuleRequestParameters(httpRequest, capsule);
+        // Refer to the uploaded file
+        httpRequest.addRequestParameter(RequestTemplates.MEMOIR_UPLOAD_ID_KEY, uploadId);
+        // Execute
+        RequestHandler.send(httpRequest, RequestScheduler.Priority.BULK_UPLOAD);
 
         return httpRequest;
     }
@@ -461,19 +962,21 @@ public class RequestHandler {
         );
         // Add the request parameters
         httpRequest.addRequestParameter(
-                String.format("data[%1$s]", RequestContract.Field.DISCOVERY_FAVORITE),
+                RequestTemplates.DISCOVERY_FAVORITE_KEY,
                 String.valueOf(discovery.getFavorite()));
         httpRequest.addRequestParameter(
-                String.format("data[%1$s]", RequestContract.Field.DISCOVERY_RATING),
+                RequestTemplates.DISCOVERY_RATING_KEY,
                 String.valueOf(discovery.getRating()));
         // Execute
-        httpRequest.send();
+        RequestHandler.send(httpRequest, RequestScheduler.Priority.INTERACTIVE);
 
         return httpRequest.isSuccess();
     }
 
     /**
-     * Opens a connection to a Memoir resource and returns the HTTP request object
+     * Opens a connection to a Memoir resource and returns the HTTP request object.  The caller
+     * reads the response stream, so it is also responsible for acquiring an interactive slot from
+     * the RequestScheduler around this call.
      *
      * @param context  The current Context
      * @param account  The Account used to authenticate the request
@@ -493,6 +996,34 @@ public class RequestHandler {
         return request;
     }
 
+    /**
+     * Sends a request once the RequestScheduler admits its priority class
+     *
+     * @param request  The initialized request
+     * @param priority The priority class of the request
+     */
+    private static void send(HttpUrlConnectionRequest request, RequestScheduler.Priority priority) {
+        RequestScheduler scheduler = RequestScheduler.getInstance();
+        scheduler.acquire(priority);
+        try {
+            request.send();
+        } finally {
+            scheduler.release(priority);
+        }
+    }
+
+    /**
+     * Gets the priority class of a Capsule collection request.  The first page is what the user is
+     * waiting on, while later pages are loaded ahead of the scroll position.
+     *
+     * @param parameters Parameters for the HTTP request
+     * @return The priority class
+     */
+    private static RequestScheduler.Priority getPriority(CapsuleRequestParameters parameters) {
+        return parameters.getPage() > 1 ? RequestScheduler.Priority.PREFETCH
+                : RequestScheduler.Priority.INTERACTIVE;
+    }
+
     /**
      * Adds the standard Capsule request parameters to an instance of HttpUrlConnectionRequest
      *
@@ -503,28 +1034,23 @@ public class RequestHandler {
                                                    Capsule capsule) {
         if (capsule.getName() != null) {
             httpRequest.addRequestParameter(
-                    String.format("data[%1$s][%2$s]", RequestContract.Field.CAPSULE_ENTITY,
-                            RequestContract.Field.CAPSULE_NAME), capsule.getName());
+                    RequestTemplates.CAPSULE_NAME_KEY, capsule.getName());
         }
         httpRequest.addRequestParameter(
-                String.format("data[%1$s][%2$s]", RequestContract.Field.CAPSULE_ENTITY,
-                        RequestContract.Field.CAPSULE_LATITUDE),
+                RequestTemplates.CAPSULE_LATITUDE_KEY,
                 String.valueOf(capsule.getLatitude()));
         httpRequest.addRequestParameter(
-                String.format("data[%1$s][%2$s]", RequestContract.Field.CAPSULE_ENTITY,
-                        RequestContract.Field.CAPSULE_LONGITUDE),
+                RequestTemplates.CAPSULE_LONGITUDE_KEY,
                 String.valueOf(capsule.getLongitude()));
         Memoir memoir = capsule.getMemoir();
         if (memoir != null) {
             if (memoir.getTitle() != null) {
                 httpRequest.addRequestParameter(
-                        String.format("data[%1$s][0][%2$s]", RequestContract.Field.MEMOIR_ENTITY,
-                                RequestContract.Field.MEMOIR_TITLE), memoir.getTitle());
+                        RequestTemplates.MEMOIR_TITLE_KEY, memoir.getTitle());
             }
             if (memoir.getMessage() != null) {
                 httpRequest.addRequestParameter(
-                        String.format("data[%1$s][0][%2$s]", RequestContract.Field.MEMOIR_ENTITY,
-                                RequestContract.Field.MEMOIR_MESSAGE), memoir.getMessage());
+                        RequestTemplates.MEMOIR_MESSAGE_KEY, memoir.getMessage());
             }
         }
     }
@@ -541,8 +1067,7 @@ public class RequestHandler {
             Memoir memoir = capsule.getMemoir();
             if (memoir.getFileContentUri() != null) {
                 httpRequest.addFileUploadContentUri(
-                        String.format("data[%1$s][0][%2$s]", RequestContract.Field.MEMOIR_ENTITY,
-                                RequestContract.Field.MEMOIR_FILE), memoir.getFileContentUri());
+                        RequestTemplates.MEMOIR_FILE_KEY, memoir.getFileContentUri());
             }
         }
     }
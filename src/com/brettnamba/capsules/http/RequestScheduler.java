@@ -0,0 +1,208 @@
+package com.brettnamba.capsules.http;
+
+/**
+ * Coordinates the requests made by the different parts of the app so that the screen the user is
+ * looking at does not wait behind the sync or an upload.
+ *
+ * Each request is sent under a priority class and each class has its own concurrency limit.  While
+ * an interactive request is running or waiting, requests of the lower classes are held back before
+ * they are sent, and a class is never admitted ahead of a higher class that is waiting.  The sync
+ * and the uploads are made up of many separate requests, so they yield at the next request
+ * boundary.  A lower class that has been held back for longer than MAX_DEFERRAL is let through so
+ * it cannot be starved by a long run of interactive requests.
+ *
+ * @author Brett Namba
+ */
+public final class RequestScheduler {
+
+    /**
+     * The longest a request is held back for a higher priority class, in milliseconds
+     */
+    public static final long MAX_DEFERRAL = 10 * 1000;
+
+    /**
+     * The priority classes, from highest to lowest
+     */
+    public enum Priority {
+
+        /**
+         * Requests the user is waiting on, such as the screen that is being displayed
+         */
+        INTERACTIVE(4),
+
+        /**
+         * Requests for data the user is likely to need next, such as the next page of a list
+         */
+        PREFETCH(2),
+
+        /**
+         * Requests made by the sync
+         */
+        BACKGROUND_SYNC(4),
+
+        /**
+         * Uploads of new Capsules and their Memoirs.  A slot is only held for a single request,
+         * such as one chunk of a Memoir, until its response has been read, so an upload yields
+         * between requests.  Each outbox worker thread has one request in flight at a time, so
+         * this is at least as many as there are workers.
+         */
+        BULK_UPLOAD(2);
+
+        /**
+         * The default number of requests of this class that can run at once
+         */
+        private final int mDefaultLimit;
+
+        /**
+         * Constructor
+         *
+         * @param defaultLimit The default number of requests of this class that can run at once
+         */
+        Priority(int defaultLimit) {
+            this.mDefaultLimit = defaultLimit;
+        }
+
+    }
+
+    /**
+     * The shared instance
+     */
+    private static RequestScheduler sInstance;
+
+    /**
+     * The number of requests of each class that can run at once
+     */
+    private final int[] mLimits = new int[Priority.values().length];
+
+    /**
+     * The number of requests of each class that are running
+     */
+    private final int[] mRunning = new int[Priority.values().length];
+
+    /**
+     * The number of requests of each class that are waiting to run
+     */
+    private final int[] mWaiting = new int[Priority.values().length];
+
+    /**
+     * Constructor
+     */
+    private RequestScheduler() {
+        for (Priority priority : Priority.values()) {
+            this.mLimits[priority.ordinal()] = priority.mDefaultLimit;
+        }
+    }
+
+    /**
+     * Gets the shared instance
+     *
+     * @return The RequestScheduler
+     */
+    public static synchronized RequestScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new RequestScheduler();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sets the number of requests of a class that can run at once
+     *
+     * @param priority The priority class
+     * @param limit    The maximum number of concurrent requests
+     */
+    public synchronized void setLimit(Priority priority, int limit) {
+        this.mLimits[priority.ordinal()] = Math.max(1, limit);
+        this.notifyAll();
+    }
+
+    /**
+     * Gets the number of requests of a class that are running
+     *
+     * @param priority The priority class
+     * @return The number of running requests
+     */
+    public synchronized int getRunningCount(Priority priority) {
+        return this.mRunning[priority.ordinal()];
+    }
+
+    /**
+     * Waits until a request of the class can be sent.  Every call must be followed by a call to
+     * release() once the request has finished.  If the thread is interrupted while waiting, the
+     * interrupt status is restored once the request has been admitted.
+     *
+     * @param priority The priority class of the request
+     */
+    public synchronized void acquire(Priority priority) {
+        int index = priority.ordinal();
+        long deadline = System.currentTimeMillis() + MAX_DEFERRAL;
+        boolean interrupted = false;
+        this.mWaiting[index]++;
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (this.canRun(priority, remaining <= 0)) {
+                    break;
+                }
+                try {
+                    // Wait for a slot, or until the request has been held back long enough
+                    if (remaining > 0) {
+                        this.wait(remaining);
+                    } else {
+                        this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            this.mWaiting[index]--;
+        }
+        this.mRunning[index]++;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Frees the slot taken by a request once it has finished
+     *
+     * @param priority The priority class of the request
+     */
+    public synchronized void release(Priority priority) {
+        int index = priority.ordinal();
+        if (this.mRunning[index] > 0) {
+            this.mRunning[index]--;
+        }
+        this.notifyAll();
+    }
+
+    /**
+     * Determines if a request of the class can be sent now
+     *
+     * @param priority The priority class of the request
+     * @param deferred Whether the request has already been held back for MAX_DEFERRAL
+     * @return True if the request can be sent
+     */
+    private boolean canRun(Priority priority, boolean deferred) {
+        int index = priority.ordinal();
+        if (this.mRunning[index] >= this.mLimits[index]) {
+            return false;
+        }
+        if (priority == Priority.INTERACTIVE || deferred) {
+            return true;
+        }
+        // Hold back while the user is waiting on an interactive request
+        if (this.mRunning[Priority.INTERACTIVE.ordinal()] > 0) {
+            return false;
+        }
+        // Do not jump ahead of a higher class that is waiting
+        for (int i = 0; i < index; i++) {
+            if (this.mWaiting[i] > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.brettnamba.capsules.http;
+
+import android.util.Base64;
+
+/**
+ * Precomputed pieces of the API requests so that building a request does no string formatting.
+ * Form keys are built once when the class is loaded, indexed keys are built once for the usual
+ * range of indices, and the encoded Authorization header is kept for the last token used.
+ *
+ * @author Brett Namba
+ */
+final class RequestTemplates {
+
+    /**
+     * The number of indexed keys that are built ahead of time
+     */
+    private static final int INDEXED_KEY_COUNT = 64;
+
+    /**
+     * The key for the Capsule name in a Capsule save request
+     */
+    static final String CAPSULE_NAME_KEY = entityKey(RequestContract.Field.CAPSULE_ENTITY,
+            RequestContract.Field.CAPSULE_NAME);
+
+    /**
+     * The key for the Capsule latitude in a Capsule save request
+     */
+    static final String CAPSULE_LATITUDE_KEY = entityKey(RequestContract.Field.CAPSULE_ENTITY,
+            RequestContract.Field.CAPSULE_LATITUDE);
+
+    /**
+     * The key for the Capsule longitude in a Capsule save request
+     */
+    static final String CAPSULE_LONGITUDE_KEY = entityKey(RequestContract.Field.CAPSULE_ENTITY,
+            RequestContract.Field.CAPSULE_LONGITUDE);
+
+    /**
+     * The key for the Memoir title in a Capsule save request
+     */
+    static final String MEMOIR_TITLE_KEY = firstEntityKey(RequestContract.Field.MEMOIR_ENTITY,
+            RequestContract.Field.MEMOIR_TITLE);
+
+    /**
+     * The key for the Memoir message in a Capsule save request
+     */
+    static final String MEMOIR_MESSAGE_KEY = firstEntityKey(RequestContract.Field.MEMOIR_ENTITY,
+            RequestContract.Field.MEMOIR_MESSAGE);
+
+    /**
+     * The key for the Memoir file in a Capsule save request
+     */
+    static final String MEMOIR_FILE_KEY = firstEntityKey(RequestContract.Field.MEMOIR_ENTITY,
+            RequestContract.Field.MEMOIR_FILE);
+
+    /**
+     * The key for the ID of a completed resumable upload in a Capsule save request
+     */
+    static final String MEMOIR_UPLOAD_ID_KEY = firstEntityKey(RequestContract.Field.MEMOIR_ENTITY,
+            RequestContract.Field.MEMOIR_UPLOAD_ID);
+
+    /**
+     * The key for the file size when starting a resumable upload
+     */
+    static final String UPLOAD_SIZE_KEY = dataKey(RequestContract.Field.UPLOAD_SIZE);
+
+    /**
+     * The key for the content type when starting a resumable upload
+     */
+    static final String UPLOAD_TYPE_KEY = dataKey(RequestContract.Field.UPLOAD_TYPE);
+
+    /**
+     * The key for the latitude in a data object
+     */
+    static final String LATITUDE_KEY = dataKey(RequestContract.Field.CAPSULE_LATITUDE);
+
+    /**
+     * The key for the longitude in a data object
+     */
+    static final String LONGITUDE_KEY = dataKey(RequestContract.Field.CAPSULE_LONGITUDE);
+
+    /**
+     * The key for the Discovery favorite flag
+     */
+    static final String DISCOVERY_FAVORITE_KEY = dataKey(RequestContract.Field.DISCOVERY_FAVORITE);
+
+    /**
+     * The key for the Discovery rating
+     */
+    static final String DISCOVERY_RATING_KEY = dataKey(RequestContract.Field.DISCOVERY_RATING);
+
+    /**
+     * The sync ID keys of a REPORT request by index
+     */
+    private static final String[] REPORT_SYNC_ID_KEYS = new String[INDEXED_KEY_COUNT];
+
+    /**
+     * The item keys of a batch request by index
+     */
+    private static final BatchKeys[] BATCH_KEYS = new BatchKeys[INDEXED_KEY_COUNT];
+
+    static {
+        for (int i = 0; i < INDEXED_KEY_COUNT; i++) {
+            REPORT_SYNC_ID_KEYS[i] = reportSyncIdKeyFor(i);
+            BATCH_KEYS[i] = new BatchKeys(i);
+        }
+    }
+
+    /**
+     * The Authorization header for the last token that was used
+     */
+    private static volatile AuthHeader sAuthHeader;
+
+    /**
+     * The form keys for a single item in a batch request
+     */
+    static final class BatchKeys {
+
+        /**
+         * The key for the item's action
+         */
+        final String mAction;
+
+        /**
+         * The key for the item's sync ID
+         */
+        final String mSyncId;
+
+        /**
+         * The key for the item's name
+         */
+        final String mName;
+
+        /**
+         * The key for the item's latitude
+         */
+        final String mLatitude;
+
+        /**
+         * The key for the item's longitude
+         */
+        final String mLongitude;
+
+        /**
+         * Constructor
+         *
+         * @param index The index of the item in the batch
+         */
+        private BatchKeys(int index) {
+            String prefix = RequestContract.Field.DATA + "[" + index + "]";
+            this.mAction = prefix + "[" + RequestContract.Field.BATCH_ACTION + "]";
+            this.mSyncId = prefix + "[" + RequestContract.Field.CAPSULE_SYNC_ID + "]";
+            this.mName = prefix + "[" + RequestContract.Field.CAPSULE_NAME + "]";
+            this.mLatitude = prefix + "[" + RequestContract.Field.CAPSULE_LATITUDE + "]";
+            this.mLongitude = prefix + "[" + RequestContract.Field.CAPSULE_LONGITUDE + "]";
+        }
+
+    }
+
+    /**
+     * An encoded Authorization header and the token it was encoded from
+     */
+    private static final class AuthHeader {
+
+        /**
+         * The authentication token
+         */
+        private final String mToken;
+
+        /**
+         * The encoded header value
+         */
+        private final String mValue;
+
+        /**
+         * Constructor
+         *
+         * @param token The authentication token
+         */
+        private AuthHeader(String token) {
+            this.mToken = token;
+            this.mValue = Base64.encodeToString(token.getBytes(), Base64.URL_SAFE | Base64.NO_WRAP);
+        }
+
+    }
+
+    /**
+     * Constructor
+     */
+    private RequestTemplates() {
+    }
+
+    /**
+     * Gets the encoded Authorization header value for a token, only encoding it if the token
+     * differs from the last one
+     *
+     * @param authToken The authentication token
+     * @return The header value
+     */
+    static String authHeader(String authToken) {
+        AuthHeader header = sAuthHeader;
+        if (header == null || !header.mToken.equals(authToken)) {
+            header = new AuthHeader(authToken);
+            sAuthHeader = header;
+        }
+        return header.mValue;
+    }
+
+    /**
+     * Gets the key for a sync ID in a REPORT request
+     *
+     * @param index The index of the Capsule in the request
+     * @return The key
+     */
+    static String reportSyncIdKey(int index) {
+        return index < INDEXED_KEY_COUNT ? REPORT_SYNC_ID_KEYS[index] : reportSyncIdKeyFor(index);
+    }
+
+    /**
+     * Gets the keys for an item in a batch request
+     *
+     * @param index The index of the item in the request
+     * @return The keys
+     */
+    static BatchKeys batchKeys(int index) {
+        return index < INDEXED_KEY_COUNT ? BATCH_KEYS[index] : new BatchKeys(index);
+    }
+
+    /**
+     * Builds a key for a field in the data object
+     *
+     * @param field The field
+     * @return The key
+     */
+    private static String dataKey(String field) {
+        return RequestContract.Field.DATA + "[" + field + "]";
+    }
+
+    /**
+     * Builds a key for a field of an entity in the data object
+     *
+     * @param entity The entity
+     * @param field  The field
+     * @return The key
+     */
+    private static String entityKey(String entity, String field) {
+        return RequestContract.Field.DATA + "[" + entity + "][" + field + "]";
+    }
+
+    /**
+     * Builds a key for a field of the first entity in a collection in the data object
+     *
+     * @param entity The entity
+     * @param field  The field
+     * @return The key
+     */
+    private static String firstEntityKey(String entity, String field) {
+        return RequestContract.Field.DATA + "[" + entity + "][0][" + field + "]";
+    }
+
+    /**
+     * Builds the key for a sync ID in a REPORT request
+     *
+     * @param index The index of the Capsule in the request
+     * @return The key
+     */
+    private static String reportSyncIdKeyFor(int index) {
+        return RequestContract.Field.DATA + "[" + RequestContract.Field.CAPSULE_SYNC_ID + "][" + index + "]";
+    }
+
+}
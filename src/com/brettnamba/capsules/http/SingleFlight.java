@@ -0,0 +1,173 @@
+package com.brettnamba.capsules.http;
+
+import android.accounts.Account;
+import android.util.Pair;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent identical requests into one.  The first caller for a key loads the value
+ * and any caller that asks for the same key while it is loading waits for and shares that value
+ * instead of sending its own request.  Once the load finishes the key is forgotten, so later
+ * callers load a fresh value.
+ *
+ * @param <V> The type of the loaded value
+ * @author Brett Namba
+ */
+public class SingleFlight<V> {
+
+    /**
+     * Loads a value, usually by sending an HTTP request
+     *
+     * @param <V> The type of the loaded value
+     */
+    public interface Loader<V> {
+        V load();
+    }
+
+    /**
+     * A load that is in progress
+     *
+     * @param <V> The type of the loaded value
+     */
+    private static class Call<V> {
+
+        /**
+         * Released once the load has finished
+         */
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        /**
+         * The loaded value
+         */
+        private V mValue;
+
+        /**
+         * The exception thrown while loading
+         */
+        private RuntimeException mException;
+
+    }
+
+    /**
+     * The number of requests collapsed across every instance
+     */
+    private static final AtomicLong sTotalCollapsed = new AtomicLong();
+
+    /**
+     * The loads in progress by key
+     */
+    private final Map<String, Call<V>> mCalls = new HashMap<String, Call<V>>();
+
+    /**
+     * The number of requests collapsed by this instance
+     */
+    private final AtomicLong mCollapsed = new AtomicLong();
+
+    /**
+     * Builds a key that identifies a GET request
+     *
+     * @param uri     The request URI
+     * @param query   The query parameters
+     * @param account The Account the request is sent for
+     * @return The key
+     */
+    public static String buildKey(String uri, List<Pair<String, String>> query, Account account) {
+        StringBuilder key = new StringBuilder(uri).append('?');
+        if (query != null) {
+            for (Pair<String, String> parameter : query) {
+                key.append(parameter.first).append('=').append(parameter.second).append('&');
+            }
+        }
+        if (account != null) {
+            key.append('#').append(account.type).append(':').append(account.name);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Gets the number of requests collapsed across every instance
+     *
+     * @return The number of requests that shared another caller's response
+     */
+    public static long getTotalCollapsedCount() {
+        return sTotalCollapsed.get();
+    }
+
+    /**
+     * Gets the number of requests collapsed by this instance
+     *
+     * @return The number of requests that shared another caller's response
+     */
+    public long getCollapsedCount() {
+        return this.mCollapsed.get();
+    }
+
+    /**
+     * Loads the value for the key, or waits for the load already in progress for the same key
+     *
+     * @param key    Identifies the request
+     * @param loader Loads the value if no other caller is
+     * @return The loaded value
+     */
+    public V execute(String key, Loader<V> loader) {
+        Call<V> call;
+        boolean leader = false;
+        synchronized (this.mCalls) {
+            call = this.mCalls.get(key);
+            if (call == null) {
+                call = new Call<V>();
+                this.mCalls.put(key, call);
+                leader = true;
+            }
+        }
+
+        if (!leader) {
+            // Share the response of the request in progress
+            this.mCollapsed.incrementAndGet();
+            sTotalCollapsed.incrementAndGet();
+            SingleFlight.awaitUninterruptibly(call.mDone);
+        } else {
+            try {
+                call.mValue = loader.load();
+            } catch (RuntimeException e) {
+                call.mException = e;
+            } finally {
+                synchronized (this.mCalls) {
+                    this.mCalls.remove(key);
+                }
+                call.mDone.countDown();
+            }
+        }
+
+        if (call.mException != null) {
+            throw call.mException;
+        }
+        return call.mValue;
+    }
+
+    /**
+     * Waits for the latch, restoring the thread's interrupt status afterwards
+     *
+     * @param latch The latch to wait for
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
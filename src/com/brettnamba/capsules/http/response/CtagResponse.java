@@ -26,6 +26,11 @@ public class CtagResponse extends ApiResponse {
      */
     private String mCtag;
 
+    /**
+     * The sync token from the response, if the server sent one
+     */
+    private String mSyncToken;
+
     /**
      * Constructor that parses an HTTP response object
      *
@@ -54,6 +59,15 @@ public class CtagResponse extends ApiResponse {
         return this.mCtag;
     }
 
+    /**
+     * Gets the sync token that can be used to request only changes after this ctag
+     *
+     * @return The sync token or null if the server did not send one
+     */
+    public String getSyncToken() {
+        return this.mSyncToken;
+    }
+
     /**
      * Gets the response and parses the JSON body
      *
@@ -70,9 +84,11 @@ public class CtagResponse extends ApiResponse {
             try {
                 JSONObject jsonObject = new JSONObject(body);
                 this.mCtag = JSONParser.parseCtag(jsonObject);
+                this.mSyncToken = JSONParser.parseSyncToken(jsonObject);
                 this.mMessages = JSONParser.parseMessages(jsonObject);
             } catch (JSONException e) {
                 this.mCtag = null;
+                this.mSyncToken = null;
                 this.mMessages = new ArrayList<String>();
             }
         }
@@ -1,13 +1,18 @@
 package com.brettnamba.capsules.http.response;
 
 import com.brettnamba.capsules.dataaccess.Capsule;
+import com.brettnamba.capsules.http.Compression;
 import com.brettnamba.capsules.util.JSONParser;
+import com.brettnamba.capsules.util.JSONStreamParser;
 import com.brettnamba.tomoeame.http.HttpUrlConnectionRequest;
+import com.brettnamba.tomoeame.http.HttpUrlGetRequest;
 import com.brettnamba.tomoeame.http.HttpUrlResponse;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -43,6 +48,11 @@ public class JsonResponse extends HttpUrlResponse {
      */
     private List<Capsule> mCapsules;
 
+    /**
+     * Whether the request received a successful response
+     */
+    private boolean mSuccess;
+
     /**
      * Constructor that parses the response body
      *
@@ -50,10 +60,44 @@ public class JsonResponse extends HttpUrlResponse {
      */
     public JsonResponse(HttpUrlConnectionRequest request) {
         super(request);
+        this.mSuccess = request.isSuccess();
         // Parse the response body
         this.parseResponseBody(request);
     }
 
+    /**
+     * Constructor that streams a collection of Capsules from a connected request's response
+     * body, handing each Capsule to the consumer instead of building a JSONObject.  Only the
+     * messages are retained on the response.  A gzip compressed body is decoded as it is read.
+     *
+     * @param request  The connected HTTP request object
+     * @param consumer Receives each Capsule as it is parsed
+     */
+    public JsonResponse(HttpUrlGetRequest request,
+                        JSONStreamParser.CapsuleConsumer<Capsule> consumer) {
+        super(request);
+        this.mSuccess = request.isSuccess();
+        this.mJsonObject = new JSONObject();
+        // The Capsules are not retained since they were handed to the consumer
+        this.mCapsules = new ArrayList<Capsule>();
+        try {
+            this.mMessages = JSONStreamParser.parseCapsules(
+                    new InputStreamReader(Compression.decode(request.getResponseStream()), "UTF-8"),
+                    consumer);
+        } catch (NullPointerException | IOException e) {
+            this.mMessages = new ArrayList<String>();
+        }
+    }
+
+    /**
+     * Checks if the request received a successful response
+     *
+     * @return True if the response was successful
+     */
+    public boolean isSuccess() {
+        return this.mSuccess;
+    }
+
     /**
      * Parses the authentication token if it has not already has been parsed and then returns it
      *
@@ -0,0 +1,181 @@
+package com.brettnamba.capsules.http.response;
+
+import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+import com.brettnamba.capsules.http.RequestContract;
+import com.brettnamba.capsules.util.JSONParser;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Models an HTTP response to a batch request that saved or deleted multiple Capsule ownerships.
+ * The response holds a result for each Capsule in the same order as the request.
+ */
+public class OwnershipBatchResponse extends ApiResponse {
+
+    /**
+     * The result for a single Capsule in the batch
+     */
+    public static final class Item {
+
+        /**
+         * The HTTP status for the Capsule
+         */
+        private final int mStatus;
+
+        /**
+         * The saved Capsule, or null if it was deleted or could not be saved
+         */
+        private final CapsuleOwnership mCapsule;
+
+        /**
+         * Constructor
+         *
+         * @param status  The HTTP status for the Capsule
+         * @param capsule The saved Capsule
+         */
+        private Item(int status, CapsuleOwnership capsule) {
+            this.mStatus = status;
+            this.mCapsule = capsule;
+        }
+
+        /**
+         * Determines if the Capsule was saved or deleted
+         *
+         * @return True if it is a success, false if it is not
+         */
+        public boolean isSuccess() {
+            return this.mStatus == HttpStatus.SC_OK || this.mStatus == HttpStatus.SC_NO_CONTENT;
+        }
+
+        /**
+         * Gets the saved Capsule
+         *
+         * @return The Capsule that was sent back for this item
+         */
+        public CapsuleOwnership getCapsule() {
+            return this.mCapsule;
+        }
+
+    }
+
+    /**
+     * Whether or not the request was a success
+     */
+    private boolean mSuccess;
+
+    /**
+     * Whether or not the server handles batch requests
+     */
+    private boolean mSupported;
+
+    /**
+     * The result for each Capsule in the request
+     */
+    private List<Item> mItems;
+
+    /**
+     * Constructor that wraps an HTTP response object and parses the response
+     *
+     * @param response HTTP response object
+     * @throws IOException
+     */
+    public OwnershipBatchResponse(HttpResponse response) throws IOException {
+        super(response);
+    }
+
+    /**
+     * Determines if the request was a success
+     *
+     * @return True if it is a success, false if it is not
+     */
+    public boolean isSuccess() {
+        return this.mSuccess;
+    }
+
+    /**
+     * Determines if the server handles batch requests.  If not, each Capsule should be sent in
+     * its own request instead.
+     *
+     * @return True if batch requests are supported, otherwise false
+     */
+    public boolean isSupported() {
+        return this.mSupported;
+    }
+
+    /**
+     * Gets the result for each Capsule in the request
+     *
+     * @return The per-Capsule results
+     */
+    public List<Item> getItems() {
+        return this.mItems;
+    }
+
+    /**
+     * Parses the per-Capsule results from the HTTP response
+     *
+     * @param response The HTTP response object
+     * @throws IOException
+     */
+    @Override
+    protected void parse(HttpResponse response) throws IOException {
+        this.mItems = new ArrayList<Item>();
+        this.mSupported = true;
+        if (response.getStatusLine() != null) {
+            int status = response.getStatusLine().getStatusCode();
+            this.mSuccess = status == HttpStatus.SC_OK;
+            this.mSupported = status != HttpStatus.SC_NOT_FOUND
+                    && status != HttpStatus.SC_METHOD_NOT_ALLOWED
+                    && status != HttpStatus.SC_NOT_IMPLEMENTED;
+        }
+        if (response.getEntity() != null) {
+            String body = EntityUtils.toString(response.getEntity());
+            try {
+                JSONObject jsonObject = new JSONObject(body);
+                this.mMessages = JSONParser.parseMessages(jsonObject);
+                if (this.mSuccess) {
+                    this.parseItems(jsonObject);
+                }
+            } catch (JSONException e) {
+                this.mSuccess = false;
+                this.mItems.clear();
+                this.mMessages = new ArrayList<String>();
+            }
+        }
+    }
+
+    /**
+     * Parses each item from the results collection
+     *
+     * @param json The JSON response body
+     * @throws JSONException
+     */
+    private void parseItems(JSONObject json) throws JSONException {
+        if (!json.has(RequestContract.Field.DATA)) {
+            return;
+        }
+        JSONObject data = json.getJSONObject(RequestContract.Field.DATA);
+        if (!data.has(RequestContract.Field.RESULTS)) {
+            return;
+        }
+        JSONArray results = data.getJSONArray(RequestContract.Field.RESULTS);
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            CapsuleOwnership capsule = null;
+            if (result.has(RequestContract.Field.CAPSULE) && !result.isNull(RequestContract.Field.CAPSULE)) {
+                capsule = new CapsuleOwnership(result.getJSONObject(RequestContract.Field.CAPSULE));
+            }
+            this.mItems.add(new Item(result.optInt(RequestContract.Field.STATUS), capsule));
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.brettnamba.capsules.http.response;
+
+import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+import com.brettnamba.capsules.util.JSONParser;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Models an HTTP response that contains the Capsule ownerships that changed since a sync token
+ */
+public class OwnershipChangesResponse extends ApiResponse {
+
+    /**
+     * Whether or not the request was a success
+     */
+    private boolean mSuccess;
+
+    /**
+     * Whether or not the server no longer accepts the sync token
+     */
+    private boolean mTokenRejected;
+
+    /**
+     * The sync token to use for the next request
+     */
+    private String mSyncToken;
+
+    /**
+     * Capsules that were created or modified since the sync token
+     */
+    private List<CapsuleOwnership> mCapsules;
+
+    /**
+     * Sync IDs of Capsules that were deleted since the sync token
+     */
+    private List<Long> mDeletedSyncIds;
+
+    /**
+     * Constructor that wraps an HTTP response object and parses the response
+     *
+     * @param response HTTP response object
+     * @throws IOException
+     */
+    public OwnershipChangesResponse(HttpResponse response) throws IOException {
+        super(response);
+    }
+
+    /**
+     * Determines if the request was a success
+     *
+     * @return True if it is a success, false if it is not
+     */
+    public boolean isSuccess() {
+        return this.mSuccess;
+    }
+
+    /**
+     * Determines if the server rejected the sync token, in which case a full sync is needed
+     *
+     * @return True if the token was rejected, otherwise false
+     */
+    public boolean isTokenRejected() {
+        return this.mTokenRejected;
+    }
+
+    /**
+     * Gets the sync token to use for the next request
+     *
+     * @return The sync token
+     */
+    public String getSyncToken() {
+        return this.mSyncToken;
+    }
+
+    /**
+     * Gets the Capsules that were created or modified since the sync token
+     *
+     * @return The changed Capsules
+     */
+    public List<CapsuleOwnership> getCapsules() {
+        return this.mCapsules;
+    }
+
+    /**
+     * Gets the sync IDs of Capsules that were deleted since the sync token
+     *
+     * @return The deleted sync IDs
+     */
+    public List<Long> getDeletedSyncIds() {
+        return this.mDeletedSyncIds;
+    }
+
+    /**
+     * Parses the changes from the HTTP response
+     *
+     * @param response The HTTP response object
+     * @throws IOException
+     */
+    @Override
+    protected void parse(HttpResponse response) throws IOException {
+        this.mCapsules = new ArrayList<CapsuleOwnership>();
+        this.mDeletedSyncIds = new ArrayList<Long>();
+        if (response.getStatusLine() != null) {
+            int status = response.getStatusLine().getStatusCode();
+            this.mSuccess = status == HttpStatus.SC_OK;
+            this.mTokenRejected = status == HttpStatus.SC_GONE;
+        }
+        if (response.getEntity() != null) {
+            String body = EntityUtils.toString(response.getEntity());
+            try {
+                JSONObject jsonObject = new JSONObject(body);
+                this.mMessages = JSONParser.parseMessages(jsonObject);
+                if (this.mSuccess) {
+                    this.mSyncToken = JSONParser.parseSyncToken(jsonObject);
+                    this.mCapsules = JSONParser.parseOwnershipCollection(jsonObject);
+                    this.mDeletedSyncIds = JSONParser.parseDeletedSyncIds(jsonObject);
+                }
+            } catch (JSONException e) {
+                this.mSuccess = false;
+                this.mMessages = new ArrayList<String>();
+            }
+        }
+        // Without a new token the changes cannot be followed up on
+        if (this.mSyncToken == null) {
+            this.mSuccess = false;
+        }
+    }
+
+}
@@ -1,15 +1,21 @@
 package com.brettnamba.capsules.http.response;
 
+import android.util.MalformedJsonException;
+
 import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
 import com.brettnamba.capsules.util.JSONParser;
+import com.brettnamba.capsules.util.JSONStreamParser;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -48,7 +54,8 @@ public class OwnershipCollectionResponse extends ApiResponse {
     }
 
     /**
-     * Gets the Capsules from the response body
+     * Gets the Capsules from the response body.  The collection is empty if the response body
+     * could not be parsed completely.
      *
      * @return Capsules from the response body
      */
@@ -67,16 +74,63 @@ public class OwnershipCollectionResponse extends ApiResponse {
         if (response.getStatusLine() != null) {
             this.mSuccess = response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
         }
-        if (response.getEntity() != null) {
-            String body = EntityUtils.toString(response.getEntity());
-            try {
-                JSONObject jsonObject = new JSONObject(body);
-                this.mCapsules = JSONParser.parseOwnershipCollection(jsonObject);
-                this.mMessages = JSONParser.parseMessages(jsonObject);
-            } catch (JSONException e) {
-                this.mCapsules = new ArrayList<CapsuleOwnership>();
-                this.mMessages = new ArrayList<String>();
-            }
+        this.mCapsules = new ArrayList<CapsuleOwnership>();
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+        if (JSONStreamParser.isSupported()) {
+            this.parseStream(entity);
+        } else {
+            this.parseBody(entity);
+        }
+    }
+
+    /**
+     * Parses the Capsules as the response body is read, without holding the body as a String or
+     * a JSONObject tree.  The collection is all or nothing, so a response that breaks off part
+     * way through leaves no Capsules and is not a success.
+     *
+     * @param entity The response entity
+     * @throws IOException
+     */
+    private void parseStream(HttpEntity entity) throws IOException {
+        JSONStreamParser.CapsuleConsumer<CapsuleOwnership> collector =
+                new JSONStreamParser.CapsuleConsumer<CapsuleOwnership>() {
+                    @Override
+                    public void onCapsule(CapsuleOwnership capsule) {
+                        OwnershipCollectionResponse.this.mCapsules.add(capsule);
+                    }
+                };
+        String charset = EntityUtils.getContentCharSet(entity);
+        try {
+            this.mMessages = JSONStreamParser.parseOwnershipCollection(
+                    new InputStreamReader(entity.getContent(), charset != null ? charset : HTTP.UTF_8),
+                    collector);
+        } catch (MalformedJsonException e) {
+            // The collection is incomplete, so none of it can be trusted
+            this.mSuccess = false;
+            this.mCapsules.clear();
+        } finally {
+            entity.consumeContent();
+        }
+    }
+
+    /**
+     * Reads the whole response body and then parses the Capsules from it
+     *
+     * @param entity The response entity
+     * @throws IOException
+     */
+    private void parseBody(HttpEntity entity) throws IOException {
+        String body = EntityUtils.toString(entity);
+        try {
+            JSONObject jsonObject = new JSONObject(body);
+            this.mCapsules = JSONParser.parseOwnershipCollection(jsonObject);
+            this.mMessages = JSONParser.parseMessages(jsonObject);
+        } catch (JSONException e) {
+            this.mCapsules = new ArrayList<CapsuleOwnership>();
+            this.mMessages = new ArrayList<String>();
         }
     }
 
@@ -0,0 +1,171 @@
+package com.brettnamba.capsules.http.response;
+
+import com.brettnamba.capsules.http.RequestContract;
+import com.brettnamba.capsules.util.JSONParser;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Models an HTTP response for a resumable upload session.  The response holds the ID of the
+ * session and the number of bytes the server has stored, which is where the next chunk starts.
+ */
+public class UploadResponse extends ApiResponse {
+
+    /**
+     * Whether or not the request was a success
+     */
+    private boolean mSuccess;
+
+    /**
+     * Whether or not the server handles resumable uploads
+     */
+    private boolean mSupported;
+
+    /**
+     * Whether or not the server rejected a chunk because it did not start at its offset
+     */
+    private boolean mOffsetConflict;
+
+    /**
+     * Whether or not the upload session no longer exists on the server
+     */
+    private boolean mExpired;
+
+    /**
+     * The ID of the upload session
+     */
+    private String mUploadId;
+
+    /**
+     * The number of bytes the server has stored.  Set by parse(), which runs from the super
+     * constructor before any field initializer of this class would.
+     */
+    private long mOffset;
+
+    /**
+     * Constructor that wraps an HTTP response object and parses the response
+     *
+     * @param response HTTP response object
+     * @throws IOException
+     */
+    public UploadResponse(HttpResponse response) throws IOException {
+        super(response);
+    }
+
+    /**
+     * Determines if the request was a success
+     *
+     * @return True if it is a success, false if it is not
+     */
+    public boolean isSuccess() {
+        return this.mSuccess;
+    }
+
+    /**
+     * Determines if the server handles resumable uploads.  If not, the file should be sent with
+     * the Capsule in a single request instead.
+     *
+     * @return True if resumable uploads are supported, otherwise false
+     */
+    public boolean isSupported() {
+        return this.mSupported;
+    }
+
+    /**
+     * Determines if a chunk was rejected because the server had stored a different number of
+     * bytes than the chunk assumed.  The offset should be requested again before continuing.
+     *
+     * @return True if the offsets did not match
+     */
+    public boolean isOffsetConflict() {
+        return this.mOffsetConflict;
+    }
+
+    /**
+     * Determines if the upload session no longer exists, in which case a new one must be started
+     *
+     * @return True if the session has expired
+     */
+    public boolean isExpired() {
+        return this.mExpired;
+    }
+
+    /**
+     * Gets the ID of the upload session
+     *
+     * @return The upload ID
+     */
+    public String getUploadId() {
+        return this.mUploadId;
+    }
+
+    /**
+     * Gets the number of bytes the server has acknowledged
+     *
+     * @return The offset of the next chunk, or -1 if the response did not include one
+     */
+    public long getOffset() {
+        return this.mOffset;
+    }
+
+    /**
+     * Parses the upload session from the HTTP response
+     *
+     * @param response The HTTP response object
+     * @throws IOException
+     */
+    @Override
+    protected void parse(HttpResponse response) throws IOException {
+        this.mOffset = -1;
+        this.mSupported = true;
+        if (response.getStatusLine() != null) {
+            int status = response.getStatusLine().getStatusCode();
+            this.mSuccess = status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED;
+            this.mSupported = status != HttpStatus.SC_METHOD_NOT_ALLOWED
+                    && status != HttpStatus.SC_NOT_IMPLEMENTED;
+            this.mOffsetConflict = status == HttpStatus.SC_CONFLICT;
+            this.mExpired = status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_GONE;
+        }
+        if (response.getEntity() != null) {
+            String body = EntityUtils.toString(response.getEntity());
+            try {
+                JSONObject jsonObject = new JSONObject(body);
+                this.mMessages = JSONParser.parseMessages(jsonObject);
+                this.parseUpload(jsonObject);
+            } catch (JSONException e) {
+                this.mSuccess = false;
+                this.mMessages = new ArrayList<String>();
+            }
+        }
+        if (this.mSuccess && this.mOffset < 0) {
+            this.mSuccess = false;
+        }
+    }
+
+    /**
+     * Parses the upload session from the data object
+     *
+     * @param json The JSON response body
+     * @throws JSONException
+     */
+    private void parseUpload(JSONObject json) throws JSONException {
+        if (!json.has(RequestContract.Field.DATA)) {
+            return;
+        }
+        JSONObject data = json.getJSONObject(RequestContract.Field.DATA);
+        if (!data.has(RequestContract.Field.UPLOAD)) {
+            return;
+        }
+        JSONObject upload = data.getJSONObject(RequestContract.Field.UPLOAD);
+        this.mUploadId = upload.optString(RequestContract.Field.UPLOAD_ID, null);
+        this.mOffset = upload.optLong(RequestContract.Field.UPLOAD_OFFSET, -1);
+    }
+
+}
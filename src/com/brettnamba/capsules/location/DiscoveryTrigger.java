@@ -0,0 +1,162 @@
+package com.brettnamba.capsules.location;
+
+/**
+ * Decides whether a location fix is worth a discovery request.
+ *
+ * The location of the last issued request is kept as an anchor.  A new request is only issued
+ * once the user has moved a fraction of the discovery radius away from the anchor, or once the
+ * anchor has gone stale.  The distance has to be covered even after subtracting the accuracy of
+ * the fix, so GPS jitter around a stationary user does not count as movement, and a fix that is
+ * less accurate than the discovery radius itself is never trusted to have moved.
+ *
+ * The class has no Android dependencies, so the time is passed in by the caller.
+ *
+ * @author Brett Namba
+ */
+public class DiscoveryTrigger {
+
+    /**
+     * The default fraction of the radius the user has to move
+     */
+    public static final double DEFAULT_MOVE_FRACTION = 0.25;
+
+    /**
+     * The default time after which the anchor is stale, in milliseconds
+     */
+    public static final long DEFAULT_STALE_AFTER = 2 * 60 * 1000;
+
+    /**
+     * The discovery radius in meters
+     */
+    private final double mRadius;
+
+    /**
+     * The distance from the anchor that triggers a request, in meters
+     */
+    private final double mThreshold;
+
+    /**
+     * The time after which the anchor is stale, in milliseconds
+     */
+    private final long mStaleAfter;
+
+    /**
+     * Whether there is an anchor
+     */
+    private boolean mHasAnchor;
+
+    /**
+     * The latitude of the anchor
+     */
+    private double mAnchorLat;
+
+    /**
+     * The longitude of the anchor
+     */
+    private double mAnchorLng;
+
+    /**
+     * The time of the anchor in milliseconds
+     */
+    private long mAnchorTime;
+
+    /**
+     * The number of requests that were issued
+     */
+    private int mIssuedCount;
+
+    /**
+     * The number of fixes that did not issue a request
+     */
+    private int mSuppressedCount;
+
+    /**
+     * Constructor
+     *
+     * @param radius       The discovery radius in meters
+     * @param moveFraction The fraction of the radius the user has to move
+     * @param staleAfter   The time after which the anchor is stale, in milliseconds
+     */
+    public DiscoveryTrigger(double radius, double moveFraction, long staleAfter) {
+        this.mRadius = radius;
+        this.mThreshold = radius * moveFraction;
+        this.mStaleAfter = staleAfter;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param radius The discovery radius in meters
+     */
+    public DiscoveryTrigger(double radius) {
+        this(radius, DEFAULT_MOVE_FRACTION, DEFAULT_STALE_AFTER);
+    }
+
+    /**
+     * Checks whether a location fix should issue a discovery request.  A fix that should not is
+     * counted as suppressed.
+     *
+     * @param lat      The latitude of the fix
+     * @param lng      The longitude of the fix
+     * @param accuracy The accuracy of the fix in meters, or 0 if it is unknown
+     * @param time     The current time in milliseconds
+     * @return True if a request should be issued
+     */
+    public synchronized boolean shouldDiscover(double lat, double lng, float accuracy, long time) {
+        if (!this.mHasAnchor || time - this.mAnchorTime >= this.mStaleAfter
+                || time < this.mAnchorTime) {
+            return true;
+        }
+        // Only trust the movement if the fix is accurate enough and it is beyond the jitter
+        if (accuracy <= this.mRadius) {
+            double moved = Geo.distance(this.mAnchorLat, this.mAnchorLng, lat, lng);
+            if (moved - Math.max(accuracy, 0) >= this.mThreshold) {
+                return true;
+            }
+        }
+        this.mSuppressedCount++;
+        return false;
+    }
+
+    /**
+     * Records that a discovery request was issued for a location, which becomes the new anchor
+     *
+     * @param lat  The latitude of the request
+     * @param lng  The longitude of the request
+     * @param time The current time in milliseconds
+     */
+    public synchronized void onDiscoveryIssued(double lat, double lng, long time) {
+        this.mHasAnchor = true;
+        this.mAnchorLat = lat;
+        this.mAnchorLng = lng;
+        this.mAnchorTime = time;
+        this.mIssuedCount++;
+    }
+
+    /**
+     * Forgets the anchor so that the next fix issues a request.  Used when the last request did
+     * not complete.
+     */
+    public synchronized void reset() {
+        this.mHasAnchor = false;
+    }
+
+    /**
+     * Gets the number of requests that were issued
+     *
+     * @return The number of issued requests
+     */
+    public synchronized int getIssuedCount() {
+        return this.mIssuedCount;
+    }
+
+    /**
+     * Gets the number of fixes that did not issue a request
+     *
+     * @return The number of suppressed fixes
+     */
+    public synchronized int getSuppressedCount() {
+        return this.mSuppressedCount;
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.brettnamba.capsules.location;
+
+/**
+ * Utility class for calculations on latitude and longitude coordinates
+ *
+ * @author Brett Namba
+ */
+public final class Geo {
+
+    /**
+     * The mean radius of the Earth in meters
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private Geo() {
+    }
+
+    /**
+     * Gets the great-circle distance between two coordinates using the haversine formula
+     *
+     * @param lat1 The latitude of the first coordinate
+     * @param lng1 The longitude of the first coordinate
+     * @param lat2 The latitude of the second coordinate
+     * @param lng2 The longitude of the second coordinate
+     * @return The distance in meters
+     */
+    public static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+}
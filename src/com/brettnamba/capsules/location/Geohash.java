@@ -0,0 +1,239 @@
+package com.brettnamba.capsules.location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utility class for encoding coordinates as geohashes.
+ *
+ * A geohash names a rectangular cell of the map.  Each character narrows the cell down, so
+ * every point inside a cell has a geohash that starts with the cell's geohash, and cells of the
+ * same precision tile the map without overlapping.
+ *
+ * @author Brett Namba
+ */
+public final class Geohash {
+
+    /**
+     * The longest geohash that is encoded, which names a cell a few centimeters across
+     */
+    public static final int MAX_PRECISION = 12;
+
+    /**
+     * The characters of the base 32 alphabet used by geohashes
+     */
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private Geohash() {
+    }
+
+    /**
+     * Encodes a coordinate
+     *
+     * @param lat       The latitude
+     * @param lng       The longitude
+     * @param precision The number of characters in the geohash
+     * @return The geohash of the cell that contains the coordinate
+     */
+    public static String encode(double lat, double lng, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLng = -180, maxLng = 180;
+        StringBuilder geohash = new StringBuilder(precision);
+        boolean even = true;
+        int bit = 0;
+        int ch = 0;
+        while (geohash.length() < precision) {
+            // Alternate between halving the longitude and the latitude range
+            if (even) {
+                double mid = (minLng + maxLng) / 2;
+                if (lng >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLng = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (lat >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            even = !even;
+            // Every five bits make a character
+            if (++bit == 5) {
+                geohash.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return geohash.toString();
+    }
+
+    /**
+     * Decodes the bounds of a cell
+     *
+     * @param geohash The geohash of the cell
+     * @return The bounds as {south, west, north, east}
+     */
+    public static double[] bounds(String geohash) {
+        double minLat = -90, maxLat = 90;
+        double minLng = -180, maxLng = 180;
+        boolean even = true;
+        for (int i = 0; i < geohash.length(); i++) {
+            int ch = BASE32.indexOf(geohash.charAt(i));
+            if (ch < 0) {
+                throw new IllegalArgumentException("Invalid geohash: " + geohash);
+            }
+            for (int mask = 16; mask > 0; mask >>= 1) {
+                if (even) {
+                    double mid = (minLng + maxLng) / 2;
+                    if ((ch & mask) != 0) {
+                        minLng = mid;
+                    } else {
+                        maxLng = mid;
+                    }
+                } else {
+                    double mid = (minLat + maxLat) / 2;
+                    if ((ch & mask) != 0) {
+                        minLat = mid;
+                    } else {
+                        maxLat = mid;
+                    }
+                }
+                even = !even;
+            }
+        }
+        return new double[]{minLat, minLng, maxLat, maxLng};
+    }
+
+    /**
+     * Gets the cells that intersect the box around a circle, which includes every cell that
+     * intersects the circle
+     *
+     * @param lat       The latitude of the center
+     * @param lng       The longitude of the center
+     * @param radius    The radius in meters
+     * @param precision The precision of the cells
+     * @return The geohashes of the cells
+     */
+    public static List<String> cover(double lat, double lng, double radius, int precision) {
+        double[] box = Geohash.boundingBox(lat, lng, radius);
+        return Geohash.cover(box[0], box[1], box[2], box[3], precision);
+    }
+
+    /**
+     * Gets the cells that intersect a box
+     *
+     * @param south     The southern latitude of the box
+     * @param west      The western longitude of the box
+     * @param north     The northern latitude of the box
+     * @param east      The eastern longitude of the box
+     * @param precision The precision of the cells
+     * @return The geohashes of the cells
+     */
+    public static List<String> cover(double south, double west, double north, double east,
+                                     int precision) {
+        // Every cell of a precision has the same size in degrees
+        double[] cell = Geohash.bounds(Geohash.encode(south, west, precision));
+        double cellHeight = cell[2] - cell[0];
+        double cellWidth = cell[3] - cell[1];
+
+        List<String> geohashes = new ArrayList<String>();
+        // Step through the box one cell at a time from the cell containing the south-west corner
+        for (double cellLat = cell[0]; cellLat <= north && cellLat < 90; cellLat += cellHeight) {
+            for (double cellLng = cell[1]; cellLng <= east && cellLng < 180; cellLng += cellWidth) {
+                // Encode the middle of the cell to stay clear of rounding at its edges
+                geohashes.add(Geohash.encode(cellLat + cellHeight / 2, cellLng + cellWidth / 2,
+                        precision));
+            }
+        }
+        return geohashes;
+    }
+
+    /**
+     * Gets the longest precision whose cells cover a box with no more than the given number of
+     * cells, without listing them
+     *
+     * @param south    The southern latitude of the box
+     * @param west     The western longitude of the box
+     * @param north    The northern latitude of the box
+     * @param east     The eastern longitude of the box
+     * @param maxCells The largest number of cells
+     * @return The precision, which is at least 1
+     */
+    public static int precisionFor(double south, double west, double north, double east,
+                                   int maxCells) {
+        for (int precision = MAX_PRECISION; precision > 1; precision--) {
+            double[] cell = Geohash.bounds(Geohash.encode(south, west, precision));
+            // The box may start part way into a cell, so allow for one more row and column
+            long rows = (long) Math.ceil((north - south) / (cell[2] - cell[0])) + 1;
+            long columns = (long) Math.ceil((east - west) / (cell[3] - cell[1])) + 1;
+            if (rows * columns <= maxCells) {
+                return precision;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Checks if the center of a cell lies within a circle
+     *
+     * @param geohash The geohash of the cell
+     * @param lat     The latitude of the center of the circle
+     * @param lng     The longitude of the center of the circle
+     * @param radius  The radius in meters
+     * @return True if the center of the cell is within the radius
+     */
+    public static boolean isCenterWithin(String geohash, double lat, double lng, double radius) {
+        double[] b = Geohash.bounds(geohash);
+        return Geo.distance(lat, lng, (b[0] + b[2]) / 2, (b[1] + b[3]) / 2) <= radius;
+    }
+
+    /**
+     * Checks if a cell overlaps a circle
+     *
+     * @param geohash The geohash of the cell
+     * @param lat     The latitude of the center
+     * @param lng     The longitude of the center
+     * @param radius  The radius in meters
+     * @return True if the point of the cell closest to the center is within the radius
+     */
+    public static boolean intersects(String geohash, double lat, double lng, double radius) {
+        double[] b = Geohash.bounds(geohash);
+        double closestLat = Math.max(b[0], Math.min(lat, b[2]));
+        double closestLng = Math.max(b[1], Math.min(lng, b[3]));
+        return Geo.distance(lat, lng, closestLat, closestLng) <= radius;
+    }
+
+    /**
+     * Gets the box around a circle.  A circle that reaches a pole wraps around it, so its box
+     * spans every longitude.
+     *
+     * @param lat    The latitude of the center
+     * @param lng    The longitude of the center
+     * @param radius The radius in meters
+     * @return The box as {south, west, north, east}
+     */
+    public static double[] boundingBox(double lat, double lng, double radius) {
+        double dLat = Math.toDegrees(radius / Geo.EARTH_RADIUS);
+        if (lat + dLat >= 90 || lat - dLat <= -90) {
+            return new double[]{Math.max(lat - dLat, -90), -180, Math.min(lat + dLat, 90), 180};
+        }
+        double dLng = Math.toDegrees(radius / (Geo.EARTH_RADIUS * Math.cos(Math.toRadians(lat))));
+        return new double[]{
+                Math.max(lat - dLat, -90),
+                Math.max(lng - dLng, -180),
+                Math.min(lat + dLat, 90),
+                Math.min(lng + dLng, 180)
+        };
+    }
+
+}
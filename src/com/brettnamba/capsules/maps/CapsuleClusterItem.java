@@ -0,0 +1,53 @@
+package com.brettnamba.capsules.maps;
+
+import com.brettnamba.capsules.dataaccess.Capsule;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.ClusterItem;
+
+/**
+ * Places a Capsule on the map so it can be clustered with the Capsules around it
+ *
+ * @author Brett Namba
+ */
+public class CapsuleClusterItem implements ClusterItem {
+
+    /**
+     * The Capsule
+     */
+    private final Capsule mCapsule;
+
+    /**
+     * The position of the Capsule
+     */
+    private final LatLng mPosition;
+
+    /**
+     * Constructor
+     *
+     * @param capsule The Capsule
+     */
+    public CapsuleClusterItem(Capsule capsule) {
+        this.mCapsule = capsule;
+        this.mPosition = new LatLng(capsule.getLatitude(), capsule.getLongitude());
+    }
+
+    /**
+     * Gets the Capsule
+     *
+     * @return The Capsule
+     */
+    public Capsule getCapsule() {
+        return this.mCapsule;
+    }
+
+    /**
+     * Gets the position of the Capsule
+     *
+     * @return The position
+     */
+    @Override
+    public LatLng getPosition() {
+        return this.mPosition;
+    }
+
+}
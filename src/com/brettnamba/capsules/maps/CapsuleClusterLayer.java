@@ -0,0 +1,235 @@
+package com.brettnamba.capsules.maps;
+
+import android.content.Context;
+
+import com.brettnamba.capsules.dataaccess.Capsule;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.maps.android.clustering.ClusterManager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows Capsules on the GoogleMap as clusters.
+ *
+ * The ClusterManager computes the clusters on a background thread and animates them splitting
+ * and merging as the zoom changes.  Only the Capsules inside the visible region, plus a margin
+ * around it, are handed to the ClusterManager, so a dense area far off screen does not create
+ * any markers.  The region is reloaded when the camera moves outside of the margin.
+ *
+ * The items are keyed by the sync ID of their Capsule, so a Capsule that is added again replaces
+ * its item instead of stacking a second marker on top of it.
+ *
+ * @author Brett Namba
+ */
+public class CapsuleClusterLayer implements GoogleMap.OnCameraChangeListener {
+
+    /**
+     * The margin loaded around the visible region, as a fraction of its width and height
+     */
+    static final double VIEWPORT_PADDING = 0.5;
+
+    /**
+     * The GoogleMap
+     */
+    private final GoogleMap mMap;
+
+    /**
+     * Clusters the Capsules and renders the markers
+     */
+    private final ClusterManager<CapsuleClusterItem> mClusterManager;
+
+    /**
+     * Every Capsule on the layer keyed by sync ID, including those outside of the loaded region
+     */
+    private final Map<Long, CapsuleClusterItem> mItems = new LinkedHashMap<Long, CapsuleClusterItem>();
+
+    /**
+     * Whether a region has been loaded since the camera first moved
+     */
+    private boolean mRegionLoaded;
+
+    /**
+     * The region whose Capsules were handed to the ClusterManager, or null if every Capsule was
+     */
+    private LatLngBounds mLoadedBounds;
+
+    /**
+     * The zoom level of the last camera change
+     */
+    private float mZoom = -1;
+
+    /**
+     * Constructor
+     *
+     * @param context The current Context
+     * @param map     The GoogleMap
+     */
+    public CapsuleClusterLayer(Context context, GoogleMap map) {
+        this.mMap = map;
+        this.mClusterManager = new ClusterManager<CapsuleClusterItem>(context, map);
+        // Listen to the camera to reload the region and to the markers on behalf of the clusters
+        map.setOnCameraChangeListener(this);
+        map.setOnMarkerClickListener(this.mClusterManager);
+    }
+
+    /**
+     * Adds Capsules to the layer, replacing any items with the same sync IDs
+     *
+     * @param capsules The Capsules
+     */
+    public void addCapsules(List<Capsule> capsules) {
+        CapsuleRegistry.Diff diff = new CapsuleRegistry.Diff();
+        for (Capsule capsule : capsules) {
+            if (this.mItems.containsKey(capsule.getSyncId())) {
+                diff.updated.add(capsule);
+            } else {
+                diff.added.add(capsule);
+            }
+        }
+        this.apply(diff);
+    }
+
+    /**
+     * Applies the changes a discovery made to the CapsuleRegistry.  Items that did not change
+     * keep their markers.
+     *
+     * @param diff The changes
+     */
+    public void apply(CapsuleRegistry.Diff diff) {
+        boolean changed = false;
+        for (Capsule capsule : diff.removed) {
+            CapsuleClusterItem item = this.mItems.remove(capsule.getSyncId());
+            changed |= item != null && this.isLoaded(item);
+        }
+        for (Capsule capsule : diff.updated) {
+            CapsuleClusterItem item = new CapsuleClusterItem(capsule);
+            CapsuleClusterItem previous = this.mItems.put(capsule.getSyncId(), item);
+            changed |= this.isLoaded(item) || (previous != null && this.isLoaded(previous));
+        }
+
+        // Removing single items is not supported by every clustering algorithm, so reload the
+        // region if an item in it was removed or replaced.  New items are simply added.
+        List<CapsuleClusterItem> added = new ArrayList<CapsuleClusterItem>();
+        for (Capsule capsule : diff.added) {
+            CapsuleClusterItem item = new CapsuleClusterItem(capsule);
+            this.mItems.put(capsule.getSyncId(), item);
+            if (this.isLoaded(item)) {
+                added.add(item);
+            }
+        }
+        if (changed) {
+            this.reload();
+        } else if (!added.isEmpty()) {
+            this.mClusterManager.addItems(added);
+        } else {
+            return;
+        }
+        this.mClusterManager.cluster();
+    }
+
+    /**
+     * Removes every Capsule from the layer
+     */
+    public void clear() {
+        this.mItems.clear();
+        this.mClusterManager.clearItems();
+        this.mClusterManager.cluster();
+    }
+
+    /**
+     * Reloads the region if the camera has moved outside of it and passes the change on to the
+     * ClusterManager, which clusters again when the zoom changes
+     *
+     * @param position The new camera position
+     */
+    @Override
+    public void onCameraChange(CameraPosition position) {
+        LatLngBounds visible = this.mMap.getProjection().getVisibleRegion().latLngBounds;
+        boolean reload;
+        if (!this.mRegionLoaded) {
+            reload = true;
+        } else if (this.mLoadedBounds == null) {
+            // Everything is loaded while the whole world is in view, until the zoom changes
+            reload = position.zoom != this.mZoom;
+        } else {
+            reload = !this.mLoadedBounds.contains(visible.southwest)
+                    || !this.mLoadedBounds.contains(visible.northeast);
+        }
+        if (reload) {
+            this.load(visible);
+        }
+        this.mClusterManager.onCameraChange(position);
+        // The ClusterManager ignores changes that keep the zoom, so cluster the new region here
+        if (reload && position.zoom == this.mZoom) {
+            this.mClusterManager.cluster();
+        }
+        this.mZoom = position.zoom;
+    }
+
+    /**
+     * Hands the Capsules around the visible region to the ClusterManager
+     *
+     * @param visible The visible region
+     */
+    private void load(LatLngBounds visible) {
+        this.mRegionLoaded = true;
+        this.mLoadedBounds = CapsuleClusterLayer.pad(visible);
+        this.reload();
+    }
+
+    /**
+     * Hands the Capsules in the loaded region to the ClusterManager again
+     */
+    private void reload() {
+        List<CapsuleClusterItem> loaded = new ArrayList<CapsuleClusterItem>();
+        for (CapsuleClusterItem item : this.mItems.values()) {
+            if (this.isLoaded(item)) {
+                loaded.add(item);
+            }
+        }
+        this.mClusterManager.clearItems();
+        this.mClusterManager.addItems(loaded);
+    }
+
+    /**
+     * Checks if an item is in the loaded region
+     *
+     * @param item The item
+     * @return True if it is in the loaded region
+     */
+    private boolean isLoaded(CapsuleClusterItem item) {
+        return this.mLoadedBounds == null || this.mLoadedBounds.contains(item.getPosition());
+    }
+
+    /**
+     * Adds the margin to the visible region
+     *
+     * @param visible The visible region
+     * @return The padded region, or null if it would wrap around the world
+     */
+    private static LatLngBounds pad(LatLngBounds visible) {
+        double latSpan = visible.northeast.latitude - visible.southwest.latitude;
+        double lngSpan = visible.northeast.longitude - visible.southwest.longitude;
+        if (lngSpan < 0) {
+            // The region crosses the antimeridian
+            lngSpan += 360;
+        }
+        double latPadding = latSpan * VIEWPORT_PADDING;
+        double lngPadding = lngSpan * VIEWPORT_PADDING;
+        if (lngSpan + 2 * lngPadding >= 360) {
+            return null;
+        }
+        return new LatLngBounds(
+                new LatLng(Math.max(visible.southwest.latitude - latPadding, -90),
+                        visible.southwest.longitude - lngPadding),
+                new LatLng(Math.min(visible.northeast.latitude + latPadding, 90),
+                        visible.northeast.longitude + lngPadding));
+    }
+
+}
@@ -0,0 +1,232 @@
+package com.brettnamba.capsules.maps;
+
+import com.brettnamba.capsules.dataaccess.Capsule;
+import com.brettnamba.capsules.location.Geo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the Capsules shown on the map, keyed by sync ID.
+ *
+ * Each discovery result is compared against the Capsules already held, so a Capsule that is
+ * discovered again keeps its marker and only the differences are applied to the map.  The
+ * result is complete for the circle it was discovered in, so a held Capsule inside that circle
+ * that is missing from the result is removed.  Capsules far away from the user are evicted so
+ * the collection does not grow without bound.
+ *
+ * @author Brett Namba
+ */
+public class CapsuleRegistry {
+
+    /**
+     * The changes a discovery result made to the registry
+     */
+    public static class Diff {
+
+        /**
+         * The Capsules that were not held before
+         */
+        public final List<Capsule> added = new ArrayList<Capsule>();
+
+        /**
+         * The Capsules that were held before but have changed
+         */
+        public final List<Capsule> updated = new ArrayList<Capsule>();
+
+        /**
+         * The Capsules that are no longer held
+         */
+        public final List<Capsule> removed = new ArrayList<Capsule>();
+
+        /**
+         * Checks if the registry was changed
+         *
+         * @return True if nothing was added, updated or removed
+         */
+        public boolean isEmpty() {
+            return this.added.isEmpty() && this.updated.isEmpty() && this.removed.isEmpty();
+        }
+
+    }
+
+    /**
+     * The default distance from the user beyond which Capsules are evicted, in meters
+     */
+    public static final double DEFAULT_EVICTION_DISTANCE = 2000;
+
+    /**
+     * The default number of Capsules that are held
+     */
+    public static final int DEFAULT_MAX_CAPSULES = 500;
+
+    /**
+     * The Capsules keyed by sync ID, in the order they were added
+     */
+    private final Map<Long, Capsule> mCapsules = new LinkedHashMap<Long, Capsule>();
+
+    /**
+     * The distance from the user beyond which Capsules are evicted, in meters
+     */
+    private final double mEvictionDistance;
+
+    /**
+     * The number of Capsules that are held
+     */
+    private final int mMaxCapsules;
+
+    /**
+     * Constructor
+     *
+     * @param evictionDistance The distance from the user beyond which Capsules are evicted
+     * @param maxCapsules      The number of Capsules that are held
+     */
+    public CapsuleRegistry(double evictionDistance, int maxCapsules) {
+        this.mEvictionDistance = evictionDistance;
+        this.mMaxCapsules = maxCapsules;
+    }
+
+    /**
+     * Constructor
+     */
+    public CapsuleRegistry() {
+        this(DEFAULT_EVICTION_DISTANCE, DEFAULT_MAX_CAPSULES);
+    }
+
+    /**
+     * Applies a discovery result and evicts the Capsules that are too far away from the user
+     *
+     * @param capsules The Capsules that were discovered
+     * @param lat      The latitude the Capsules were discovered at
+     * @param lng      The longitude the Capsules were discovered at
+     * @param radius   The radius the Capsules were discovered in, in meters
+     * @return The changes that were made
+     */
+    public Diff apply(List<Capsule> capsules, double lat, double lng, double radius) {
+        Diff diff = new Diff();
+        Map<Long, Capsule> discovered = new LinkedHashMap<Long, Capsule>();
+        for (Capsule capsule : capsules) {
+            discovered.put(capsule.getSyncId(), capsule);
+        }
+
+        // Remove the Capsules in the circle that the result no longer has
+        Iterator<Capsule> iterator = this.mCapsules.values().iterator();
+        while (iterator.hasNext()) {
+            Capsule capsule = iterator.next();
+            if (!discovered.containsKey(capsule.getSyncId())
+                    && Geo.distance(lat, lng, capsule.getLatitude(), capsule.getLongitude()) <= radius) {
+                iterator.remove();
+                diff.removed.add(capsule);
+            }
+        }
+
+        // Add the new Capsules and replace the ones that changed
+        for (Capsule capsule : discovered.values()) {
+            Capsule held = this.mCapsules.get(capsule.getSyncId());
+            if (held == null) {
+                this.mCapsules.put(capsule.getSyncId(), capsule);
+                diff.added.add(capsule);
+            } else if (CapsuleRegistry.isChanged(held, capsule)) {
+                this.mCapsules.put(capsule.getSyncId(), capsule);
+                diff.updated.add(capsule);
+            }
+        }
+
+        // Make room by dropping the Capsules far away from the user
+        diff.removed.addAll(this.evict(lat, lng));
+        // A Capsule that was added and then evicted never reaches the map
+        diff.added.removeAll(diff.removed);
+        diff.updated.removeAll(diff.removed);
+
+        return diff;
+    }
+
+    /**
+     * Adds Capsules without comparing them to a discovery circle, such as when they are restored
+     *
+     * @param capsules The Capsules
+     */
+    public void addAll(List<Capsule> capsules) {
+        for (Capsule capsule : capsules) {
+            this.mCapsules.put(capsule.getSyncId(), capsule);
+        }
+    }
+
+    /**
+     * Gets the held Capsules
+     *
+     * @return The Capsules in the order they were added
+     */
+    public ArrayList<Capsule> getCapsules() {
+        return new ArrayList<Capsule>(this.mCapsules.values());
+    }
+
+    /**
+     * Gets the number of held Capsules
+     *
+     * @return The number of Capsules
+     */
+    public int size() {
+        return this.mCapsules.size();
+    }
+
+    /**
+     * Evicts the Capsules beyond the eviction distance, and then the farthest Capsules until no
+     * more than the maximum are held
+     *
+     * @param lat The latitude of the user
+     * @param lng The longitude of the user
+     * @return The evicted Capsules
+     */
+    private List<Capsule> evict(final double lat, final double lng) {
+        List<Capsule> evicted = new ArrayList<Capsule>();
+        Iterator<Capsule> iterator = this.mCapsules.values().iterator();
+        while (iterator.hasNext()) {
+            Capsule capsule = iterator.next();
+            if (Geo.distance(lat, lng, capsule.getLatitude(), capsule.getLongitude())
+                    > this.mEvictionDistance) {
+                iterator.remove();
+                evicted.add(capsule);
+            }
+        }
+
+        if (this.mCapsules.size() > this.mMaxCapsules) {
+            List<Capsule> byDistance = new ArrayList<Capsule>(this.mCapsules.values());
+            Collections.sort(byDistance, new Comparator<Capsule>() {
+                @Override
+                public int compare(Capsule lhs, Capsule rhs) {
+                    return Double.compare(
+                            Geo.distance(lat, lng, rhs.getLatitude(), rhs.getLongitude()),
+                            Geo.distance(lat, lng, lhs.getLatitude(), lhs.getLongitude()));
+                }
+            });
+            for (int i = 0; this.mCapsules.size() > this.mMaxCapsules; i++) {
+                Capsule capsule = byDistance.get(i);
+                this.mCapsules.remove(capsule.getSyncId());
+                evicted.add(capsule);
+            }
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Checks if a discovered Capsule differs from the held one in anything the map shows
+     *
+     * @param held       The held Capsule
+     * @param discovered The discovered Capsule
+     * @return True if it has changed
+     */
+    private static boolean isChanged(Capsule held, Capsule discovered) {
+        String heldName = held.getName();
+        return held.getLatitude() != discovered.getLatitude()
+                || held.getLongitude() != discovered.getLongitude()
+                || (heldName == null ? discovered.getName() != null : !heldName.equals(discovered.getName()));
+    }
+
+}
@@ -1,6 +1,9 @@
 package com.brettnamba.capsules.os;
 
+import android.accounts.Account;
+
 import com.brettnamba.capsules.http.response.CapsuleOpenResponse;
+import com.brettnamba.capsules.provider.TileCache;
 import com.brettnamba.tomoeame.os.AsyncListenerTask;
 
 /**
@@ -13,6 +16,16 @@ public class CapsuleOpenTask extends AsyncListenerTask<String, Void, CapsuleOpen
      */
     private AsyncTaskListeners.CapsuleOpenTaskListener mListener;
 
+    /**
+     * The cache of undiscovered Capsules that an opened Capsule is removed from
+     */
+    private TileCache mTileCache;
+
+    /**
+     * The Account the Capsule is opened for
+     */
+    private Account mAccount;
+
     /**
      * Constructor that sets the listener
      *
@@ -22,6 +35,19 @@ public class CapsuleOpenTask extends AsyncListenerTask<String, Void, CapsuleOpen
         this.setListener(listener);
     }
 
+    /**
+     * Constructor that sets the listener and the cache the opened Capsule is removed from
+     *
+     * @param listener  The listener that handles the callbacks
+     * @param tileCache The cache of undiscovered Capsules
+     * @param account   The Account the Capsule is opened for
+     */
+    public CapsuleOpenTask(TaskListener listener, TileCache tileCache, Account account) {
+        this(listener);
+        this.mTileCache = tileCache;
+        this.mAccount = account;
+    }
+
     /**
      * Sets the listener for the AsyncTask
      *
@@ -54,7 +80,12 @@ public class CapsuleOpenTask extends AsyncListenerTask<String, Void, CapsuleOpen
     @Override
     protected CapsuleOpenResponse doInBackground(String... params) {
         if (this.mListener != null) {
-            return this.mListener.duringCapsuleOpen(params);
+            CapsuleOpenResponse response = this.mListener.duringCapsuleOpen(params);
+            // The Capsule is no longer undiscovered, so stop showing it from the cache
+            if (response != null && response.getCapsule() != null && this.mTileCache != null) {
+                this.mTileCache.remove(this.mAccount, Long.parseLong(params[1]));
+            }
+            return response;
         }
         return null;
     }
@@ -100,6 +100,120 @@ public final class CapsuleContract {
 
     }
 
+    /**
+     * Interface containing Outbox database columns names
+     */
+    protected interface OutboxColumns {
+
+        /**
+         * Name of the column that stores the name of the Android Account the save is sent for
+         */
+        String ACCOUNT_NAME = "account_name";
+
+        /**
+         * Name of the column that stores the Capsule's name
+         */
+        String NAME = "name";
+
+        /**
+         * Name of the column that stores the Capsule's latitude
+         */
+        String LATITUDE = "lat";
+
+        /**
+         * Name of the column that stores the Capsule's longitude
+         */
+        String LONGITUDE = "lng";
+
+        /**
+         * Name of the column that stores the Memoir title
+         */
+        String MEMOIR_TITLE = "memoir_title";
+
+        /**
+         * Name of the column that stores the Memoir message
+         */
+        String MEMOIR_MESSAGE = "memoir_message";
+
+        /**
+         * Name of the column that stores the content URI of the Memoir file
+         */
+        String MEMOIR_FILE_URI = "memoir_file_uri";
+
+        /**
+         * Name of the column that stores the upload state of the save
+         */
+        String STATE = "state";
+
+        /**
+         * Name of the column that stores the number of failed attempts
+         */
+        String ATTEMPTS = "attempts";
+
+        /**
+         * Name of the column that stores when the save can next be attempted, in milliseconds
+         * since the epoch
+         */
+        String NEXT_ATTEMPT = "next_attempt";
+
+        /**
+         * Name of the column that stores the idempotency key sent with every attempt of the save
+         */
+        String SAVE_KEY = "save_key";
+
+    }
+
+    /**
+     * Interface containing Tile database columns names
+     */
+    protected interface TileColumns {
+
+        /**
+         * Name of the column that stores the name of the Android Account the tile was fetched for
+         */
+        String ACCOUNT_NAME = "account_name";
+
+        /**
+         * Name of the column that stores the geohash of the tile
+         */
+        String GEOHASH = "geohash";
+
+        /**
+         * Name of the column that stores when the tile was fetched, in milliseconds since the epoch
+         */
+        String FETCHED_AT = "fetched_at";
+
+    }
+
+    /**
+     * Interface containing Tile Capsule database columns names
+     */
+    protected interface TileCapsuleColumns {
+
+        /**
+         * Name of the column that stores the name of the Android Account the Capsule was
+         * discovered by
+         */
+        String ACCOUNT_NAME = "account_name";
+
+        /**
+         * Name of the column that stores the geohash of the tile containing the Capsule
+         */
+        String GEOHASH = "geohash";
+
+        /**
+         * Name of the column that stores the server's sync ID
+         */
+        String SYNC_ID = "sync_id";
+
+        /**
+         * Name of the column that stores when the Capsule was last returned by the server, in
+         * milliseconds since the epoch
+         */
+        String FETCHED_AT = "fetched_at";
+
+    }
+
     /**
      * Interface containing common database column names used for data syncing
      */
@@ -159,6 +273,23 @@ public final class CapsuleContract {
          */
         public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + "/" + CONTENT_URI_PATH);
 
+        /**
+         * Name of the column that stores the geohash of the Capsule's location.  It is kept up to
+         * date by the provider and indexed for spatial queries.
+         */
+        public static final String GEOHASH = "geohash";
+
+        /**
+         * The name of the content URI path for spatial queries
+         */
+        public static final String NEARBY_URI_PATH = "nearby";
+
+        /**
+         * The content URI for querying the Capsules within a radius or a bounding box, nearest
+         * first.  The area is given with the query parameters in Query.Parameters.
+         */
+        public static final Uri NEARBY_CONTENT_URI = Uri.withAppendedPath(CONTENT_URI, NEARBY_URI_PATH);
+
     }
 
     /**
@@ -252,6 +383,108 @@ public final class CapsuleContract {
 
     }
 
+    /**
+     * Implements all of the database columns for the Outbox table, which holds the Capsule saves
+     * that have not reached the server yet
+     */
+    public static final class Outbox implements BaseColumns, OutboxColumns {
+
+        /**
+         * Constructor
+         */
+        private Outbox() {
+        }
+
+        /**
+         * The Outbox table name
+         */
+        public static final String TABLE_NAME = "outbox";
+
+        /**
+         * The Outbox content URI path
+         */
+        public static final String CONTENT_URI_PATH = "outbox";
+
+        /**
+         * The Outbox content URI
+         */
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + "/" + CONTENT_URI_PATH);
+
+        /**
+         * State of a save that is waiting to be sent
+         */
+        public static final int STATE_PENDING = 0;
+
+        /**
+         * State of a save that is being sent
+         */
+        public static final int STATE_UPLOADING = 1;
+
+        /**
+         * State of a save that failed too many times and will not be retried
+         */
+        public static final int STATE_FAILED = 2;
+
+    }
+
+    /**
+     * Implements all of the database columns for the Tiles table, which records when each map
+     * tile was last fetched from the server
+     */
+    public static final class Tiles implements BaseColumns, TileColumns {
+
+        /**
+         * Constructor
+         */
+        private Tiles() {
+        }
+
+        /**
+         * The Tiles table name
+         */
+        public static final String TABLE_NAME = "tiles";
+
+        /**
+         * The Tiles content URI path
+         */
+        public static final String CONTENT_URI_PATH = "tiles";
+
+        /**
+         * The Tiles content URI
+         */
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + "/" + CONTENT_URI_PATH);
+
+    }
+
+    /**
+     * Implements all of the database columns for the Tile Capsules table, which caches the
+     * Capsules the server returned for each map tile
+     */
+    public static final class TileCapsules implements BaseColumns, CapsuleColumns, TileCapsuleColumns {
+
+        /**
+         * Constructor
+         */
+        private TileCapsules() {
+        }
+
+        /**
+         * The Tile Capsules table name
+         */
+        public static final String TABLE_NAME = "tile_capsules";
+
+        /**
+         * The Tile Capsules content URI path
+         */
+        public static final String CONTENT_URI_PATH = "tile_capsules";
+
+        /**
+         * The Tile Capsules content URI
+         */
+        public static final Uri CONTENT_URI = Uri.parse(SCHEME + AUTHORITY + "/" + CONTENT_URI_PATH);
+
+    }
+
     /**
      * Defines constants for parameters and values when querying the Capsule ContentProvider
      */
@@ -282,6 +515,47 @@ public final class CapsuleContract {
              * Query parameter that indicates when the dirty flag should be set or not
              */
             public static final String SET_DIRTY = "set_dirty";
+
+            /**
+             * Query parameter that indicates an INSERT should update the existing row instead
+             * if one with the same key already exists
+             */
+            public static final String UPSERT = "upsert";
+
+            /**
+             * Query parameter for the latitude of the center of a spatial query
+             */
+            public static final String LATITUDE = "lat";
+
+            /**
+             * Query parameter for the longitude of the center of a spatial query
+             */
+            public static final String LONGITUDE = "lng";
+
+            /**
+             * Query parameter for the radius of a spatial query in meters
+             */
+            public static final String RADIUS = "radius";
+
+            /**
+             * Query parameter for the southern latitude of a bounding box query
+             */
+            public static final String SOUTH = "south";
+
+            /**
+             * Query parameter for the western longitude of a bounding box query
+             */
+            public static final String WEST = "west";
+
+            /**
+             * Query parameter for the northern latitude of a bounding box query
+             */
+            public static final String NORTH = "north";
+
+            /**
+             * Query parameter for the eastern longitude of a bounding box query
+             */
+            public static final String EAST = "east";
         }
 
         /**
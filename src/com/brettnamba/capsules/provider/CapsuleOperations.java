@@ -14,10 +14,12 @@ import android.os.RemoteException;
 import com.brettnamba.capsules.dataaccess.Capsule;
 import com.brettnamba.capsules.dataaccess.CapsuleDiscovery;
 import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+import com.brettnamba.capsules.dataaccess.Memoir;
 
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * Builds Capsule-related ContentProviderOperations
@@ -110,6 +112,21 @@ public class CapsuleOperations {
         this.mOperations.add(builder.build());
     }
 
+    public void buildCapsuleUpsert(Capsule capsule, boolean withYield) {
+        // Build the URI
+        Uri uri = CapsuleOperations.appendUpsertQueryParam(CapsuleContract.Capsules.CONTENT_URI);
+        // Build the UPSERT operation, which always results in the URI of the Capsule row
+        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
+        ContentValues values = Capsules.buildContentValues(capsule);
+        if (capsule.getId() > 0) {
+            values.put(CapsuleContract.Capsules._ID, capsule.getId());
+        }
+        builder.withValues(values);
+        builder.withYieldAllowed(withYield);
+        // Add it to the collection
+        this.mOperations.add(builder.build());
+    }
+
     public void buildCapsuleDelete(Capsule capsule, boolean withYield) {
         // Build the Capsule URI
         Uri uri = ContentUris.withAppendedId(CapsuleContract.Capsules.CONTENT_URI, capsule.getId());
@@ -132,31 +149,25 @@ public class CapsuleOperations {
                 .build());
     }
 
-    public void buildCapsuleCleanup(long keepId, List<Long> duplicateIds) {
-        // Convert the extra IDs into selection arguments
-        String[] selectionArgs = CapsuleOperations.convertIdsToArguments(duplicateIds);
-        String preparedStatementParams = CapsuleOperations.buildPreparedStatementParameters(duplicateIds.size());
-        // UPDATE operation to change all Discoveries referencing the extra IDs to instead reference the keep ID
-        String discoverySelection = CapsuleContract.Discoveries.CAPSULE_ID
-                + " IN (" + preparedStatementParams + ")";
-        this.mOperations.add(ContentProviderOperation.newUpdate(CapsuleContract.Discoveries.CONTENT_URI)
-                .withSelection(discoverySelection, selectionArgs)
-                .withValue(CapsuleContract.Discoveries.CAPSULE_ID, keepId)
-                .withYieldAllowed(true)
+    public void buildCapsuleDeleteBySyncId(long syncId, boolean withYield) {
+        // Selects the local Capsule that has the sync ID
+        String capsuleIdSelect = "SELECT " + CapsuleContract.Capsules._ID + " FROM "
+                + CapsuleContract.Capsules.TABLE_NAME + " WHERE " + CapsuleContract.Capsules.SYNC_ID + " = ?";
+        String[] selectionArgs = new String[]{String.valueOf(syncId)};
+
+        // Build the Discovery DELETE operation
+        this.mOperations.add(ContentProviderOperation.newDelete(CapsuleContract.Discoveries.CONTENT_URI)
+                .withSelection(CapsuleContract.Discoveries.CAPSULE_ID + " IN (" + capsuleIdSelect + ")", selectionArgs)
+                .withYieldAllowed(withYield)
                 .build());
-        // UPDATE operation to change all Ownerships referencing the extra IDs to instead reference the keep ID
-        String ownershipSelection = CapsuleContract.Ownerships.CAPSULE_ID
-                + " IN (" + preparedStatementParams + ")";
-        this.mOperations.add(ContentProviderOperation.newUpdate(CapsuleContract.Ownerships.CONTENT_URI)
-                .withSelection(ownershipSelection, selectionArgs)
-                .withValue(CapsuleContract.Ownerships.CAPSULE_ID, keepId)
+        // Build the Ownership DELETE operation
+        this.mOperations.add(ContentProviderOperation.newDelete(CapsuleContract.Ownerships.CONTENT_URI)
+                .withSelection(CapsuleContract.Ownerships.CAPSULE_ID + " IN (" + capsuleIdSelect + ")", selectionArgs)
                 .withYieldAllowed(false)
                 .build());
-        // DELETE the duplicate Capsules
-        String capsuleSelection = CapsuleContract.Capsules._ID
-                + " IN (" + preparedStatementParams + ")";
+        // Build the Capsule DELETE operation
         this.mOperations.add(ContentProviderOperation.newDelete(CapsuleContract.Capsules.CONTENT_URI)
-                .withSelection(capsuleSelection, selectionArgs)
+                .withSelection(CapsuleContract.Capsules.SYNC_ID + " = ?", selectionArgs)
                 .withYieldAllowed(false)
                 .build());
     }
@@ -218,50 +229,37 @@ public class CapsuleOperations {
         this.mOperations.add(builder.build());
     }
 
-    public void buildDiscoveryCleanup(List<Long> duplicateIds) {
-        String selection = CapsuleContract.Discoveries._ID
-                + " IN (" + CapsuleOperations.buildPreparedStatementParameters(duplicateIds.size()) + ")";
-        String[] selectionArgs = CapsuleOperations.convertIdsToArguments(duplicateIds);
-        this.mOperations.add(ContentProviderOperation.newDelete(CapsuleContract.Discoveries.CONTENT_URI)
-                .withSelection(selection, selectionArgs)
-                .withYieldAllowed(true)
-                .build());
-    }
-
     public void buildDiscoverySave(Capsule capsule, CapsuleContract.SyncStateAction syncAction) {
         // Make sure there is a sync ID
         if (capsule.getSyncId() <= 0) {
             throw new InvalidParameterException("The Capsule does not have a sync ID");
         }
-        // Determine the best IDs for the Capsule
-        CapsuleOperations.Capsules.determineBestId(this.mResolver, this, capsule);
-        CapsuleOperations.Discoveries.determineBestId(this.mResolver, this, (CapsuleDiscovery) capsule);
-        // Build INSERT/UPDATE operations depending on if the Capsule and Discovery already exist
-        if (capsule.getId() > 0) {
-            // Capsule UPDATE
-            this.buildCapsuleUpdate(capsule, /* withYield */ true);
-            // Check if the Discovery exists
-            if (((CapsuleDiscovery) capsule).getDiscoveryId() > 0) {
-                // Discovery UPDATE
-                this.buildDiscoveryUpdate((CapsuleDiscovery) capsule, /* withYield */ false, syncAction);
-            } else {
-                // Discovery INSERT
-                this.buildDiscoveryInsert((CapsuleDiscovery) capsule, /* withYield */ false, syncAction);
-            }
-        } else {
-            // Capsule INSERT
-            this.buildCapsuleInsert(capsule, /* withYield */ true);
-            // Check if the Discovery exists
-            if (((CapsuleDiscovery) capsule).getDiscoveryId() > 0) {
-                // Discovery UPDATE
-                this.buildDiscoveryUpdate((CapsuleDiscovery) capsule, /* withYield */ false,
-                        this.getLastOperationIndex(), syncAction);
-            } else {
-                // Discovery INSERT
-                this.buildDiscoveryInsert((CapsuleDiscovery) capsule, /* withYield */ false,
-                        this.getLastOperationIndex(), syncAction);
-            }
+        // Capsule UPSERT keyed on the sync ID
+        this.buildCapsuleUpsert(capsule, /* withYield */ true);
+        // Discovery UPSERT keyed on the Capsule ID
+        this.buildDiscoveryUpsert((CapsuleDiscovery) capsule, /* withYield */ false,
+                this.getLastOperationIndex(), syncAction);
+    }
+
+    public void buildDiscoveryUpsert(CapsuleDiscovery discovery, boolean withYield,
+                                     int capsuleIdBackRefIndex, CapsuleContract.SyncStateAction syncAction) {
+        // Build the URI
+        Uri uri = CapsuleOperations.appendDirtyQueryParam(syncAction,
+                CapsuleOperations.appendUpsertQueryParam(CapsuleContract.Discoveries.CONTENT_URI));
+        // Build the UPSERT operation
+        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
+        ContentValues values = Discoveries.buildContentValues(discovery);
+        if (discovery.getDiscoveryId() > 0) {
+            values.put(CapsuleContract.Discoveries._ID, discovery.getDiscoveryId());
         }
+        builder.withValues(values);
+        builder.withYieldAllowed(withYield);
+        // Add the back value reference index for the Capsule ID
+        if (capsuleIdBackRefIndex >= 0) {
+            builder.withValueBackReference(CapsuleContract.Discoveries.CAPSULE_ID, capsuleIdBackRefIndex);
+        }
+        // Add it to the collection
+        this.mOperations.add(builder.build());
     }
 
     public void buildOwnershipInsert(CapsuleOwnership ownership, boolean withYield,
@@ -322,46 +320,33 @@ public class CapsuleOperations {
         this.mOperations.add(builder.build());
     }
 
-    public void buildOwnershipCleanup(List<Long> duplicateIds) {
-        String selection = CapsuleContract.Ownerships._ID
-                + " IN (" + CapsuleOperations.buildPreparedStatementParameters(duplicateIds.size()) + ")";
-        String[] selectionArgs = CapsuleOperations.convertIdsToArguments(duplicateIds);
-        this.mOperations.add(ContentProviderOperation.newDelete(CapsuleContract.Ownerships.CONTENT_URI)
-                .withSelection(selection, selectionArgs)
-                .withYieldAllowed(true)
-                .build());
+    public void buildOwnershipSave(Capsule capsule, CapsuleContract.SyncStateAction syncAction) {
+        // Capsule UPSERT keyed on the sync ID
+        this.buildCapsuleUpsert(capsule, /* withYield */ true);
+        // Ownership UPSERT keyed on the Capsule ID
+        this.buildOwnershipUpsert((CapsuleOwnership) capsule, /* withYield */ false,
+                this.getLastOperationIndex(), syncAction);
     }
 
-    public void buildOwnershipSave(Capsule capsule, CapsuleContract.SyncStateAction syncAction) {
-        // Determine the best IDs for the Capsule
-        CapsuleOperations.Capsules.determineBestId(this.mResolver, this, capsule);
-        CapsuleOperations.Ownerships.determineBestId(this.mResolver, this, (CapsuleOwnership) capsule);
-        // Build the INSERT/UPDATE operations depending on if the Capsule and Ownership exist
-        if (capsule.getId() > 0) {
-            // Capsule UPDATE
-            this.buildCapsuleUpdate(capsule, /* withYield */ true);
-            // Check if the Ownership exists
-            if (((CapsuleOwnership) capsule).getOwnershipId() > 0) {
-                // Ownership UPDATE
-                this.buildOwnershipUpdate((CapsuleOwnership) capsule, /* withYield */ false, syncAction);
-            } else {
-                // Ownership INSERT
-                this.buildOwnershipInsert((CapsuleOwnership) capsule, /* withYield */ false, syncAction);
-            }
-        } else {
-            // Capsule INSERT
-            this.buildCapsuleInsert(capsule, /* withYield */ true);
-            // Check if the Ownership exists
-            if (((CapsuleOwnership) capsule).getOwnershipId() > 0) {
-                // Ownership UPDATE
-                this.buildOwnershipUpdate((CapsuleOwnership) capsule, /* withYield */ false,
-                        this.getLastOperationIndex(), syncAction);
-            } else {
-                // Ownership INSERT
-                this.buildOwnershipInsert((CapsuleOwnership) capsule, /* withYield */ false,
-                        this.getLastOperationIndex(), syncAction);
-            }
+    public void buildOwnershipUpsert(CapsuleOwnership ownership, boolean withYield,
+                                     int capsuleIdBackRefIndex, CapsuleContract.SyncStateAction syncAction) {
+        // Build the URI
+        Uri uri = CapsuleOperations.appendDirtyQueryParam(syncAction,
+                CapsuleOperations.appendUpsertQueryParam(CapsuleContract.Ownerships.CONTENT_URI));
+        // Build the UPSERT operation
+        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
+        ContentValues values = Ownerships.buildContentValues(ownership);
+        if (ownership.getOwnershipId() > 0) {
+            values.put(CapsuleContract.Ownerships._ID, ownership.getOwnershipId());
         }
+        builder.withValues(values);
+        builder.withYieldAllowed(withYield);
+        // Add the back value reference index for the Capsule ID
+        if (capsuleIdBackRefIndex >= 0) {
+            builder.withValueBackReference(CapsuleContract.Ownerships.CAPSULE_ID, capsuleIdBackRefIndex);
+        }
+        // Add it to the collection
+        this.mOperations.add(builder.build());
     }
 
     public static Uri appendDirtyQueryParam(CapsuleContract.SyncStateAction syncAction, Uri uri) {
@@ -377,6 +362,12 @@ public class CapsuleOperations {
         return uri;
     }
 
+    public static Uri appendUpsertQueryParam(Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(CapsuleContract.Query.Parameters.UPSERT, CapsuleContract.Query.Values.TRUE)
+                .build();
+    }
+
     public static String[] convertIdsToArguments(List<Long> ids) {
         String[] args = new String[ids.size()];
         for (int i = 0; i < ids.size(); i++) {
@@ -396,48 +387,6 @@ public class CapsuleOperations {
 
     public static class Capsules {
 
-        public static long determineBestId(ContentResolver resolver, CapsuleOperations operations, Capsule capsule) {
-            // Query
-            Cursor c = resolver.query(
-                    CapsuleContract.Capsules.CONTENT_URI,
-                    new String[]{CapsuleContract.Capsules._ID},
-                    CapsuleContract.Capsules.TABLE_NAME + "." + CapsuleContract.Capsules.SYNC_ID + " = ?"
-                            + " AND " + CapsuleContract.Capsules.TABLE_NAME + "." + CapsuleContract.Capsules.SYNC_ID + " != ?",
-                    new String[]{String.valueOf(capsule.getSyncId()), "0"},
-                    null
-            );
-            // Check if there is a row
-            long id;
-            if (c.getCount() < 1) {
-                // There is no existing row
-                id = 0;
-            } else if (c.getCount() > 1) {
-                // Get the first matching row to keep
-                c.moveToFirst();
-                id = c.getLong(c.getColumnIndex(CapsuleContract.Capsules._ID));
-                // Add any extra IDs to a collection
-                List<Long> duplicateIds = new ArrayList<Long>();
-                while (c.moveToNext()) {
-                    duplicateIds.add(c.getLong(c.getColumnIndex(CapsuleContract.Capsules._ID)));
-                }
-                // Build operations to remove the extra IDs
-                operations.buildCapsuleCleanup(id, duplicateIds);
-            } else {
-                // There is only one row, so move to it and get the ID
-                c.moveToFirst();
-                id = c.getLong(c.getColumnIndex(CapsuleContract.Capsules._ID));
-            }
-            // Close the cursor
-            c.close();
-
-            // If a better ID was found (non-zero), reassign it
-            if (id > 0) {
-                capsule.setId(id);
-            }
-
-            return id;
-        }
-
         public static ContentValues buildContentValues(Capsule capsule) {
             ContentValues values = new ContentValues();
             values.put(CapsuleContract.Capsules.SYNC_ID, capsule.getSyncId());
@@ -449,6 +398,47 @@ public class CapsuleOperations {
 
     }
 
+    public static class Outbox {
+
+        public static ContentValues buildContentValues(Capsule capsule, Account account) {
+            ContentValues values = new ContentValues();
+            values.put(CapsuleContract.Outbox.ACCOUNT_NAME, account.name);
+            values.put(CapsuleContract.Outbox.NAME, capsule.getName());
+            values.put(CapsuleContract.Outbox.LATITUDE, capsule.getLatitude());
+            values.put(CapsuleContract.Outbox.LONGITUDE, capsule.getLongitude());
+            Memoir memoir = capsule.getMemoir();
+            if (memoir != null) {
+                values.put(CapsuleContract.Outbox.MEMOIR_TITLE, memoir.getTitle());
+                values.put(CapsuleContract.Outbox.MEMOIR_MESSAGE, memoir.getMessage());
+                if (memoir.getFileContentUri() != null) {
+                    values.put(CapsuleContract.Outbox.MEMOIR_FILE_URI, memoir.getFileContentUri().toString());
+                }
+            }
+            values.put(CapsuleContract.Outbox.STATE, CapsuleContract.Outbox.STATE_PENDING);
+            values.put(CapsuleContract.Outbox.ATTEMPTS, 0);
+            values.put(CapsuleContract.Outbox.NEXT_ATTEMPT, 0);
+            values.put(CapsuleContract.Outbox.SAVE_KEY, UUID.randomUUID().toString());
+            return values;
+        }
+
+        public static Capsule getCapsule(Cursor c) {
+            Capsule capsule = new Capsule();
+            capsule.setName(c.getString(c.getColumnIndex(CapsuleContract.Outbox.NAME)));
+            capsule.setLatitude(c.getDouble(c.getColumnIndex(CapsuleContract.Outbox.LATITUDE)));
+            capsule.setLongitude(c.getDouble(c.getColumnIndex(CapsuleContract.Outbox.LONGITUDE)));
+            Memoir memoir = new Memoir();
+            memoir.setTitle(c.getString(c.getColumnIndex(CapsuleContract.Outbox.MEMOIR_TITLE)));
+            memoir.setMessage(c.getString(c.getColumnIndex(CapsuleContract.Outbox.MEMOIR_MESSAGE)));
+            String fileUri = c.getString(c.getColumnIndex(CapsuleContract.Outbox.MEMOIR_FILE_URI));
+            if (fileUri != null) {
+                memoir.setFileContentUri(Uri.parse(fileUri));
+            }
+            capsule.setMemoir(memoir);
+            return capsule;
+        }
+
+    }
+
     public static class Discoveries {
 
         public static boolean save(ContentResolver resolver, Capsule capsule,
@@ -460,79 +450,16 @@ public class CapsuleOperations {
             // Apply the batch operation
             ContentProviderResult[] results = operations.applyBatch();
 
-            // Make sure the rows were properly updated
-            boolean success = true;
-
-            // Check the first result (Capsule operation)
-            if (results[0].uri != null) {
-                // The Capsule operation was an INSERT, so parse the ID from the URI
-                capsule.setId(ContentUris.parseId(results[0].uri));
-            } else {
-                // The Capsule operation was an UPDATE, so make sure a row was updated
-                if (results[0].count < 1) {
-                    success = false;
-                }
-            }
-
-            // Check the second result (Discovery operation)
-            if (results[1].uri != null) {
-                // The Discovery operation was an INSERT, so parse the ID from the URI
-                ((CapsuleDiscovery) capsule).setDiscoveryId(ContentUris.parseId(results[1].uri));
-            } else {
-                // The Discovery operation was an UPDATE, so make sure a row was updated
-                if (results[1].count < 1) {
-                    success = false;
-                }
-            }
-
-            return success;
-        }
-
-        public static long determineBestId(ContentResolver resolver, CapsuleOperations operations,
-                                           CapsuleDiscovery capsule) {
-            // Build the query URI
-            Uri uri = CapsuleContract.Discoveries.CONTENT_URI.buildUpon()
-                    .appendQueryParameter(CapsuleContract.Query.Parameters.INNER_JOIN, CapsuleContract.Capsules.TABLE_NAME)
-                    .build();
-            // Query
-            Cursor c = resolver.query(
-                    uri,
-                    CapsuleContract.Discoveries.CAPSULE_JOIN_PROJECTION,
-                    CapsuleContract.Capsules.TABLE_NAME + "." + CapsuleContract.Capsules.SYNC_ID + " = ?"
-                            + " AND " + CapsuleContract.Capsules.TABLE_NAME + "." + CapsuleContract.Capsules.SYNC_ID + " != ?",
-                    new String[]{String.valueOf(capsule.getSyncId()), "0"},
-                    null
-            );
-            // Check if there is a row
-            long id;
-            if (c.getCount() < 1) {
-                // There is no existing row
-                id = 0;
-            } else if (c.getCount() > 1) {
-                // There is more than one row, so get the first matching one
-                c.moveToFirst();
-                id = c.getLong(c.getColumnIndex(CapsuleContract.Discoveries.DISCOVERY_ID_ALIAS));
-                // Add any extra IDs to a collection
-                List<Long> duplicateIds = new ArrayList<Long>();
-                while (c.moveToNext()) {
-                    duplicateIds.add(c.getLong(c.getColumnIndex(CapsuleContract.Discoveries.DISCOVERY_ID_ALIAS)));
-                }
-                // Build operations to remove the extra IDs
-                operations.buildDiscoveryCleanup(duplicateIds);
-            } else {
-                // There is only one row, so get the ID
-                c.moveToFirst();
-                id = c.getLong(c.getColumnIndex(CapsuleContract.Discoveries.DISCOVERY_ID_ALIAS));
+            // Make sure the batch was applied
+            if (results == null || results.length < 2) {
+                return false;
             }
-            // Close the cursor
-            c.close();
 
-            // If a better ID was found (non-zero), re-assign it
-            if (id > 0) {
-                capsule.setDiscoveryId(id);
-            }
+            // Both operations are UPSERTs, so their results contain the URIs of the saved rows
+            capsule.setId(ContentUris.parseId(results[0].uri));
+            ((CapsuleDiscovery) capsule).setDiscoveryId(ContentUris.parseId(results[1].uri));
 
-            return id;
+            return true;
         }
 
         public static ContentValues buildContentValues(CapsuleDiscovery capsule) {
@@ -558,32 +485,16 @@ public class CapsuleOperations {
             // Apply the batch operation
             ContentProviderResult[] results = operations.applyBatch();
 
-            // Make sure the rows were properly updated
-            boolean success = true;
-
-            // Check the first result (Capsule operation)
-            if (results[0].uri != null) {
-                // The Capsule operation was an INSERT, so parse the ID from the URI
-                capsule.setId(ContentUris.parseId(results[0].uri));
-            } else {
-                // The Capsule operation was an UPDATE, so make sure a row was updated
-                if (results[0].count < 1) {
-                    success = false;
-                }
+            // Make sure the batch was applied
+            if (results == null || results.length < 2) {
+                return false;
             }
 
-            // Check the second result (Ownership operation)
-            if (results[1].uri != null) {
-                // The Ownership operation was an INSERT, so parse the ID from the URI
-                ((CapsuleOwnership) capsule).setOwnershipId(ContentUris.parseId(results[1].uri));
-            } else {
-                // The Ownership operation was an UPDATE, so make sure a row was updated
-                if (results[1].count < 1) {
-                    success = false;
-                }
-            }
+            // Both operations are UPSERTs, so their results contain the URIs of the saved rows
+            capsule.setId(ContentUris.parseId(results[0].uri));
+            ((CapsuleOwnership) capsule).setOwnershipId(ContentUris.parseId(results[1].uri));
 
-            return success;
+            return true;
         }
 
         public static ArrayList<CapsuleOwnership> get(ContentResolver resolver, Account account,
@@ -621,53 +532,6 @@ public class CapsuleOperations {
             return capsules;
         }
 
-        public static long determineBestId(ContentResolver resolver, CapsuleOperations operations,
-                                           CapsuleOwnership capsule) {
-            // Build the query URI
-            Uri uri = CapsuleContract.Ownerships.CONTENT_URI.buildUpon()
-                    .appendQueryParameter(CapsuleContract.Query.Parameters.INNER_JOIN, CapsuleContract.Capsules.TABLE_NAME)
-                    .build();
-            // Query
-            Cursor c = resolver.query(
-                    uri,
-                    CapsuleContract.Ownerships.CAPSULE_JOIN_PROJECTION,
-                    CapsuleContract.Capsules.TABLE_NAME + "." + CapsuleContract.Capsules.SYNC_ID + " = ?"
-                            + " AND " + CapsuleContract.Capsules.TABLE_NAME + "." + CapsuleContract.Capsules.SYNC_ID + " != ?",
-                    new String[]{String.valueOf(capsule.getSyncId()), "0"},
-                    null
-            );
-            // Check if there is a row
-            long id;
-            if (c.getCount() < 1) {
-                // There is no existing row
-                id = 0;
-            } else if (c.getCount() > 1) {
-                // There is more than one row, so get the first matching one
-                c.moveToFirst();
-                id = c.getLong(c.getColumnIndex(CapsuleContract.Ownerships.OWNERSHIP_ID_ALIAS));
-                // Add any extra IDs to a collection
-                List<Long> duplicateIds = new ArrayList<Long>();
-                while (c.moveToNext()) {
-                    duplicateIds.add(c.getLong(c.getColumnIndex(CapsuleContract.Ownerships.OWNERSHIP_ID_ALIAS)));
-                }
-                // Build operations to remove the extra IDs
-                operations.buildOwnershipCleanup(duplicateIds);
-            } else {
-                // There is only one row, so get the ID
-                c.moveToFirst();
-                id = c.getLong(c.getColumnIndex(CapsuleContract.Ownerships.OWNERSHIP_ID_ALIAS));
-            }
-            // Close the cursor
-            c.close();
-
-            // If a better ID was found (non-zero), re-assign it
-            if (id > 0) {
-                capsule.setOwnershipId(id);
-            }
-
-            return id;
-        }
-
         public static ContentValues buildContentValues(CapsuleOwnership capsule) {
             ContentValues values = new ContentValues();
             values.put(CapsuleContract.Ownerships.ACCOUNT_NAME, capsule.getAccountName());
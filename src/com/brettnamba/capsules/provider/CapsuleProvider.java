@@ -1,51 +1,98 @@
 package com.brettnamba.capsules.provider;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.provider.BaseColumns;
 import android.text.TextUtils;
 
+import com.brettnamba.capsules.location.Geohash;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class CapsuleProvider extends ContentProvider {
 
     private static final String DATABASE_NAME = "capsules.db";
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 6;
 
     private static final UriMatcher sUriMatcher;
 
     private static final int CODE_CAPSULES = 10;
     private static final int CODE_CAPSULES_ID = 11;
+    private static final int CODE_CAPSULES_NEARBY = 12;
     private static final int CODE_DISCOVERIES = 20;
     private static final int CODE_DISCOVERIES_ID = 21;
     private static final int CODE_OWNERSHIPS = 30;
     private static final int CODE_OWNERSHIPS_ID = 31;
+    private static final int CODE_OUTBOX = 40;
+    private static final int CODE_OUTBOX_ID = 41;
+    private static final int CODE_TILES = 50;
+    private static final int CODE_TILES_ID = 51;
+    private static final int CODE_TILE_CAPSULES = 60;
+    private static final int CODE_TILE_CAPSULES_ID = 61;
 
     private static final int PATH_ID_POS = 1;
 
+    private static final String INDEX_CAPSULES_SYNC_ID = "capsules_sync_id_index";
+    private static final String INDEX_CAPSULES_GEOHASH = "capsules_geohash_index";
+    private static final String INDEX_OWNERSHIPS_ACCOUNT_DIRTY = "ownerships_account_dirty_index";
+    private static final String INDEX_OWNERSHIPS_CAPSULE_ID = "ownerships_capsule_id_index";
+    private static final String INDEX_DISCOVERIES_ACCOUNT = "discoveries_account_index";
+    private static final String INDEX_DISCOVERIES_CAPSULE_ID = "discoveries_capsule_id_index";
+    private static final String INDEX_OUTBOX_STATE = "outbox_state_index";
+    private static final String INDEX_TILES_ACCOUNT_GEOHASH = "tiles_account_geohash_index";
+    private static final String INDEX_TILES_FETCHED_AT = "tiles_fetched_at_index";
+    private static final String INDEX_TILE_CAPSULES_ACCOUNT_SYNC_ID = "tile_capsules_account_sync_id_index";
+    private static final String INDEX_TILE_CAPSULES_ACCOUNT_GEOHASH = "tile_capsules_account_geohash_index";
+
+    private static final String TRIGGER_CAPSULES_SYNC_ID_INSERT = "capsules_sync_id_unique_insert";
+    private static final String TRIGGER_CAPSULES_SYNC_ID_UPDATE = "capsules_sync_id_unique_update";
+
     private SQLiteOpenHelper mDbHelper;
 
     private SQLiteDatabase mDb;
 
+    /**
+     * Holds the URIs changed by the batch running on the current thread so they can be notified
+     * once at commit time.  It is null when the thread is not running a batch.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<Set<Uri>>();
+
     private static final String TAG = "CapsuleProvider";
 
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Capsules.CONTENT_URI_PATH, CODE_CAPSULES);
         sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Capsules.CONTENT_URI_PATH + "/#", CODE_CAPSULES_ID);
+        sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Capsules.CONTENT_URI_PATH + "/" + CapsuleContract.Capsules.NEARBY_URI_PATH, CODE_CAPSULES_NEARBY);
         sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Discoveries.CONTENT_URI_PATH, CODE_DISCOVERIES);
         sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Discoveries.CONTENT_URI_PATH + "/#", CODE_DISCOVERIES_ID);
         sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Ownerships.CONTENT_URI_PATH, CODE_OWNERSHIPS);
         sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Ownerships.CONTENT_URI_PATH + "/#", CODE_OWNERSHIPS_ID);
+        sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Outbox.CONTENT_URI_PATH, CODE_OUTBOX);
+        sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Outbox.CONTENT_URI_PATH + "/#", CODE_OUTBOX_ID);
+        sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Tiles.CONTENT_URI_PATH, CODE_TILES);
+        sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.Tiles.CONTENT_URI_PATH + "/#", CODE_TILES_ID);
+        sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.TileCapsules.CONTENT_URI_PATH, CODE_TILE_CAPSULES);
+        sUriMatcher.addURI(CapsuleContract.AUTHORITY, CapsuleContract.TileCapsules.CONTENT_URI_PATH + "/#", CODE_TILE_CAPSULES_ID);
     }
 
     @Override
@@ -90,6 +137,33 @@ public class CapsuleProvider extends ContentProvider {
                 selection += ((!TextUtils.isEmpty(selection)) ? " AND " : "") + CapsuleContract.Ownerships._ID + " = " + uri.getPathSegments().get(PATH_ID_POS);
                 break;
 
+            case CODE_OUTBOX:
+                table = CapsuleContract.Outbox.TABLE_NAME;
+                break;
+
+            case CODE_OUTBOX_ID:
+                table = CapsuleContract.Outbox.TABLE_NAME;
+                selection += ((!TextUtils.isEmpty(selection)) ? " AND " : "") + CapsuleContract.Outbox._ID + " = " + uri.getPathSegments().get(PATH_ID_POS);
+                break;
+
+            case CODE_TILES:
+                table = CapsuleContract.Tiles.TABLE_NAME;
+                break;
+
+            case CODE_TILES_ID:
+                table = CapsuleContract.Tiles.TABLE_NAME;
+                selection += ((!TextUtils.isEmpty(selection)) ? " AND " : "") + CapsuleContract.Tiles._ID + " = " + uri.getPathSegments().get(PATH_ID_POS);
+                break;
+
+            case CODE_TILE_CAPSULES:
+                table = CapsuleContract.TileCapsules.TABLE_NAME;
+                break;
+
+            case CODE_TILE_CAPSULES_ID:
+                table = CapsuleContract.TileCapsules.TABLE_NAME;
+                selection += ((!TextUtils.isEmpty(selection)) ? " AND " : "") + CapsuleContract.TileCapsules._ID + " = " + uri.getPathSegments().get(PATH_ID_POS);
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -100,7 +174,7 @@ public class CapsuleProvider extends ContentProvider {
         // Execute the DELETE
         int count = this.mDb.delete(table, selection, selectionArgs);
         // Notify the changes
-        this.getContext().getContentResolver().notifyChange(uri, null);
+        this.notifyChange(uri);
 
         return count;
     }
@@ -122,6 +196,11 @@ public class CapsuleProvider extends ContentProvider {
                 table = CapsuleContract.Capsules.TABLE_NAME;
                 break;
 
+            case CODE_CAPSULES_NEARBY:
+                subType = "dir";
+                table = CapsuleContract.Capsules.TABLE_NAME;
+                break;
+
             case CODE_DISCOVERIES:
                 subType = "dir";
                 table = CapsuleContract.Discoveries.TABLE_NAME;
@@ -142,6 +221,36 @@ public class CapsuleProvider extends ContentProvider {
                 table = CapsuleContract.Ownerships.TABLE_NAME;
                 break;
 
+            case CODE_OUTBOX:
+                subType = "dir";
+                table = CapsuleContract.Outbox.TABLE_NAME;
+                break;
+
+            case CODE_OUTBOX_ID:
+                subType = "item";
+                table = CapsuleContract.Outbox.TABLE_NAME;
+                break;
+
+            case CODE_TILES:
+                subType = "dir";
+                table = CapsuleContract.Tiles.TABLE_NAME;
+                break;
+
+            case CODE_TILES_ID:
+                subType = "item";
+                table = CapsuleContract.Tiles.TABLE_NAME;
+                break;
+
+            case CODE_TILE_CAPSULES:
+                subType = "dir";
+                table = CapsuleContract.TileCapsules.TABLE_NAME;
+                break;
+
+            case CODE_TILE_CAPSULES_ID:
+                subType = "item";
+                table = CapsuleContract.TileCapsules.TABLE_NAME;
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -154,6 +263,7 @@ public class CapsuleProvider extends ContentProvider {
         String table;
         String nullColumn;
         String dirtyColumn;
+        String upsertKeyColumn;
         Uri contentUri;
 
         // Match the URI
@@ -162,6 +272,7 @@ public class CapsuleProvider extends ContentProvider {
                 table = CapsuleContract.Capsules.TABLE_NAME;
                 nullColumn = CapsuleContract.Capsules.NAME;
                 dirtyColumn = null;
+                upsertKeyColumn = CapsuleContract.Capsules.SYNC_ID;
                 contentUri = CapsuleContract.Capsules.CONTENT_URI;
                 break;
 
@@ -169,6 +280,7 @@ public class CapsuleProvider extends ContentProvider {
                 table = CapsuleContract.Discoveries.TABLE_NAME;
                 nullColumn = CapsuleContract.Discoveries.CAPSULE_ID;
                 dirtyColumn = CapsuleContract.Discoveries.DIRTY;
+                upsertKeyColumn = CapsuleContract.Discoveries.CAPSULE_ID;
                 contentUri = CapsuleContract.Discoveries.CONTENT_URI;
                 break;
 
@@ -176,9 +288,36 @@ public class CapsuleProvider extends ContentProvider {
                 table = CapsuleContract.Ownerships.TABLE_NAME;
                 nullColumn = CapsuleContract.Ownerships.CAPSULE_ID;
                 dirtyColumn = CapsuleContract.Ownerships.DIRTY;
+                upsertKeyColumn = CapsuleContract.Ownerships.CAPSULE_ID;
                 contentUri = CapsuleContract.Ownerships.CONTENT_URI;
                 break;
 
+            case CODE_OUTBOX:
+                table = CapsuleContract.Outbox.TABLE_NAME;
+                nullColumn = CapsuleContract.Outbox.ACCOUNT_NAME;
+                dirtyColumn = null;
+                upsertKeyColumn = CapsuleContract.Outbox._ID;
+                contentUri = CapsuleContract.Outbox.CONTENT_URI;
+                break;
+
+            case CODE_TILES:
+                table = CapsuleContract.Tiles.TABLE_NAME;
+                nullColumn = CapsuleContract.Tiles.GEOHASH;
+                dirtyColumn = null;
+                // Keyed by the unique Account and geohash index
+                upsertKeyColumn = null;
+                contentUri = CapsuleContract.Tiles.CONTENT_URI;
+                break;
+
+            case CODE_TILE_CAPSULES:
+                table = CapsuleContract.TileCapsules.TABLE_NAME;
+                nullColumn = CapsuleContract.TileCapsules.GEOHASH;
+                dirtyColumn = null;
+                // Keyed by the unique Account and sync ID index
+                upsertKeyColumn = null;
+                contentUri = CapsuleContract.TileCapsules.CONTENT_URI;
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -194,15 +333,30 @@ public class CapsuleProvider extends ContentProvider {
             }
         }
 
+        // Keep the spatial index column in step with the location
+        if (values != null && table.equals(CapsuleContract.Capsules.TABLE_NAME)) {
+            CapsuleProvider.putGeohash(values);
+        }
+
         // Open the database connection (deferred until absolutely necessary)
         this.mDb = this.mDbHelper.getWritableDatabase();
 
-        // Execute the INSERT
+        // Execute the INSERT, or the UPSERT if it was requested
         Uri insertUri = null;
-        long insertId = this.mDb.insert(table, nullColumn, values);
+        long insertId;
+        String upsertQueryParam = uri.getQueryParameter(CapsuleContract.Query.Parameters.UPSERT);
+        if (CapsuleContract.Query.Values.TRUE.equals(upsertQueryParam) && upsertKeyColumn == null) {
+            // The table's unique index identifies the existing row, so let SQLite replace it
+            insertId = this.mDb.insertWithOnConflict(table, nullColumn, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } else if (CapsuleContract.Query.Values.TRUE.equals(upsertQueryParam)) {
+            insertId = this.upsert(this.mDb, table, nullColumn, upsertKeyColumn, values);
+        } else {
+            insertId = this.mDb.insert(table, nullColumn, values);
+        }
         if (insertId > 0) {
             insertUri = ContentUris.withAppendedId(contentUri, insertId);
-            this.getContext().getContentResolver().notifyChange(insertUri, null);
+            this.notifyChange(insertUri);
         }
 
         return insertUri;
@@ -228,6 +382,14 @@ public class CapsuleProvider extends ContentProvider {
                 qb.appendWhere(CapsuleContract.Capsules._ID + " = " + uri.getPathSegments().get(PATH_ID_POS));
                 break;
 
+            case CODE_CAPSULES_NEARBY:
+                table = CapsuleContract.Capsules.TABLE_NAME;
+                String distanceOrder = CapsuleProvider.appendNearbyWhere(qb, uri);
+                if (sortOrder == null) {
+                    sortOrder = distanceOrder;
+                }
+                break;
+
             case CODE_DISCOVERIES:
                 table = CapsuleContract.Discoveries.TABLE_NAME;
                 if (innerJoins != null && innerJoins.size() > 0) {
@@ -260,6 +422,33 @@ public class CapsuleProvider extends ContentProvider {
                         + " = " + uri.getPathSegments().get(PATH_ID_POS));
                 break;
 
+            case CODE_OUTBOX:
+                table = CapsuleContract.Outbox.TABLE_NAME;
+                break;
+
+            case CODE_OUTBOX_ID:
+                table = CapsuleContract.Outbox.TABLE_NAME;
+                qb.appendWhere(CapsuleContract.Outbox._ID + " = " + uri.getPathSegments().get(PATH_ID_POS));
+                break;
+
+            case CODE_TILES:
+                table = CapsuleContract.Tiles.TABLE_NAME;
+                break;
+
+            case CODE_TILES_ID:
+                table = CapsuleContract.Tiles.TABLE_NAME;
+                qb.appendWhere(CapsuleContract.Tiles._ID + " = " + uri.getPathSegments().get(PATH_ID_POS));
+                break;
+
+            case CODE_TILE_CAPSULES:
+                table = CapsuleContract.TileCapsules.TABLE_NAME;
+                break;
+
+            case CODE_TILE_CAPSULES_ID:
+                table = CapsuleContract.TileCapsules.TABLE_NAME;
+                qb.appendWhere(CapsuleContract.TileCapsules._ID + " = " + uri.getPathSegments().get(PATH_ID_POS));
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -279,11 +468,12 @@ public class CapsuleProvider extends ContentProvider {
         // Set the table(s)
         qb.setTables(table);
 
-        // Open the database connection (deferred until absolutely necessary)
-        this.mDb = this.mDbHelper.getWritableDatabase();
+        // Open the database connection (deferred until absolutely necessary).  With write-ahead
+        // logging the read is served by its own connection, so it does not wait on a sync batch.
+        SQLiteDatabase db = this.mDbHelper.getReadableDatabase();
 
         // Execute the query
-        Cursor c = qb.query(this.mDb, projection, selection, selectionArgs, null, null, sortOrder);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
 
         // Set the notification URI to watch for changes
         c.setNotificationUri(this.getContext().getContentResolver(), uri);
@@ -337,6 +527,42 @@ public class CapsuleProvider extends ContentProvider {
                 selection += ((!TextUtils.isEmpty(selection)) ? " AND " : "") + CapsuleContract.Ownerships._ID + " = " + ownershipId;
                 break;
 
+            case CODE_OUTBOX:
+                table = CapsuleContract.Outbox.TABLE_NAME;
+                dirtyColumn = null;
+                break;
+
+            case CODE_OUTBOX_ID:
+                table = CapsuleContract.Outbox.TABLE_NAME;
+                dirtyColumn = null;
+                String outboxId = uri.getPathSegments().get(PATH_ID_POS);
+                selection += ((!TextUtils.isEmpty(selection)) ? " AND " : "") + CapsuleContract.Outbox._ID + " = " + outboxId;
+                break;
+
+            case CODE_TILES:
+                table = CapsuleContract.Tiles.TABLE_NAME;
+                dirtyColumn = null;
+                break;
+
+            case CODE_TILES_ID:
+                table = CapsuleContract.Tiles.TABLE_NAME;
+                dirtyColumn = null;
+                String tileId = uri.getPathSegments().get(PATH_ID_POS);
+                selection += ((!TextUtils.isEmpty(selection)) ? " AND " : "") + CapsuleContract.Tiles._ID + " = " + tileId;
+                break;
+
+            case CODE_TILE_CAPSULES:
+                table = CapsuleContract.TileCapsules.TABLE_NAME;
+                dirtyColumn = null;
+                break;
+
+            case CODE_TILE_CAPSULES_ID:
+                table = CapsuleContract.TileCapsules.TABLE_NAME;
+                dirtyColumn = null;
+                String tileCapsuleId = uri.getPathSegments().get(PATH_ID_POS);
+                selection += ((!TextUtils.isEmpty(selection)) ? " AND " : "") + CapsuleContract.TileCapsules._ID + " = " + tileCapsuleId;
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -352,17 +578,309 @@ public class CapsuleProvider extends ContentProvider {
             }
         }
 
+        // Keep the spatial index column in step with the location
+        boolean geohashComplete = true;
+        if (values != null && table.equals(CapsuleContract.Capsules.TABLE_NAME)) {
+            geohashComplete = CapsuleProvider.putGeohash(values);
+        }
+
         // Open the database connection (deferred until absolutely necessary)
         this.mDb = this.mDbHelper.getWritableDatabase();
 
         // Execute the UPDATE
         int count = this.mDb.update(table, values, selection, selectionArgs);
+        // Only one coordinate was changed, so the geohash has to be computed from the rows
+        if (!geohashComplete) {
+            CapsuleProvider.updateMissingGeohashes(this.mDb);
+        }
         // Notify the change
-        this.getContext().getContentResolver().notifyChange(uri, null);
+        this.notifyChange(uri);
 
         return count;
     }
 
+    /**
+     * Applies the whole batch inside a single transaction, yielding the transaction wherever an
+     * operation allows it.  Change notifications are deferred until the batch is committed and
+     * are sent once per touched URI.
+     *
+     * @param operations The operations to apply
+     * @return The results of each operation
+     * @throws OperationApplicationException
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Open the database connection
+        this.mDb = this.mDbHelper.getWritableDatabase();
+        SQLiteDatabase db = this.mDb;
+
+        this.mPendingNotifications.set(new LinkedHashSet<Uri>());
+        CapsuleProvider.beginTransaction(db);
+        try {
+            final int count = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[count];
+            for (int i = 0; i < count; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                // Let other threads access the database between logical groups of operations
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            this.sendPendingNotifications();
+        }
+    }
+
+    /**
+     * Inserts all of the rows inside a single transaction and notifies the change once
+     *
+     * @param uri    The URI of the table to insert into
+     * @param values The rows to insert
+     * @return The number of rows inserted
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        // Open the database connection
+        this.mDb = this.mDbHelper.getWritableDatabase();
+        SQLiteDatabase db = this.mDb;
+
+        int count = 0;
+        this.mPendingNotifications.set(new LinkedHashSet<Uri>());
+        CapsuleProvider.beginTransaction(db);
+        try {
+            for (ContentValues row : values) {
+                if (this.insert(uri, row) != null) {
+                    count++;
+                }
+                db.yieldIfContendedSafely();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            this.sendPendingNotifications();
+        }
+
+        return count;
+    }
+
+    /**
+     * Updates the row matching the key column's value, or inserts the row if there is no match.
+     * If the key column's value is zero, the row's own ID (if present in the values) is used
+     * to find an existing row instead.  Any other rows sharing the key are removed so the key
+     * stays unique.
+     *
+     * @param db         The writable database
+     * @param table      The table to UPSERT into
+     * @param nullColumn The column to use if the values are empty
+     * @param keyColumn  The column that identifies an existing row
+     * @param values     The row values
+     * @return The ID of the updated or inserted row, or -1 on failure
+     */
+    private long upsert(SQLiteDatabase db, String table, String nullColumn, String keyColumn,
+                        ContentValues values) {
+        // The row ID is only used to find an existing row and never written
+        Long rowId = values.getAsLong(BaseColumns._ID);
+        values.remove(BaseColumns._ID);
+        Long key = values.getAsLong(keyColumn);
+
+        long id = -1;
+        CapsuleProvider.beginTransaction(db);
+        try {
+            // Find an existing row by the key and then by the row ID
+            if (key != null && key != 0) {
+                id = CapsuleProvider.findFirstId(db, table, keyColumn + " = ?",
+                        new String[]{String.valueOf(key)});
+            }
+            if (id <= 0 && rowId != null && rowId > 0) {
+                id = CapsuleProvider.findFirstId(db, table, BaseColumns._ID + " = ?",
+                        new String[]{String.valueOf(rowId)});
+            }
+
+            if (id > 0) {
+                // UPDATE the existing row
+                db.update(table, values, BaseColumns._ID + " = ?", new String[]{String.valueOf(id)});
+                // Collapse any duplicates onto the row that was kept
+                if (key != null && key != 0) {
+                    db.delete(table, keyColumn + " = ? AND " + BaseColumns._ID + " != ?",
+                            new String[]{String.valueOf(key), String.valueOf(id)});
+                }
+            } else {
+                // INSERT a new row
+                id = db.insert(table, nullColumn, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return id;
+    }
+
+    /**
+     * Gets the lowest row ID matching the selection
+     *
+     * @param db            The database
+     * @param table         The table to query
+     * @param selection     The selection
+     * @param selectionArgs The selection arguments
+     * @return The row ID or -1 if there is no matching row
+     */
+    private static long findFirstId(SQLiteDatabase db, String table, String selection,
+                                    String[] selectionArgs) {
+        Cursor c = db.query(table, new String[]{BaseColumns._ID}, selection, selectionArgs,
+                null, null, BaseColumns._ID, "1");
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Sets the geohash in Capsule values that change the location.  If only one coordinate is
+     * being changed, the geohash is cleared so it can be computed once the row is written.
+     *
+     * @param values The Capsule values
+     * @return False if the geohash was cleared and still has to be computed
+     */
+    private static boolean putGeohash(ContentValues values) {
+        Double lat = values.getAsDouble(CapsuleContract.Capsules.LATITUDE);
+        Double lng = values.getAsDouble(CapsuleContract.Capsules.LONGITUDE);
+        if (lat != null && lng != null) {
+            values.put(CapsuleContract.Capsules.GEOHASH,
+                    Geohash.encode(lat, lng, Geohash.MAX_PRECISION));
+        } else if (lat != null || lng != null) {
+            values.putNull(CapsuleContract.Capsules.GEOHASH);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Computes the geohash of every Capsule that does not have one
+     *
+     * @param db The writable database
+     */
+    private static void updateMissingGeohashes(SQLiteDatabase db) {
+        Cursor c = db.query(CapsuleContract.Capsules.TABLE_NAME,
+                new String[]{
+                        CapsuleContract.Capsules._ID,
+                        CapsuleContract.Capsules.LATITUDE,
+                        CapsuleContract.Capsules.LONGITUDE
+                },
+                CapsuleContract.Capsules.GEOHASH + " IS NULL", null, null, null, null);
+        if (c == null) {
+            return;
+        }
+        SQLiteStatement statement = db.compileStatement("UPDATE " + CapsuleContract.Capsules.TABLE_NAME
+                + " SET " + CapsuleContract.Capsules.GEOHASH + " = ?"
+                + " WHERE " + CapsuleContract.Capsules._ID + " = ?");
+        CapsuleProvider.beginTransaction(db);
+        try {
+            while (c.moveToNext()) {
+                statement.bindString(1, Geohash.encode(c.getDouble(1), c.getDouble(2),
+                        Geohash.MAX_PRECISION));
+                statement.bindLong(2, c.getLong(0));
+                statement.execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+            c.close();
+        }
+    }
+
+    /**
+     * Restricts a query to the Capsules within the radius or bounding box given by the URI's
+     * query parameters
+     *
+     * @param qb  The query builder
+     * @param uri The URI with the area's query parameters
+     * @return The ORDER BY clause that sorts the Capsules nearest to the center first
+     * @throws IllegalArgumentException If the area is missing, not finite or out of range
+     */
+    private static String appendNearbyWhere(SQLiteQueryBuilder qb, Uri uri) {
+        NearbySelection selection;
+        try {
+            if (uri.getQueryParameter(CapsuleContract.Query.Parameters.RADIUS) != null) {
+                selection = NearbySelection.forRadius(
+                        Double.parseDouble(uri.getQueryParameter(CapsuleContract.Query.Parameters.LATITUDE)),
+                        Double.parseDouble(uri.getQueryParameter(CapsuleContract.Query.Parameters.LONGITUDE)),
+                        Double.parseDouble(uri.getQueryParameter(CapsuleContract.Query.Parameters.RADIUS)));
+            } else {
+                selection = NearbySelection.forBox(
+                        Double.parseDouble(uri.getQueryParameter(CapsuleContract.Query.Parameters.SOUTH)),
+                        Double.parseDouble(uri.getQueryParameter(CapsuleContract.Query.Parameters.WEST)),
+                        Double.parseDouble(uri.getQueryParameter(CapsuleContract.Query.Parameters.NORTH)),
+                        Double.parseDouble(uri.getQueryParameter(CapsuleContract.Query.Parameters.EAST)));
+            }
+        } catch (NullPointerException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Missing or invalid area for URI: " + uri);
+        }
+        qb.appendWhere(selection.getWhere());
+        return selection.getOrderBy();
+    }
+
+    /**
+     * Begins a transaction that does not lock out readers where the platform supports it
+     *
+     * @param db The database
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void beginTransaction(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            db.beginTransactionNonExclusive();
+        } else {
+            db.beginTransaction();
+        }
+    }
+
+    /**
+     * Notifies observers of a change to the URI.  If the current thread is running a batch, the
+     * notification is deferred and coalesced with the other changes to the same table.
+     *
+     * @param uri The URI that was changed
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> pending = this.mPendingNotifications.get();
+        if (pending == null) {
+            this.getContext().getContentResolver().notifyChange(uri, null);
+            return;
+        }
+        // Coalesce on the table URI, which also notifies observers of its rows
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() > 0) {
+            pending.add(new Uri.Builder()
+                    .scheme(uri.getScheme())
+                    .authority(uri.getAuthority())
+                    .appendPath(segments.get(0))
+                    .build());
+        } else {
+            pending.add(uri);
+        }
+    }
+
+    /**
+     * Ends the deferred notification state for the current thread and sends the notifications
+     * collected while the batch ran.  They are sent even if the batch failed, since any yield
+     * points before the failure will have already been committed.
+     */
+    private void sendPendingNotifications() {
+        Set<Uri> pending = this.mPendingNotifications.get();
+        this.mPendingNotifications.remove();
+        if (pending != null) {
+            for (Uri uri : pending) {
+                this.getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+    }
+
     protected static final class DatabaseHelper extends SQLiteOpenHelper {
 
         private Context mContext;
@@ -374,6 +892,48 @@ public class CapsuleProvider extends ContentProvider {
 
         @Override
         public void onCreate(SQLiteDatabase db) {
+            // Create the version 1 schema and then migrate it to the current version
+            this.createVersion1(db);
+            this.onUpgrade(db, 1, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Apply each migration step in order so existing data is kept
+            for (int version = oldVersion + 1; version <= newVersion; version++) {
+                switch (version) {
+                    case 2:
+                        this.upgradeToVersion2(db);
+                        break;
+
+                    case 3:
+                        this.upgradeToVersion3(db);
+                        break;
+
+                    case 4:
+                        this.upgradeToVersion4(db);
+                        break;
+
+                    case 5:
+                        this.upgradeToVersion5(db);
+                        break;
+
+                    case 6:
+                        this.upgradeToVersion6(db);
+                        break;
+
+                    default:
+                        throw new IllegalStateException("No migration to database version " + version);
+                }
+            }
+        }
+
+        /**
+         * Creates the original tables
+         *
+         * @param db The database
+         */
+        private void createVersion1(SQLiteDatabase db) {
             // Create the capsules table
             db.execSQL("CREATE TABLE " + CapsuleContract.Capsules.TABLE_NAME + " ("
                             + CapsuleContract.Capsules._ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
@@ -410,22 +970,178 @@ public class CapsuleProvider extends ContentProvider {
             );
         }
 
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // Delete the whole database
-            // TODO Consider incremental database upgrade
-            DatabaseHelper.this.mContext.deleteDatabase(DATABASE_NAME);
+        /**
+         * Collapses Capsules with duplicate sync IDs along with the Ownerships and Discoveries that
+         * then repeat for an Account, enforces unique non-zero sync IDs and adds indexes for the
+         * sync ID lookups, the Account/dirty filter and the Capsule joins
+         *
+         * @param db The database
+         */
+        private void upgradeToVersion2(SQLiteDatabase db) {
+            final String capsules = CapsuleContract.Capsules.TABLE_NAME;
+            final String ownerships = CapsuleContract.Ownerships.TABLE_NAME;
+            final String discoveries = CapsuleContract.Discoveries.TABLE_NAME;
+            final String id = CapsuleContract.Capsules._ID;
+            final String syncId = CapsuleContract.Capsules.SYNC_ID;
+            final String capsuleId = CapsuleContract.Ownerships.CAPSULE_ID;
+            final String accountName = CapsuleContract.Ownerships.ACCOUNT_NAME;
+
+            // Capsules that share a non-zero sync ID with a Capsule that has a lower ID
+            final String duplicateIds = "SELECT d." + id + " FROM " + capsules + " d"
+                    + " WHERE d." + syncId + " != 0"
+                    + " AND d." + id + " != (SELECT MIN(k." + id + ") FROM " + capsules + " k"
+                    + " WHERE k." + syncId + " = d." + syncId + ")";
+            // Point the Ownerships and Discoveries of duplicates at the Capsule being kept
+            for (String table : new String[]{ownerships, discoveries}) {
+                db.execSQL("UPDATE " + table + " SET " + capsuleId + " = ("
+                        + "SELECT MIN(k." + id + ") FROM " + capsules + " k"
+                        + " INNER JOIN " + capsules + " d ON k." + syncId + " = d." + syncId
+                        + " WHERE d." + id + " = " + table + "." + capsuleId + ")"
+                        + " WHERE " + capsuleId + " IN (" + duplicateIds + ");");
+            }
+            // Remove the duplicates
+            db.execSQL("DELETE FROM " + capsules + " WHERE " + id + " IN (" + duplicateIds + ");");
+            // An Account that had both duplicates now has two rows for the one Capsule, so keep
+            // only its first
+            for (String table : new String[]{ownerships, discoveries}) {
+                db.execSQL("DELETE FROM " + table + " WHERE " + id + " NOT IN ("
+                        + "SELECT MIN(" + id + ") FROM " + table
+                        + " GROUP BY " + accountName + ", " + capsuleId + ");");
+            }
+
+            // Capsules
+            db.execSQL("CREATE INDEX " + INDEX_CAPSULES_SYNC_ID + " ON " + capsules
+                    + " (" + syncId + ");");
+            // Partial unique indexes are not available on older SQLite versions, so the unique
+            // non-zero sync ID is enforced with triggers
+            db.execSQL("CREATE TRIGGER " + TRIGGER_CAPSULES_SYNC_ID_INSERT
+                    + " BEFORE INSERT ON " + capsules
+                    + " WHEN NEW." + syncId + " != 0 AND EXISTS (SELECT 1 FROM " + capsules
+                    + " WHERE " + syncId + " = NEW." + syncId + ")"
+                    + " BEGIN SELECT RAISE(ABORT, 'Duplicate " + syncId + "'); END;");
+            db.execSQL("CREATE TRIGGER " + TRIGGER_CAPSULES_SYNC_ID_UPDATE
+                    + " BEFORE UPDATE OF " + syncId + " ON " + capsules
+                    + " WHEN NEW." + syncId + " != 0 AND EXISTS (SELECT 1 FROM " + capsules
+                    + " WHERE " + syncId + " = NEW." + syncId + " AND " + id + " != NEW." + id + ")"
+                    + " BEGIN SELECT RAISE(ABORT, 'Duplicate " + syncId + "'); END;");
+
+            // Ownerships
+            db.execSQL("CREATE INDEX " + INDEX_OWNERSHIPS_ACCOUNT_DIRTY + " ON " + ownerships
+                    + " (" + CapsuleContract.Ownerships.ACCOUNT_NAME + ", "
+                    + CapsuleContract.Ownerships.DIRTY + ", "
+                    + CapsuleContract.Ownerships.CAPSULE_ID + ");");
+            db.execSQL("CREATE INDEX " + INDEX_OWNERSHIPS_CAPSULE_ID + " ON " + ownerships
+                    + " (" + CapsuleContract.Ownerships.CAPSULE_ID + ");");
+
+            // Discoveries
+            db.execSQL("CREATE INDEX " + INDEX_DISCOVERIES_ACCOUNT + " ON " + discoveries
+                    + " (" + CapsuleContract.Discoveries.ACCOUNT_NAME + ", "
+                    + CapsuleContract.Discoveries.CAPSULE_ID + ");");
+            db.execSQL("CREATE INDEX " + INDEX_DISCOVERIES_CAPSULE_ID + " ON " + discoveries
+                    + " (" + CapsuleContract.Discoveries.CAPSULE_ID + ");");
+        }
+
+        /**
+         * Adds the outbox table that holds Capsule saves until they reach the server
+         *
+         * @param db The database
+         */
+        private void upgradeToVersion3(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + CapsuleContract.Outbox.TABLE_NAME + " ("
+                            + CapsuleContract.Outbox._ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
+                            + CapsuleContract.Outbox.ACCOUNT_NAME + " TEXT NOT NULL,"
+                            + CapsuleContract.Outbox.NAME + " TEXT DEFAULT NULL,"
+                            + CapsuleContract.Outbox.LATITUDE + " REAL NOT NULL,"
+                            + CapsuleContract.Outbox.LONGITUDE + " REAL NOT NULL,"
+                            + CapsuleContract.Outbox.MEMOIR_TITLE + " TEXT DEFAULT NULL,"
+                            + CapsuleContract.Outbox.MEMOIR_MESSAGE + " TEXT DEFAULT NULL,"
+                            + CapsuleContract.Outbox.MEMOIR_FILE_URI + " TEXT DEFAULT NULL,"
+                            + CapsuleContract.Outbox.STATE + " INTEGER NOT NULL DEFAULT " + CapsuleContract.Outbox.STATE_PENDING + ","
+                            + CapsuleContract.Outbox.ATTEMPTS + " INTEGER NOT NULL DEFAULT 0,"
+                            + CapsuleContract.Outbox.NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0"
+                            + ");"
+            );
+            db.execSQL("CREATE INDEX " + INDEX_OUTBOX_STATE + " ON " + CapsuleContract.Outbox.TABLE_NAME
+                    + " (" + CapsuleContract.Outbox.STATE + ", "
+                    + CapsuleContract.Outbox.NEXT_ATTEMPT + ");");
+        }
+
+        /**
+         * Adds the tables that cache the Capsules discovered around the user by map tile
+         *
+         * @param db The database
+         */
+        private void upgradeToVersion4(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + CapsuleContract.Tiles.TABLE_NAME + " ("
+                            + CapsuleContract.Tiles._ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
+                            + CapsuleContract.Tiles.ACCOUNT_NAME + " TEXT NOT NULL,"
+                            + CapsuleContract.Tiles.GEOHASH + " TEXT NOT NULL,"
+                            + CapsuleContract.Tiles.FETCHED_AT + " INTEGER NOT NULL"
+                            + ");"
+            );
+            db.execSQL("CREATE UNIQUE INDEX " + INDEX_TILES_ACCOUNT_GEOHASH + " ON " + CapsuleContract.Tiles.TABLE_NAME
+                    + " (" + CapsuleContract.Tiles.ACCOUNT_NAME + ", "
+                    + CapsuleContract.Tiles.GEOHASH + ");");
+            db.execSQL("CREATE INDEX " + INDEX_TILES_FETCHED_AT + " ON " + CapsuleContract.Tiles.TABLE_NAME
+                    + " (" + CapsuleContract.Tiles.FETCHED_AT + ");");
+
+            db.execSQL("CREATE TABLE " + CapsuleContract.TileCapsules.TABLE_NAME + " ("
+                            + CapsuleContract.TileCapsules._ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,"
+                            + CapsuleContract.TileCapsules.ACCOUNT_NAME + " TEXT NOT NULL,"
+                            + CapsuleContract.TileCapsules.GEOHASH + " TEXT NOT NULL,"
+                            + CapsuleContract.TileCapsules.SYNC_ID + " INTEGER NOT NULL,"
+                            + CapsuleContract.TileCapsules.NAME + " TEXT DEFAULT NULL,"
+                            + CapsuleContract.TileCapsules.LATITUDE + " REAL NOT NULL,"
+                            + CapsuleContract.TileCapsules.LONGITUDE + " REAL NOT NULL,"
+                            + CapsuleContract.TileCapsules.FETCHED_AT + " INTEGER NOT NULL"
+                            + ");"
+            );
+            db.execSQL("CREATE UNIQUE INDEX " + INDEX_TILE_CAPSULES_ACCOUNT_SYNC_ID + " ON " + CapsuleContract.TileCapsules.TABLE_NAME
+                    + " (" + CapsuleContract.TileCapsules.ACCOUNT_NAME + ", "
+                    + CapsuleContract.TileCapsules.SYNC_ID + ");");
+            db.execSQL("CREATE INDEX " + INDEX_TILE_CAPSULES_ACCOUNT_GEOHASH + " ON " + CapsuleContract.TileCapsules.TABLE_NAME
+                    + " (" + CapsuleContract.TileCapsules.ACCOUNT_NAME + ", "
+                    + CapsuleContract.TileCapsules.GEOHASH + ");");
+        }
 
-            // Recreate the database
-            this.onCreate(db);
+        /**
+         * Adds the geohash column to the Capsules table, fills it in for the existing Capsules and
+         * indexes it for spatial queries
+         *
+         * @param db The database
+         */
+        private void upgradeToVersion5(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + CapsuleContract.Capsules.TABLE_NAME
+                    + " ADD COLUMN " + CapsuleContract.Capsules.GEOHASH + " TEXT DEFAULT NULL;");
+            CapsuleProvider.updateMissingGeohashes(db);
+            db.execSQL("CREATE INDEX " + INDEX_CAPSULES_GEOHASH + " ON " + CapsuleContract.Capsules.TABLE_NAME
+                    + " (" + CapsuleContract.Capsules.GEOHASH + ");");
+        }
+
+        /**
+         * Adds the idempotency key column to the outbox table and gives every queued save a key
+         *
+         * @param db The database
+         */
+        private void upgradeToVersion6(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + CapsuleContract.Outbox.TABLE_NAME
+                    + " ADD COLUMN " + CapsuleContract.Outbox.SAVE_KEY + " TEXT DEFAULT NULL;");
+            db.execSQL("UPDATE " + CapsuleContract.Outbox.TABLE_NAME
+                    + " SET " + CapsuleContract.Outbox.SAVE_KEY + " = lower(hex(randomblob(16)))"
+                    + " WHERE " + CapsuleContract.Outbox.SAVE_KEY + " IS NULL;");
         }
 
         @Override
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
         public void onOpen(SQLiteDatabase db) {
             super.onOpen(db);
-            // Enable foreign keys
             if (!db.isReadOnly()) {
+                // Enable foreign keys
                 db.execSQL("PRAGMA foreign_keys = ON;");
+                // Enable write-ahead logging so queries can run alongside the sync writer
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    db.enableWriteAheadLogging();
+                }
             }
         }
 
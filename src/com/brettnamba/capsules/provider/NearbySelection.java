@@ -0,0 +1,208 @@
+package com.brettnamba.capsules.provider;
+
+import com.brettnamba.capsules.location.Geo;
+import com.brettnamba.capsules.location.Geohash;
+
+import java.util.List;
+
+/**
+ * Builds the selection that restricts a query to the Capsules within a radius or bounding box.
+ *
+ * The geohash index narrows the query down to the rows in a few cells covering the area, which
+ * are then filtered by their coordinates.  SQLite has no trigonometry, so the distance is compared
+ * and ordered on an equirectangular projection around the center, which is accurate at the
+ * distances the map works with.  The projection breaks down across a pole, so a circle that
+ * reaches one is only filtered by its bounding box, which then spans every longitude.
+ *
+ * @author Brett Namba
+ */
+final class NearbySelection {
+
+    /**
+     * The largest number of geohash ranges a query is narrowed down with
+     */
+    static final int MAX_CELLS = 16;
+
+    /**
+     * The southern latitude of the area
+     */
+    private final double mSouth;
+
+    /**
+     * The western longitude of the area
+     */
+    private final double mWest;
+
+    /**
+     * The northern latitude of the area
+     */
+    private final double mNorth;
+
+    /**
+     * The eastern longitude of the area
+     */
+    private final double mEast;
+
+    /**
+     * The WHERE clause
+     */
+    private final String mWhere;
+
+    /**
+     * The ORDER BY clause that sorts the Capsules nearest to the center first
+     */
+    private final String mOrderBy;
+
+    /**
+     * Constructor
+     *
+     * @param south  The southern latitude of the area
+     * @param west   The western longitude of the area
+     * @param north  The northern latitude of the area
+     * @param east   The eastern longitude of the area
+     * @param lat    The latitude of the center
+     * @param lng    The longitude of the center
+     * @param radius The radius in meters, or -1 to only filter by the box
+     */
+    private NearbySelection(double south, double west, double north, double east, double lat,
+                            double lng, double radius) {
+        this.mSouth = south;
+        this.mWest = west;
+        this.mNorth = north;
+        this.mEast = east;
+
+        final String geohash = CapsuleContract.Capsules.GEOHASH;
+        final String latColumn = CapsuleContract.Capsules.LATITUDE;
+        final String lngColumn = CapsuleContract.Capsules.LONGITUDE;
+
+        // Narrow the rows down with a range of the geohash index for each covering cell
+        int precision = Geohash.precisionFor(south, west, north, east, MAX_CELLS);
+        List<String> cells = Geohash.cover(south, west, north, east, precision);
+        StringBuilder where = new StringBuilder("(");
+        for (int i = 0; i < cells.size(); i++) {
+            if (i > 0) {
+                where.append(" OR ");
+            }
+            // Geohash characters all sort before '~', so this is every geohash in the cell
+            where.append("(").append(geohash).append(" >= '").append(cells.get(i)).append("' AND ")
+                    .append(geohash).append(" < '").append(cells.get(i)).append("~')");
+        }
+        where.append(") AND ").append(latColumn).append(" BETWEEN ").append(south).append(" AND ").append(north)
+                .append(" AND ").append(lngColumn).append(" BETWEEN ").append(west).append(" AND ").append(east);
+
+        // Squared distance in degrees of latitude, with longitude scaled down by the latitude
+        double lngScale = Math.cos(Math.toRadians(lat));
+        String distance = "((" + latColumn + " - " + lat + ") * (" + latColumn + " - " + lat + ") + ("
+                + lngColumn + " - " + lng + ") * (" + lngColumn + " - " + lng + ") * " + (lngScale * lngScale) + ")";
+        if (radius >= 0 && !this.reachesPole()) {
+            double radiusDegrees = Math.toDegrees(radius / Geo.EARTH_RADIUS);
+            where.append(" AND ").append(distance).append(" <= ").append(radiusDegrees * radiusDegrees);
+        }
+
+        this.mWhere = where.toString();
+        this.mOrderBy = distance + " ASC";
+    }
+
+    /**
+     * Builds the selection for the Capsules within a radius
+     *
+     * @param lat    The latitude of the center
+     * @param lng    The longitude of the center
+     * @param radius The radius in meters
+     * @return The selection
+     * @throws IllegalArgumentException If a coordinate is out of range or the radius is negative
+     */
+    static NearbySelection forRadius(double lat, double lng, double radius) {
+        NearbySelection.checkLatitude(lat);
+        NearbySelection.checkLongitude(lng);
+        if (Double.isNaN(radius) || Double.isInfinite(radius) || radius < 0) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        double[] box = Geohash.boundingBox(lat, lng, radius);
+        return new NearbySelection(box[0], box[1], box[2], box[3], lat, lng, radius);
+    }
+
+    /**
+     * Builds the selection for the Capsules within a bounding box
+     *
+     * @param south The southern latitude of the box
+     * @param west  The western longitude of the box
+     * @param north The northern latitude of the box
+     * @param east  The eastern longitude of the box
+     * @return The selection
+     * @throws IllegalArgumentException If a coordinate is out of range or the box is inside out
+     */
+    static NearbySelection forBox(double south, double west, double north, double east) {
+        NearbySelection.checkLatitude(south);
+        NearbySelection.checkLatitude(north);
+        NearbySelection.checkLongitude(west);
+        NearbySelection.checkLongitude(east);
+        if (south > north || west > east) {
+            throw new IllegalArgumentException("Invalid box: " + south + ", " + west + ", "
+                    + north + ", " + east);
+        }
+        return new NearbySelection(south, west, north, east, (south + north) / 2,
+                (west + east) / 2, -1);
+    }
+
+    /**
+     * Gets the bounding box the Capsules are filtered by
+     *
+     * @return The box as {south, west, north, east}
+     */
+    double[] getBox() {
+        return new double[]{this.mSouth, this.mWest, this.mNorth, this.mEast};
+    }
+
+    /**
+     * Gets the WHERE clause
+     *
+     * @return The WHERE clause
+     */
+    String getWhere() {
+        return this.mWhere;
+    }
+
+    /**
+     * Gets the ORDER BY clause that sorts the Capsules nearest to the center first
+     *
+     * @return The ORDER BY clause
+     */
+    String getOrderBy() {
+        return this.mOrderBy;
+    }
+
+    /**
+     * Determines if the area reaches the north or south pole
+     *
+     * @return True if the area touches a pole
+     */
+    private boolean reachesPole() {
+        return this.mNorth >= 90 || this.mSouth <= -90;
+    }
+
+    /**
+     * Checks that a latitude is a number from -90 to 90
+     *
+     * @param lat The latitude
+     * @throws IllegalArgumentException If it is not
+     */
+    private static void checkLatitude(double lat) {
+        if (!(lat >= -90 && lat <= 90)) {
+            throw new IllegalArgumentException("Invalid latitude: " + lat);
+        }
+    }
+
+    /**
+     * Checks that a longitude is a number from -180 to 180
+     *
+     * @param lng The longitude
+     * @throws IllegalArgumentException If it is not
+     */
+    private static void checkLongitude(double lng) {
+        if (!(lng >= -180 && lng <= 180)) {
+            throw new IllegalArgumentException("Invalid longitude: " + lng);
+        }
+    }
+
+}
@@ -0,0 +1,374 @@
+package com.brettnamba.capsules.provider;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.brettnamba.capsules.dataaccess.Capsule;
+import com.brettnamba.capsules.location.Geo;
+import com.brettnamba.capsules.location.Geohash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Caches the Capsules discovered around the user by geohash tile.
+ *
+ * A discovery request covers a circle around the user.  Every tile whose center lies inside that
+ * circle is recorded with the time it was fetched, and the returned Capsules are stored under the
+ * tile that contains them.  A later request whose circle only covers fresh tiles would get the
+ * same answer from the server, give or take the edge of a tile, so it is answered from the cache
+ * instead.  Cached
+ * Capsules are returned even when their tiles are stale, so a known area can be shown while the
+ * server is unreachable.
+ *
+ * @author Brett Namba
+ */
+public class TileCache {
+
+    /**
+     * The geohash precision of a tile, which is about 38 by 19 meters at the equator.  Small
+     * tiles let a discovery circle cover most of its area with whole tiles.
+     */
+    public static final int PRECISION = 8;
+
+    /**
+     * How long a tile is fresh after it was fetched, in milliseconds
+     */
+    public static final long MAX_AGE = 15 * 60 * 1000;
+
+    /**
+     * How long tiles and Capsules are kept after they were last fetched, in milliseconds
+     */
+    public static final long EXPIRY = 7 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * The projection used to build Capsules from the cache
+     */
+    private static final String[] PROJECTION = new String[]{
+            CapsuleContract.TileCapsules.SYNC_ID,
+            CapsuleContract.TileCapsules.NAME,
+            CapsuleContract.TileCapsules.LATITUDE,
+            CapsuleContract.TileCapsules.LONGITUDE
+    };
+
+    /**
+     * The projection used to find the cached Capsules within a circle
+     */
+    private static final String[] LOCATION_PROJECTION = new String[]{
+            CapsuleContract.TileCapsules._ID,
+            CapsuleContract.TileCapsules.LATITUDE,
+            CapsuleContract.TileCapsules.LONGITUDE
+    };
+
+    /**
+     * The most rows removed by one DELETE, which keeps it under SQLite's parameter limit
+     */
+    private static final int DELETE_BATCH_SIZE = 500;
+
+    /**
+     * The tag used for logging
+     */
+    private static final String TAG = "TileCache";
+
+    /**
+     * The ContentResolver
+     */
+    private final ContentResolver mResolver;
+
+    /**
+     * Constructor
+     *
+     * @param resolver The ContentResolver
+     */
+    public TileCache(ContentResolver resolver) {
+        this.mResolver = resolver;
+    }
+
+    /**
+     * Checks if every tile covered by a circle was fetched recently
+     *
+     * @param account The Account the tiles were fetched for
+     * @param lat     The latitude of the center
+     * @param lng     The longitude of the center
+     * @param radius  The radius in meters
+     * @param now     The current time in milliseconds since the epoch
+     * @return True if the server does not need to be asked about the circle
+     */
+    public boolean isFresh(Account account, double lat, double lng, double radius, long now) {
+        List<String> tiles = TileCache.getCoveredTiles(lat, lng, radius);
+        if (tiles.isEmpty()) {
+            return false;
+        }
+
+        // Count the fresh tiles
+        String[] args = new String[tiles.size() + 2];
+        args[0] = account.name;
+        args[1] = String.valueOf(now - MAX_AGE);
+        for (int i = 0; i < tiles.size(); i++) {
+            args[i + 2] = tiles.get(i);
+        }
+        Cursor c = this.mResolver.query(
+                CapsuleContract.Tiles.CONTENT_URI,
+                new String[]{CapsuleContract.Tiles._ID},
+                CapsuleContract.Tiles.ACCOUNT_NAME + " = ? AND "
+                        + CapsuleContract.Tiles.FETCHED_AT + " >= ? AND "
+                        + CapsuleContract.Tiles.GEOHASH + " IN ("
+                        + CapsuleOperations.buildPreparedStatementParameters(tiles.size()) + ")",
+                args,
+                null
+        );
+        if (c == null) {
+            return false;
+        }
+        try {
+            return c.getCount() == tiles.size();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Gets the cached Capsules within a circle, nearest first
+     *
+     * @param account The Account the Capsules were discovered by
+     * @param lat     The latitude of the center
+     * @param lng     The longitude of the center
+     * @param radius  The radius in meters
+     * @return The Capsules
+     */
+    public List<Capsule> getCapsules(Account account, final double lat, final double lng,
+                                     double radius) {
+        List<Capsule> capsules = new ArrayList<Capsule>();
+
+        // Query the tiles and drop the corners outside of the circle
+        Cursor c = this.queryOverlappingTiles(account, lat, lng, radius, PROJECTION);
+        if (c == null) {
+            return capsules;
+        }
+        try {
+            while (c.moveToNext()) {
+                Capsule capsule = new Capsule(c);
+                if (Geo.distance(lat, lng, capsule.getLatitude(), capsule.getLongitude()) <= radius) {
+                    capsules.add(capsule);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        Collections.sort(capsules, new Comparator<Capsule>() {
+            @Override
+            public int compare(Capsule lhs, Capsule rhs) {
+                return Double.compare(
+                        Geo.distance(lat, lng, lhs.getLatitude(), lhs.getLongitude()),
+                        Geo.distance(lat, lng, rhs.getLatitude(), rhs.getLongitude()));
+            }
+        });
+        return capsules;
+    }
+
+    /**
+     * Stores the Capsules the server returned for a circle, marks the tiles inside the circle as
+     * fresh and removes anything that has expired.  The result replaces every cached Capsule that
+     * getCapsules() would return for the circle, so Capsules the server no longer returns are
+     * dropped, including those in the tiles along its edge.
+     *
+     * @param account  The Account the Capsules were discovered by
+     * @param lat      The latitude of the center
+     * @param lng      The longitude of the center
+     * @param radius   The radius the server searched in meters
+     * @param capsules The Capsules the server returned
+     * @param now      The current time in milliseconds since the epoch
+     * @return True if the cache was updated
+     */
+    public boolean put(Account account, double lat, double lng, double radius,
+                       List<Capsule> capsules, long now) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        List<String> tiles = TileCache.getCoveredTiles(lat, lng, radius);
+
+        // Clear the circle the server searched before storing what it returned for it
+        List<String> stale = this.getCachedIds(account, lat, lng, radius);
+        for (int start = 0; start < stale.size(); start += DELETE_BATCH_SIZE) {
+            List<String> batch = stale.subList(start, Math.min(start + DELETE_BATCH_SIZE, stale.size()));
+            operations.add(ContentProviderOperation.newDelete(CapsuleContract.TileCapsules.CONTENT_URI)
+                    .withSelection(CapsuleContract.TileCapsules._ID + " IN ("
+                                    + CapsuleOperations.buildPreparedStatementParameters(batch.size()) + ")",
+                            batch.toArray(new String[batch.size()]))
+                    .build());
+        }
+
+        // Store the Capsules under their tiles, replacing any earlier copy
+        if (capsules != null) {
+            for (Capsule capsule : capsules) {
+                ContentValues values = new ContentValues();
+                values.put(CapsuleContract.TileCapsules.ACCOUNT_NAME, account.name);
+                values.put(CapsuleContract.TileCapsules.GEOHASH, Geohash.encode(
+                        capsule.getLatitude(), capsule.getLongitude(), PRECISION));
+                values.put(CapsuleContract.TileCapsules.SYNC_ID, capsule.getSyncId());
+                values.put(CapsuleContract.TileCapsules.NAME, capsule.getName());
+                values.put(CapsuleContract.TileCapsules.LATITUDE, capsule.getLatitude());
+                values.put(CapsuleContract.TileCapsules.LONGITUDE, capsule.getLongitude());
+                values.put(CapsuleContract.TileCapsules.FETCHED_AT, now);
+                operations.add(ContentProviderOperation.newInsert(
+                        CapsuleOperations.appendUpsertQueryParam(CapsuleContract.TileCapsules.CONTENT_URI))
+                        .withValues(values)
+                        .build());
+            }
+        }
+
+        // Mark the tiles the server searched as fresh
+        for (String tile : tiles) {
+            ContentValues values = new ContentValues();
+            values.put(CapsuleContract.Tiles.ACCOUNT_NAME, account.name);
+            values.put(CapsuleContract.Tiles.GEOHASH, tile);
+            values.put(CapsuleContract.Tiles.FETCHED_AT, now);
+            operations.add(ContentProviderOperation.newInsert(
+                    CapsuleOperations.appendUpsertQueryParam(CapsuleContract.Tiles.CONTENT_URI))
+                    .withValues(values)
+                    .build());
+        }
+
+        // Remove what has not been fetched for a long time
+        String[] expired = new String[]{String.valueOf(now - EXPIRY)};
+        operations.add(ContentProviderOperation.newDelete(CapsuleContract.Tiles.CONTENT_URI)
+                .withSelection(CapsuleContract.Tiles.FETCHED_AT + " < ?", expired)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(CapsuleContract.TileCapsules.CONTENT_URI)
+                .withSelection(CapsuleContract.TileCapsules.FETCHED_AT + " < ?", expired)
+                .build());
+
+        try {
+            this.mResolver.applyBatch(CapsuleContract.AUTHORITY, operations);
+            return true;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "put(): " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Removes a Capsule from the cache, such as once it has been opened and is no longer
+     * undiscovered
+     *
+     * @param account The Account the Capsule was discovered by
+     * @param syncId  The sync ID of the Capsule
+     * @return True if the Capsule is no longer cached
+     */
+    public boolean remove(Account account, long syncId) {
+        try {
+            this.mResolver.delete(CapsuleContract.TileCapsules.CONTENT_URI,
+                    CapsuleContract.TileCapsules.ACCOUNT_NAME + " = ? AND "
+                            + CapsuleContract.TileCapsules.SYNC_ID + " = ?",
+                    new String[]{account.name, String.valueOf(syncId)});
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "remove(): " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Gets the row IDs of the cached Capsules within a circle, which are the Capsules that
+     * getCapsules() returns for it
+     *
+     * @param account The Account the Capsules were discovered by
+     * @param lat     The latitude of the center
+     * @param lng     The longitude of the center
+     * @param radius  The radius in meters
+     * @return The row IDs
+     */
+    private List<String> getCachedIds(Account account, double lat, double lng, double radius) {
+        List<String> ids = new ArrayList<String>();
+        Cursor c = this.queryOverlappingTiles(account, lat, lng, radius, LOCATION_PROJECTION);
+        if (c == null) {
+            return ids;
+        }
+        try {
+            while (c.moveToNext()) {
+                if (Geo.distance(lat, lng, c.getDouble(1), c.getDouble(2)) <= radius) {
+                    ids.add(c.getString(0));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Queries the cached Capsules in the tiles that overlap a circle
+     *
+     * @param account    The Account the Capsules were discovered by
+     * @param lat        The latitude of the center
+     * @param lng        The longitude of the center
+     * @param radius     The radius in meters
+     * @param projection The columns to return
+     * @return The Cursor, or null if there are no tiles or the query failed
+     */
+    private Cursor queryOverlappingTiles(Account account, double lat, double lng, double radius,
+                                         String[] projection) {
+        List<String> tiles = TileCache.getOverlappingTiles(lat, lng, radius);
+        if (tiles.isEmpty()) {
+            return null;
+        }
+        String[] args = new String[tiles.size() + 1];
+        args[0] = account.name;
+        for (int i = 0; i < tiles.size(); i++) {
+            args[i + 1] = tiles.get(i);
+        }
+        return this.mResolver.query(
+                CapsuleContract.TileCapsules.CONTENT_URI,
+                projection,
+                CapsuleContract.TileCapsules.ACCOUNT_NAME + " = ? AND "
+                        + CapsuleContract.TileCapsules.GEOHASH + " IN ("
+                        + CapsuleOperations.buildPreparedStatementParameters(tiles.size()) + ")",
+                args,
+                null
+        );
+    }
+
+    /**
+     * Gets the tiles whose centers lie within a circle
+     *
+     * @param lat    The latitude of the center
+     * @param lng    The longitude of the center
+     * @param radius The radius in meters
+     * @return The geohashes of the tiles
+     */
+    private static List<String> getCoveredTiles(double lat, double lng, double radius) {
+        List<String> tiles = new ArrayList<String>();
+        for (String tile : Geohash.cover(lat, lng, radius, PRECISION)) {
+            if (Geohash.isCenterWithin(tile, lat, lng, radius)) {
+                tiles.add(tile);
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Gets the tiles that overlap a circle
+     *
+     * @param lat    The latitude of the center
+     * @param lng    The longitude of the center
+     * @param radius The radius in meters
+     * @return The geohashes of the tiles
+     */
+    private static List<String> getOverlappingTiles(double lat, double lng, double radius) {
+        List<String> tiles = new ArrayList<String>();
+        for (String tile : Geohash.cover(lat, lng, radius, PRECISION)) {
+            if (Geohash.intersects(tile, lat, lng, radius)) {
+                tiles.add(tile);
+            }
+        }
+        return tiles;
+    }
+
+}
@@ -0,0 +1,481 @@
+package com.brettnamba.capsules.services;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.v4.app.NotificationCompat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.brettnamba.capsules.Constants;
+import com.brettnamba.capsules.R;
+import com.brettnamba.capsules.dataaccess.Capsule;
+import com.brettnamba.capsules.dataaccess.Memoir;
+import com.brettnamba.capsules.http.HttpFactory;
+import com.brettnamba.capsules.http.RequestContract;
+import com.brettnamba.capsules.http.RequestHandler;
+import com.brettnamba.capsules.util.JSONParser;
+import com.brettnamba.tomoeame.http.HttpUrlConnectionRequest;
+import com.brettnamba.tomoeame.http.HttpUrlMultiPartRequest;
+import com.brettnamba.tomoeame.http.HttpUrlWwwFormRequest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Validates and saves a single Capsule, reporting the progress on its own notification and
+ * broadcasting the result to SaveCapsuleService.BROADCAST_ACTION.
+ *
+ * @author Brett Namba
+ */
+class CapsuleSaveTask implements HttpUrlConnectionRequest.DataSentListener {
+
+    /**
+     * The outcome of a save
+     */
+    enum Result {
+
+        /**
+         * The Capsule was saved
+         */
+        SAVED,
+
+        /**
+         * The server rejected the Capsule, so sending it again will not help
+         */
+        REJECTED,
+
+        /**
+         * The server could not be reached or did not answer, so the save should be retried
+         */
+        RETRY
+    }
+
+    /**
+     * The current Context
+     */
+    private final Context mContext;
+
+    /**
+     * The Account the Capsule is saved for
+     */
+    private final Account mAccount;
+
+    /**
+     * The Capsule being saved
+     */
+    private final Capsule mCapsule;
+
+    /**
+     * The ID of the outbox row of this save
+     */
+    private final long mSaveId;
+
+    /**
+     * The idempotency key sent with every attempt of this save
+     */
+    private final String mSaveKey;
+
+    /**
+     * The ID of the notification for this save
+     */
+    private final int mNotificationId;
+
+    /**
+     * NotificationManager for sending notification updates on the status of the save
+     */
+    private final NotificationManager mNotifyManager;
+
+    /**
+     * Builder used to create status update notifications
+     */
+    private final NotificationCompat.Builder mNotificationBuilder;
+
+    /**
+     * Shrinks the Memoir image before it is uploaded
+     */
+    private final UploadPreprocessor mPreprocessor;
+
+    /**
+     * Sends a large Memoir file in resumable chunks
+     */
+    private ResumableUpload mResumableUpload;
+
+    /**
+     * Keeps a record of how many bytes have been uploaded for the Capsule save HTTP request
+     */
+    private long mTotalBytesUploaded;
+
+    /**
+     * Keeps a record of current progression percentage-wise for the Capsule save HTTP request.
+     * Used so that notification updates are only sent whenever the percentage progress has
+     * changed by a full percentage point.
+     */
+    private int mCurrentUploadProgressPercentage;
+
+    /**
+     * Memoir files larger than this many bytes are only uploaded after the text data has been
+     * validated on its own
+     */
+    static final long VALIDATE_FIRST_SIZE = 1024 * 1024;
+
+    /**
+     * The tag used for logging
+     */
+    private static final String TAG = "CapsuleSaveTask";
+
+    /**
+     * Constructor
+     *
+     * @param context        The current Context
+     * @param account        The Account the Capsule is saved for
+     * @param capsule        The Capsule to save
+     * @param saveId         The ID of the outbox row of the save
+     * @param saveKey        The idempotency key sent with every attempt of the save
+     * @param notificationId The ID of the notification for this save
+     */
+    CapsuleSaveTask(Context context, Account account, Capsule capsule, long saveId,
+                    String saveKey, int notificationId) {
+        this.mContext = context;
+        this.mAccount = account;
+        this.mCapsule = capsule;
+        this.mSaveId = saveId;
+        this.mSaveKey = saveKey;
+        this.mNotificationId = notificationId;
+        // Get the NotificationManager
+        this.mNotifyManager = (NotificationManager) context.getSystemService(
+                Context.NOTIFICATION_SERVICE);
+        // Instantiate the Notification builder
+        this.mNotificationBuilder = new NotificationCompat.Builder(context);
+        this.mNotificationBuilder.setContentTitle(context.getString(R.string.progress_saving_capsule))
+                .setContentText(context.getString(R.string.progress_please_wait))
+                .setSmallIcon(R.drawable.ic_place_black_24dp);
+        // Instantiate the image preprocessor
+        this.mPreprocessor = new UploadPreprocessor(context, saveId,
+                UploadPreprocessor.DEFAULT_MAX_DIMENSION, UploadPreprocessor.DEFAULT_QUALITY);
+    }
+
+    /**
+     * Saves the Capsule.  The save request is validated by the server, so it is sent straight
+     * away unless the Memoir file is large, in which case the text data is validated first so a
+     * rejected Capsule does not cost the whole upload.
+     *
+     * @return The outcome of the save
+     */
+    Result run() {
+        // Shrink the Memoir image so fewer bytes are uploaded
+        this.preprocessMemoirFile(this.mCapsule);
+
+        // Send the save optimistically if there is little to lose
+        if (CapsuleSaveTask.getAttachmentSize(this.mContext, this.mCapsule) <= VALIDATE_FIRST_SIZE) {
+            return this.sendCapsuleSaveRequest(this.mCapsule);
+        }
+
+        // Execute a HTTP request to just validate the Capsule text data
+        HttpUrlWwwFormRequest validationRequest = RequestHandler.validateCapsule(this.mContext,
+                this.mAccount, this.mCapsule, this);
+        if (validationRequest.isSuccess()) {
+            // The validation was successful, so perform the real request
+            return this.sendCapsuleSaveRequest(this.mCapsule);
+        }
+        if (!CapsuleSaveTask.hasMessages(validationRequest)) {
+            // There was no answer from the server, so try again later
+            this.notifyRetry();
+            return Result.RETRY;
+        }
+        // The validation was not successful, so display the error messages
+        this.cleanUp();
+        this.parseAndBroadcastErrors(validationRequest);
+        return Result.REJECTED;
+    }
+
+    /**
+     * Reports that the save was given up on after too many attempts
+     */
+    void fail() {
+        this.cleanUp();
+        this.mNotificationBuilder.setContentText(
+                this.mContext.getString(R.string.result_error_encountered)).setProgress(0, 0, false);
+        this.mNotifyManager.notify(this.mNotificationId, this.mNotificationBuilder.build());
+        List<String> messages = new ArrayList<String>();
+        messages.add(this.mContext.getString(R.string.error_upload_interrupted));
+        this.broadcastError(messages);
+    }
+
+    /**
+     * Determines the total number of bytes uploaded and sends out a notification if the progress
+     * has changed
+     *
+     * @param bytesUploaded The number of bytes that were just written to the stream
+     * @param totalBytes    The total number of bytes for the whole HTTP request
+     */
+    @Override
+    public void onDataSent(long bytesUploaded, long totalBytes) {
+        this.mTotalBytesUploaded += bytesUploaded;
+        int currentProgressPercentage = (int) (100 * this.mTotalBytesUploaded / totalBytes);
+        if (currentProgressPercentage > this.mCurrentUploadProgressPercentage) {
+            // Set the new progress status on the Notification
+            this.mNotificationBuilder.setProgress(100, currentProgressPercentage, false);
+            this.mNotifyManager.notify(this.mNotificationId, this.mNotificationBuilder.build());
+            // Retain the most recent progress percentage
+            this.mCurrentUploadProgressPercentage = currentProgressPercentage;
+        }
+    }
+
+    /**
+     * Sends a Capsule save HTTP request and broadcasts the result.  Validation failures come
+     * back in the save response the same way they do for a validation request.
+     *
+     * @param capsule The Capsule to save
+     * @return The outcome of the save
+     */
+    private Result sendCapsuleSaveRequest(Capsule capsule) {
+        // Send a large Memoir file ahead of the save request in resumable chunks
+        String uploadId;
+        try {
+            uploadId = this.sendResumableUpload(capsule);
+        } catch (IOException e) {
+            Log.e(TAG, "sendCapsuleSaveRequest(): " + e.getMessage());
+            // The upload session is kept, so the retry continues it
+            this.notifyRetry();
+            return Result.RETRY;
+        }
+
+        // Send the save request
+        HttpUrlConnectionRequest httpRequest;
+        boolean success;
+        if (uploadId != null) {
+            HttpUrlWwwFormRequest formRequest = RequestHandler.saveCapsule(this.mContext,
+                    this.mAccount, capsule, this.mSaveKey, uploadId);
+            success = formRequest.isSuccess();
+            httpRequest = formRequest;
+        } else {
+            HttpUrlMultiPartRequest multiPartRequest = RequestHandler.saveCapsule(this.mContext,
+                    this.mAccount, capsule, this.mSaveKey, this);
+            success = multiPartRequest.isSuccess();
+            httpRequest = multiPartRequest;
+        }
+
+        // Determine if the request was a success
+        if (success) {
+            // The upload session and the processed image are no longer needed
+            this.cleanUp();
+            // Build a successful notification
+            this.mNotificationBuilder.setContentText(this.mContext.getString(R.string.result_complete))
+                    .setProgress(0, 0, false);
+            this.mNotifyManager.notify(this.mNotificationId, this.mNotificationBuilder.build());
+            // Broadcast the successful result
+            this.parseAndBroadcastSuccess(httpRequest);
+            return Result.SAVED;
+        }
+        if (!CapsuleSaveTask.hasMessages(httpRequest)) {
+            // There was no answer from the server, so try again later
+            this.notifyRetry();
+            return Result.RETRY;
+        }
+        // Sending it again will not help, so drop what was kept for a retry
+        this.cleanUp();
+        // Build an error notification
+        this.mNotificationBuilder.setContentText(
+                this.mContext.getString(R.string.result_error_encountered)).setProgress(0, 0, false);
+        this.mNotifyManager.notify(this.mNotificationId, this.mNotificationBuilder.build());
+        // The save was not successful, so display the error messages
+        this.parseAndBroadcastErrors(httpRequest);
+        return Result.REJECTED;
+    }
+
+    /**
+     * Replaces the Memoir image with a smaller copy and reports how much smaller it is on the
+     * progress notification
+     *
+     * @param capsule The Capsule being saved
+     */
+    private void preprocessMemoirFile(Capsule capsule) {
+        Memoir memoir = capsule.getMemoir();
+        if (memoir == null || memoir.getFileContentUri() == null) {
+            return;
+        }
+        Uri originalUri = memoir.getFileContentUri();
+        Uri processedUri = this.mPreprocessor.process(originalUri);
+        if (processedUri.equals(originalUri)) {
+            return;
+        }
+        memoir.setFileContentUri(processedUri);
+
+        // Show the size of the upload relative to the original
+        long originalSize = ResumableUpload.getSize(this.mContext, originalUri);
+        long processedSize = ResumableUpload.getSize(this.mContext, processedUri);
+        if (originalSize > 0 && processedSize > 0) {
+            this.mNotificationBuilder.setContentText(this.mContext.getString(
+                    R.string.progress_image_reduced, (int) (100 * processedSize / originalSize)));
+            this.mNotifyManager.notify(this.mNotificationId, this.mNotificationBuilder.build());
+        }
+    }
+
+    /**
+     * Sends the Memoir file with a resumable upload if it is large enough to be worth resuming
+     *
+     * @param capsule The Capsule being saved
+     * @return The ID of the completed upload, or null if the file should be sent with the save
+     * request instead
+     * @throws IOException If the upload failed
+     */
+    private String sendResumableUpload(Capsule capsule) throws IOException {
+        if (capsule.getMemoir() == null || capsule.getMemoir().getFileContentUri() == null) {
+            return null;
+        }
+        Uri fileUri = capsule.getMemoir().getFileContentUri();
+        long size = ResumableUpload.getSize(this.mContext, fileUri);
+        if (size <= ResumableUpload.CHUNK_SIZE) {
+            return null;
+        }
+        // The chunks are sent outside of tomoeame, so they need the token directly
+        String authToken;
+        try {
+            authToken = AccountManager.get(this.mContext).blockingGetAuthToken(this.mAccount,
+                    Constants.AUTH_TOKEN_TYPE, true);
+        } catch (OperationCanceledException | AuthenticatorException e) {
+            return null;
+        }
+        if (authToken == null) {
+            return null;
+        }
+        this.mResumableUpload = new ResumableUpload(this.mContext,
+                new RequestHandler(HttpFactory.getInstance()), authToken, this.mSaveId);
+        return this.mResumableUpload.upload(fileUri, size, this);
+    }
+
+    /**
+     * Gets the size of the Memoir file that will be uploaded
+     *
+     * @param context The current Context
+     * @param capsule The Capsule being saved
+     * @return The size in bytes, or 0 if there is no file
+     */
+    private static long getAttachmentSize(Context context, Capsule capsule) {
+        Memoir memoir = capsule.getMemoir();
+        if (memoir == null || memoir.getFileContentUri() == null) {
+            return 0;
+        }
+        long size = ResumableUpload.getSize(context, memoir.getFileContentUri());
+        // An unknown size is treated as large so a rejection stays cheap
+        return size >= 0 ? size : Long.MAX_VALUE;
+    }
+
+    /**
+     * Forgets the resumable upload session and deletes the processed image once the save is
+     * over, so nothing kept for a retry is left behind
+     */
+    private void cleanUp() {
+        ResumableUpload.finish(this.mContext, this.mSaveId);
+        this.mPreprocessor.finish();
+    }
+
+    /**
+     * Shows that the save is waiting to be retried
+     */
+    private void notifyRetry() {
+        this.mNotificationBuilder.setContentText(
+                this.mContext.getString(R.string.progress_waiting_to_retry)).setProgress(0, 0, false);
+        this.mNotifyManager.notify(this.mNotificationId, this.mNotificationBuilder.build());
+    }
+
+    /**
+     * Determines if a failed request was answered by the server with messages, as opposed to
+     * failing before the server could answer
+     *
+     * @param httpRequest The failed HTTP request object
+     * @return True if the response body holds API messages
+     */
+    private static boolean hasMessages(HttpUrlConnectionRequest httpRequest) {
+        String body = httpRequest.getResponseBody();
+        if (TextUtils.isEmpty(body)) {
+            return false;
+        }
+        try {
+            return new JSONObject(body).has(RequestContract.Field.MESSAGES);
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a successful HTTP request object and broadcasts the result
+     *
+     * @param httpRequest The successful HTTP request object
+     */
+    private void parseAndBroadcastSuccess(HttpUrlConnectionRequest httpRequest) {
+        // Will hold the newly saved Capsule parsed from the HTTP response
+        Capsule savedCapsule = null;
+        try {
+            // Parse the HTTP response
+            JSONObject jsonResponse = new JSONObject(httpRequest.getResponseBody());
+            savedCapsule = JSONParser.parseOwnershipCapsule(jsonResponse);
+        } catch (JSONException e) {
+            // There was a parsing error, so broadcast an error
+            List<String> messages = new ArrayList<String>();
+            messages.add(this.mContext.getString(R.string.error_cannot_parse_http_response));
+            this.broadcastError(messages);
+        } finally {
+            // Broadcast the newly saved Capsule
+            this.broadcastSuccess(savedCapsule);
+        }
+    }
+
+    /**
+     * Parses an unsuccessful HTTP request object and broadcasts the result
+     *
+     * @param httpRequest The unsuccessful HTTP request object
+     */
+    private void parseAndBroadcastErrors(HttpUrlConnectionRequest httpRequest) {
+        // Will hold any validation messages
+        List<String> validationMessages = new ArrayList<String>();
+        try {
+            // Parse the HTTP response
+            JSONObject jsonResponse = new JSONObject(httpRequest.getResponseBody());
+            validationMessages = JSONParser.parseSaveCapsuleMessages(jsonResponse);
+        } catch (JSONException e) {
+            // There was a parse error, so indicate that in the error messages
+            validationMessages.add(this.mContext.getString(R.string.error_cannot_parse_http_response));
+        } finally {
+            // Broadcast the error messages
+            this.broadcastError(validationMessages);
+        }
+    }
+
+    /**
+     * Creates an Intent with the newly saved Capsule and broadcasts it
+     *
+     * @param capsule The newly saved Capsule
+     */
+    private void broadcastSuccess(Capsule capsule) {
+        // Create an Intent to broadcast
+        Intent intent = new Intent(SaveCapsuleService.BROADCAST_ACTION);
+        intent.putExtra("capsule", capsule);
+        // Broadcast the result
+        this.mContext.sendBroadcast(intent);
+    }
+
+    /**
+     * Creates an Intent with the specified messages and broadcasts it
+     *
+     * @param messages A collection of messages to broadcast
+     */
+    private void broadcastError(List<String> messages) {
+        // Create an Intent to broadcast
+        Intent intent = new Intent(SaveCapsuleService.BROADCAST_ACTION);
+        intent.putStringArrayListExtra("messages", (ArrayList<String>) messages);
+        // Broadcast the result
+        this.mContext.sendBroadcast(intent);
+    }
+
+}
@@ -0,0 +1,351 @@
+package com.brettnamba.capsules.services;
+
+import android.accounts.Account;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.brettnamba.capsules.Constants;
+import com.brettnamba.capsules.dataaccess.Capsule;
+import com.brettnamba.capsules.provider.CapsuleContract;
+import com.brettnamba.capsules.provider.CapsuleOperations;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Drains the outbox table of Capsule saves.
+ *
+ * Saves are written to the outbox before anything is sent, so they survive the process being
+ * killed.  Due saves are sent by a small pool of threads, so several Capsules can be uploading
+ * at once without any of them waiting for the whole queue.  A save that could not reach the
+ * server is retried with an exponential backoff, and an alarm restarts SaveCapsuleService when
+ * the next retry is due.  Each attempt is counted before it is sent, so a save that crashes or
+ * was being sent when the process died is picked up again by the first drain after its backoff,
+ * and is given up on like any other once it runs out of attempts.  Every attempt carries the
+ * same idempotency key, so a retry of a save the server stored before its answer was lost does
+ * not create a second Capsule.
+ *
+ * @author Brett Namba
+ */
+final class OutboxWorker {
+
+    /**
+     * Listens for the OutboxWorker running out of saves to send
+     */
+    interface IdleListener {
+
+        /**
+         * Called when the last save being sent has finished
+         */
+        void onIdle();
+
+    }
+
+    /**
+     * The number of saves that are sent at once.  No larger than the BULK_UPLOAD limit of the
+     * RequestScheduler, or the extra workers would only wait for a slot.
+     */
+    static final int PARALLELISM = 2;
+
+    /**
+     * The number of attempts before a save is given up on
+     */
+    static final int MAX_ATTEMPTS = 8;
+
+    /**
+     * The delay before the first retry, in milliseconds.  Doubles with each attempt.
+     */
+    static final long INITIAL_BACKOFF = 30 * 1000;
+
+    /**
+     * The longest delay between retries, in milliseconds
+     */
+    static final long MAX_BACKOFF = 30 * 60 * 1000;
+
+    /**
+     * The base of the notification IDs, which are offset by the outbox row ID
+     */
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * The name of the WakeLock
+     */
+    private static final String WAKE_LOCK_TAG = "OutboxWorker";
+
+    /**
+     * The tag used for logging
+     */
+    private static final String TAG = "OutboxWorker";
+
+    /**
+     * The shared instance
+     */
+    private static OutboxWorker sInstance;
+
+    /**
+     * The application Context
+     */
+    private final Context mContext;
+
+    /**
+     * Sends the saves
+     */
+    private final ExecutorService mExecutor;
+
+    /**
+     * The IDs of the outbox rows that are being sent
+     */
+    private final Set<Long> mInFlight = new HashSet<Long>();
+
+    /**
+     * Keeps the device awake while any save is being sent
+     */
+    private final PowerManager.WakeLock mWakeLock;
+
+    /**
+     * Notified when no save is being sent
+     */
+    private IdleListener mIdleListener;
+
+    /**
+     * Constructor
+     *
+     * @param context The application Context
+     */
+    private OutboxWorker(Context context) {
+        this.mContext = context;
+        this.mExecutor = Executors.newFixedThreadPool(PARALLELISM);
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG);
+        this.mWakeLock.setReferenceCounted(true);
+    }
+
+    /**
+     * Gets the shared instance
+     *
+     * @param context The current Context
+     * @return The OutboxWorker
+     */
+    static synchronized OutboxWorker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OutboxWorker(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sets the listener that is notified when no save is being sent
+     *
+     * @param listener The listener or null to remove it
+     */
+    synchronized void setIdleListener(IdleListener listener) {
+        this.mIdleListener = listener;
+    }
+
+    /**
+     * Checks if no save is being sent
+     *
+     * @return True if nothing is in flight
+     */
+    synchronized boolean isIdle() {
+        return this.mInFlight.isEmpty();
+    }
+
+    /**
+     * Adds a save to the outbox
+     *
+     * @param context The current Context
+     * @param capsule The Capsule to save
+     * @param account The Account to save it for
+     * @return The URI of the outbox row, or null on failure
+     */
+    static Uri enqueue(Context context, Capsule capsule, Account account) {
+        return context.getContentResolver().insert(CapsuleContract.Outbox.CONTENT_URI,
+                CapsuleOperations.Outbox.buildContentValues(capsule, account));
+    }
+
+    /**
+     * Starts sending every due save that is not already being sent, and sets an alarm for the
+     * earliest save that is waiting on its backoff
+     */
+    synchronized void drain() {
+        ContentResolver resolver = this.mContext.getContentResolver();
+        long now = System.currentTimeMillis();
+        long nextAttempt = Long.MAX_VALUE;
+
+        Cursor c = resolver.query(
+                CapsuleContract.Outbox.CONTENT_URI,
+                null,
+                CapsuleContract.Outbox.STATE + " != ?",
+                new String[]{String.valueOf(CapsuleContract.Outbox.STATE_FAILED)},
+                CapsuleContract.Outbox._ID
+        );
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                final long id = c.getLong(c.getColumnIndex(CapsuleContract.Outbox._ID));
+                if (this.mInFlight.contains(id)) {
+                    continue;
+                }
+                long due = c.getLong(c.getColumnIndex(CapsuleContract.Outbox.NEXT_ATTEMPT));
+                if (due > now) {
+                    nextAttempt = Math.min(nextAttempt, due);
+                    continue;
+                }
+                // Send the save on the pool
+                final Capsule capsule = CapsuleOperations.Outbox.getCapsule(c);
+                final Account account = new Account(
+                        c.getString(c.getColumnIndex(CapsuleContract.Outbox.ACCOUNT_NAME)),
+                        Constants.ACCOUNT_TYPE);
+                final int attempts = c.getInt(c.getColumnIndex(CapsuleContract.Outbox.ATTEMPTS));
+                final String saveKey = c.getString(c.getColumnIndex(CapsuleContract.Outbox.SAVE_KEY));
+                this.mInFlight.add(id);
+                this.mWakeLock.acquire();
+                this.mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            OutboxWorker.this.send(id, capsule, account, saveKey, attempts);
+                        } catch (RuntimeException e) {
+                            // The attempt was already counted, so the save waits for its backoff
+                            Log.e(TAG, "drain(): " + e.getMessage());
+                        } finally {
+                            OutboxWorker.this.finish(id);
+                        }
+                    }
+                });
+            }
+        } finally {
+            c.close();
+        }
+
+        // Wake up for the next retry
+        if (nextAttempt != Long.MAX_VALUE) {
+            this.scheduleDrain(nextAttempt);
+        }
+    }
+
+    /**
+     * Sends a single save and records the outcome in the outbox
+     *
+     * @param id       The ID of the outbox row
+     * @param capsule  The Capsule to save
+     * @param account  The Account to save it for
+     * @param saveKey  The idempotency key of the save
+     * @param attempts The number of attempts that were already made
+     */
+    private void send(long id, Capsule capsule, Account account, String saveKey, int attempts) {
+        ContentResolver resolver = this.mContext.getContentResolver();
+        Uri uri = ContentUris.withAppendedId(CapsuleContract.Outbox.CONTENT_URI, id);
+        CapsuleSaveTask task = new CapsuleSaveTask(this.mContext, account, capsule, id, saveKey,
+                NOTIFICATION_ID + (int) id);
+
+        // An attempt that never finished may have used up the last one
+        if (attempts >= MAX_ATTEMPTS) {
+            OutboxWorker.markFailed(resolver, uri, task);
+            return;
+        }
+
+        // Count the attempt and back off before it is sent, so a crash cannot retry it at once
+        ContentValues values = new ContentValues();
+        attempts++;
+        values.put(CapsuleContract.Outbox.STATE, CapsuleContract.Outbox.STATE_UPLOADING);
+        values.put(CapsuleContract.Outbox.ATTEMPTS, attempts);
+        values.put(CapsuleContract.Outbox.NEXT_ATTEMPT,
+                System.currentTimeMillis() + OutboxWorker.getBackoff(attempts));
+        resolver.update(uri, values, null, null);
+
+        CapsuleSaveTask.Result result = task.run();
+        if (result != CapsuleSaveTask.Result.RETRY) {
+            // The server has answered, so the save is done either way
+            resolver.delete(uri, null, null);
+            return;
+        }
+
+        // Wait for the backoff before the next attempt, or give up
+        if (attempts >= MAX_ATTEMPTS) {
+            OutboxWorker.markFailed(resolver, uri, task);
+        } else {
+            values.clear();
+            values.put(CapsuleContract.Outbox.STATE, CapsuleContract.Outbox.STATE_PENDING);
+            resolver.update(uri, values, null, null);
+        }
+    }
+
+    /**
+     * Gives up on a save
+     *
+     * @param resolver The ContentResolver
+     * @param uri      The URI of the outbox row
+     * @param task     The save
+     */
+    private static void markFailed(ContentResolver resolver, Uri uri, CapsuleSaveTask task) {
+        ContentValues values = new ContentValues();
+        values.put(CapsuleContract.Outbox.STATE, CapsuleContract.Outbox.STATE_FAILED);
+        resolver.update(uri, values, null, null);
+        task.fail();
+    }
+
+    /**
+     * Releases a finished save and looks for more work
+     *
+     * @param id The ID of the outbox row
+     */
+    private void finish(long id) {
+        synchronized (this) {
+            this.mInFlight.remove(id);
+        }
+        IdleListener listener = null;
+        try {
+            this.drain();
+            synchronized (this) {
+                if (this.mInFlight.isEmpty()) {
+                    listener = this.mIdleListener;
+                }
+            }
+        } finally {
+            this.mWakeLock.release();
+        }
+        if (listener != null) {
+            listener.onIdle();
+        }
+    }
+
+    /**
+     * Sets an alarm that starts SaveCapsuleService to drain the outbox
+     *
+     * @param time When to drain, in milliseconds since the epoch
+     */
+    private void scheduleDrain(long time) {
+        AlarmManager alarmManager = (AlarmManager) this.mContext.getSystemService(
+                Context.ALARM_SERVICE);
+        PendingIntent operation = PendingIntent.getService(this.mContext, 0,
+                SaveCapsuleService.buildDrainIntent(this.mContext),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.set(AlarmManager.RTC_WAKEUP, time, operation);
+    }
+
+    /**
+     * Gets the delay before the next attempt
+     *
+     * @param attempts The number of attempts that have failed
+     * @return The delay in milliseconds
+     */
+    private static long getBackoff(int attempts) {
+        long backoff = INITIAL_BACKOFF << Math.min(attempts - 1, 16);
+        return Math.min(backoff, MAX_BACKOFF);
+    }
+
+}
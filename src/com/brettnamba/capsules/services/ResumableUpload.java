@@ -0,0 +1,406 @@
+package com.brettnamba.capsules.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.brettnamba.capsules.http.RequestHandler;
+import com.brettnamba.capsules.http.response.UploadResponse;
+import com.brettnamba.tomoeame.http.HttpUrlConnectionRequest;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Uploads a file in fixed-size chunks so that a dropped connection only costs the chunk that was
+ * in flight.
+ *
+ * The server creates an upload session and acknowledges the number of bytes it has stored after
+ * each chunk.  The next chunk always starts at the acknowledged offset, and a failed chunk is
+ * retried with a backoff.  The session ID is kept in SharedPreferences under the outbox row of the
+ * save until the Capsule has been saved, so if the process dies the next attempt of the same save
+ * asks the server for its offset and continues from there instead of sending the file again.  Two
+ * saves of the same file each have their own session.
+ *
+ * @author Brett Namba
+ */
+class ResumableUpload {
+
+    /**
+     * The number of bytes sent in each chunk
+     */
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The number of times a chunk is attempted before the upload is given up on
+     */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The delay before the first retry of a chunk, in milliseconds.  Doubles with each retry.
+     */
+    private static final long INITIAL_BACKOFF = 1000;
+
+    /**
+     * The name of the SharedPreferences that hold the upload sessions
+     */
+    private static final String SHARED_PREFS_UPLOADS_KEY = "uploads";
+
+    /**
+     * Separates the file size from the upload ID in a stored session
+     */
+    private static final String SESSION_SEPARATOR = ":";
+
+    /**
+     * The tag used for logging
+     */
+    private static final String TAG = "ResumableUpload";
+
+    /**
+     * The current Context
+     */
+    private final Context mContext;
+
+    /**
+     * Sends the upload requests
+     */
+    private final RequestHandler mRequestHandler;
+
+    /**
+     * The authentication token
+     */
+    private final String mAuthToken;
+
+    /**
+     * The upload sessions that have not been finished, keyed by the outbox row of the save
+     */
+    private final SharedPreferences mSessions;
+
+    /**
+     * The key of the session for this save
+     */
+    private final String mSessionKey;
+
+    /**
+     * Constructor
+     *
+     * @param context        The current Context
+     * @param requestHandler Sends the upload requests
+     * @param authToken      The authentication token
+     * @param saveId         The ID of the outbox row of the save the file is uploaded for
+     */
+    ResumableUpload(Context context, RequestHandler requestHandler, String authToken, long saveId) {
+        this(context, context.getSharedPreferences(SHARED_PREFS_UPLOADS_KEY, Context.MODE_PRIVATE),
+                requestHandler, authToken, saveId);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context        The current Context
+     * @param sessions       The upload sessions that have not been finished
+     * @param requestHandler Sends the upload requests
+     * @param authToken      The authentication token
+     * @param saveId         The ID of the outbox row of the save the file is uploaded for
+     */
+    ResumableUpload(Context context, SharedPreferences sessions, RequestHandler requestHandler,
+                    String authToken, long saveId) {
+        this.mContext = context;
+        this.mSessions = sessions;
+        this.mRequestHandler = requestHandler;
+        this.mAuthToken = authToken;
+        this.mSessionKey = ResumableUpload.getSessionKey(saveId);
+    }
+
+    /**
+     * Gets the size of a file
+     *
+     * @param context The current Context
+     * @param fileUri The content URI of the file
+     * @return The size in bytes, or -1 if it cannot be determined
+     */
+    static long getSize(Context context, Uri fileUri) {
+        AssetFileDescriptor descriptor = null;
+        try {
+            descriptor = context.getContentResolver().openAssetFileDescriptor(fileUri, "r");
+            return descriptor != null ? descriptor.getLength() : -1;
+        } catch (FileNotFoundException e) {
+            return -1;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "getSize(): " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Uploads the file, continuing a previous session of the same save if the server still has
+     * it.  Bytes the server already acknowledged are reported to the listener once up front.
+     *
+     * @param fileUri  The content URI of the file
+     * @param size     The size of the file in bytes
+     * @param listener Receives the number of bytes acknowledged by the server
+     * @return The ID of the completed upload, or null if the server does not handle resumable
+     * uploads
+     * @throws IOException If the upload failed.  The session is kept so it can be resumed.
+     */
+    String upload(Uri fileUri, long size, HttpUrlConnectionRequest.DataSentListener listener)
+            throws IOException {
+        // Continue the previous session or start a new one
+        String uploadId = this.getSession(size);
+        long offset = -1;
+        if (uploadId != null) {
+            UploadResponse status = new UploadResponse(
+                    this.mRequestHandler.requestUploadStatus(this.mAuthToken, uploadId));
+            if (status.isSuccess()) {
+                offset = status.getOffset();
+            } else {
+                this.finish();
+                uploadId = null;
+            }
+        }
+        if (uploadId == null) {
+            UploadResponse start = new UploadResponse(this.mRequestHandler.requestUploadStart(
+                    this.mAuthToken, size, this.getType(fileUri)));
+            if (!start.isSupported()) {
+                return null;
+            }
+            if (!start.isSuccess() || start.getUploadId() == null) {
+                throw new IOException("The upload session could not be started");
+            }
+            uploadId = start.getUploadId();
+            offset = start.getOffset();
+            this.putSession(size, uploadId);
+        }
+        if (offset > 0 && listener != null) {
+            listener.onDataSent(Math.min(offset, size), size);
+        }
+
+        // Send the remaining chunks
+        byte[] chunk = new byte[CHUNK_SIZE];
+        InputStream in = null;
+        long position = 0;
+        int attempt = 0;
+        try {
+            while (offset < size) {
+                // Read the chunk that starts at the acknowledged offset
+                if (in == null || position > offset) {
+                    ResumableUpload.close(in);
+                    in = this.openFile(fileUri);
+                    if (in == null) {
+                        throw new FileNotFoundException(fileUri.toString());
+                    }
+                    position = 0;
+                }
+                position += ResumableUpload.skip(in, offset - position);
+                int length = ResumableUpload.read(in, chunk, (int) Math.min(CHUNK_SIZE, size - offset));
+                position += length;
+                if (length <= 0) {
+                    throw new IOException("The file ended before " + size + " bytes");
+                }
+
+                // Send it and move to the offset the server acknowledged
+                UploadResponse response = null;
+                try {
+                    response = new UploadResponse(this.mRequestHandler.requestUploadChunk(
+                            this.mAuthToken, uploadId, chunk, length, offset, size));
+                } catch (IOException e) {
+                    Log.e(TAG, "upload(): " + e.getMessage());
+                }
+                if (response != null && response.isExpired()) {
+                    this.finish();
+                    throw new IOException("The upload session expired");
+                }
+                if (response != null && (response.isSuccess() || response.isOffsetConflict())
+                        && response.getOffset() >= 0) {
+                    long acknowledged = Math.min(response.getOffset(), size);
+                    if (acknowledged > offset) {
+                        if (listener != null) {
+                            listener.onDataSent(acknowledged - offset, size);
+                        }
+                        offset = acknowledged;
+                        attempt = 0;
+                        continue;
+                    }
+                    // No progress is retried the same way as a failed request
+                    offset = acknowledged;
+                }
+
+                // Back off before trying the chunk again
+                attempt++;
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw new IOException("The chunk at " + offset + " could not be sent");
+                }
+                this.sleep(INITIAL_BACKOFF << (attempt - 1));
+            }
+        } finally {
+            ResumableUpload.close(in);
+        }
+
+        return uploadId;
+    }
+
+    /**
+     * Forgets the upload session of the save once the Capsule that uses it has been saved
+     */
+    void finish() {
+        this.mSessions.edit().remove(this.mSessionKey).commit();
+    }
+
+    /**
+     * Forgets the upload session of a save without an upload in progress, such as when the
+     * Capsule that uses it is rejected or given up on
+     *
+     * @param context The current Context
+     * @param saveId  The ID of the outbox row of the save
+     */
+    static void finish(Context context, long saveId) {
+        context.getSharedPreferences(SHARED_PREFS_UPLOADS_KEY, Context.MODE_PRIVATE).edit()
+                .remove(ResumableUpload.getSessionKey(saveId)).commit();
+    }
+
+    /**
+     * Opens the file
+     *
+     * @param fileUri The content URI of the file
+     * @return The stream or null if the file could not be opened
+     * @throws FileNotFoundException
+     */
+    InputStream openFile(Uri fileUri) throws FileNotFoundException {
+        return this.mContext.getContentResolver().openInputStream(fileUri);
+    }
+
+    /**
+     * Gets the MIME type of the file
+     *
+     * @param fileUri The content URI of the file
+     * @return The MIME type or null if it is not known
+     */
+    String getType(Uri fileUri) {
+        return this.mContext.getContentResolver().getType(fileUri);
+    }
+
+    /**
+     * Waits before a retry
+     *
+     * @param millis The delay in milliseconds
+     * @throws InterruptedIOException If the thread is interrupted while waiting
+     */
+    void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the key a save's upload session is stored under
+     *
+     * @param saveId The ID of the outbox row of the save
+     * @return The key
+     */
+    private static String getSessionKey(long saveId) {
+        return "save-" + saveId;
+    }
+
+    /**
+     * Gets the stored upload session of the save
+     *
+     * @param size The current size of the file
+     * @return The upload ID or null if there is no session for the file at its current size
+     */
+    private String getSession(long size) {
+        String session = this.mSessions.getString(this.mSessionKey, null);
+        if (session == null) {
+            return null;
+        }
+        int separator = session.indexOf(SESSION_SEPARATOR);
+        if (separator < 0 || !session.substring(0, separator).equals(Long.toString(size))) {
+            return null;
+        }
+        return session.substring(separator + 1);
+    }
+
+    /**
+     * Stores the upload session of the save
+     *
+     * @param size     The size of the file
+     * @param uploadId The ID of the upload session
+     */
+    private void putSession(long size, String uploadId) {
+        this.mSessions.edit()
+                .putString(this.mSessionKey, size + SESSION_SEPARATOR + uploadId)
+                .commit();
+    }
+
+    /**
+     * Skips bytes in the stream
+     *
+     * @param in    The stream
+     * @param count The number of bytes to skip
+     * @return The number of bytes skipped
+     * @throws IOException
+     */
+    private static long skip(InputStream in, long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long n = in.skip(count - skipped);
+            if (n <= 0) {
+                // skip() may stop early, so fall back to reading
+                if (in.read() < 0) {
+                    break;
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    /**
+     * Reads until the buffer holds the requested number of bytes or the stream ends
+     *
+     * @param in     The stream
+     * @param buffer The buffer
+     * @param length The number of bytes to read
+     * @return The number of bytes read
+     * @throws IOException
+     */
+    private static int read(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Closes the stream, ignoring any error
+     *
+     * @param in The stream
+     */
+    private static void close(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close(): " + e.getMessage());
+            }
+        }
+    }
+
+}
@@ -1,295 +1,172 @@
 package com.brettnamba.capsules.services;
 
 import android.accounts.Account;
-import android.app.IntentService;
-import android.app.NotificationManager;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.PowerManager;
-import android.support.v4.app.NotificationCompat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
 
-import com.brettnamba.capsules.R;
 import com.brettnamba.capsules.dataaccess.Capsule;
-import com.brettnamba.capsules.http.RequestHandler;
-import com.brettnamba.capsules.util.JSONParser;
-import com.brettnamba.tomoeame.http.HttpUrlConnectionRequest;
-import com.brettnamba.tomoeame.http.HttpUrlMultiPartRequest;
-import com.brettnamba.tomoeame.http.HttpUrlWwwFormRequest;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.ArrayList;
-import java.util.List;
 
 /**
- * Service that handles validating, saving a Capsule, and reporting the progress back to the
- * user.
+ * Service that queues Capsule saves in the outbox and starts sending them.  The saves are
+ * validated, uploaded and reported back to the user by the OutboxWorker, so queueing a Capsule
+ * does not wait for the Capsules before it.
+ *
+ * Starting the Service without a Capsule only drains the outbox, which picks up any saves left
+ * over from a previous process.
+ *
+ * The Service stays started until the OutboxWorker has no save in flight, so the system keeps
+ * the process alive while Capsules are uploading.
  *
  * @author Brett Namba
  */
-public class SaveCapsuleService extends IntentService implements
-        HttpUrlConnectionRequest.DataSentListener {
+public class SaveCapsuleService extends Service implements OutboxWorker.IdleListener {
 
     /**
-     * The Capsule being edited
-     */
-    private Capsule mCapsule;
-
-    /**
-     * The current Account
-     */
-    private Account mAccount;
-
-    /**
-     * WakeLock to prevent the device from sleeping while the IntentService is running
-     */
-    private PowerManager.WakeLock mWakeLock;
-
-    /**
-     * NotificationManager for sending notification updates on the status of the IntentService
-     */
-    private NotificationManager mNotifyManager;
-
-    /**
-     * Builder used to create status update notifications
+     * The broadcast action string to be used when broadcasting an Intent for any listening
+     * BroadcastReceivers
      */
-    private NotificationCompat.Builder mNotificationBuilder;
+    public static final String BROADCAST_ACTION =
+            "com.brettnamba.capsules.services.savecapsule.BROADCAST";
 
     /**
-     * Keeps a record of how many bytes have been uploaded for the Capsule save HTTP request
+     * The action for draining the outbox without adding a save
      */
-    private long mTotalBytesUploaded;
+    public static final String ACTION_DRAIN =
+            "com.brettnamba.capsules.services.savecapsule.DRAIN";
 
     /**
-     * Keeps a record of current progression percentage-wise for the Capsule save HTTP request.
-     * Used so that the IntentService will only send notification updates whenever the percentage
-     * progress has changed by a full percentage point.
+     * The name of the Service
      */
-    private int mCurrentUploadProgressPercentage;
+    private static final String SERVICE_NAME = "SaveCapsuleService";
 
     /**
-     * The broadcast action string to be used when broadcasting an Intent for any listening
-     * BroadcastReceivers
+     * The thread that queues and drains the saves off of the main thread
      */
-    public static final String BROADCAST_ACTION =
-            "com.brettnamba.capsules.services.savecapsule.BROADCAST";
+    private HandlerThread mThread;
 
     /**
-     * The name of the Service
+     * Posts work to the thread
      */
-    private static final String SERVICE_NAME = "SaveCapsuleService";
+    private Handler mHandler;
 
     /**
-     * The unique ID for notifications for this IntentService
+     * The ID of the last start request that was handled
      */
-    private static final int NOTIFICATION_ID = 1;
+    private int mHandledStartId;
 
     /**
-     * Constructor
+     * Builds an Intent that drains the outbox without adding a save
+     *
+     * @param context The current Context
+     * @return The Intent
      */
-    public SaveCapsuleService() {
-        super(SaveCapsuleService.SERVICE_NAME);
+    public static Intent buildDrainIntent(Context context) {
+        Intent intent = new Intent(context, SaveCapsuleService.class);
+        intent.setAction(ACTION_DRAIN);
+        return intent;
     }
 
     /**
-     * onCreate
+     * Starts the thread and listens for the OutboxWorker going idle
      */
     @Override
     public void onCreate() {
         super.onCreate();
-        // Get the WakeLock object
-        PowerManager powerManager = (PowerManager) this.getSystemService(Context.POWER_SERVICE);
-        this.mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-                SaveCapsuleService.SERVICE_NAME);
-        // Get the NotificationManager
-        this.mNotifyManager = (NotificationManager) this.getSystemService(
-                Context.NOTIFICATION_SERVICE);
-        // Instantiate the Notification builder
-        this.mNotificationBuilder = new NotificationCompat.Builder(this);
-        this.mNotificationBuilder.setContentTitle(this.getString(R.string.progress_saving_capsule))
-                .setContentText(this.getString(R.string.progress_please_wait))
-                .setSmallIcon(R.drawable.ic_place_black_24dp);
+        this.mThread = new HandlerThread(SaveCapsuleService.SERVICE_NAME);
+        this.mThread.start();
+        this.mHandler = new Handler(this.mThread.getLooper());
+        OutboxWorker.getInstance(this).setIdleListener(this);
     }
 
     /**
-     * onHandleIntent
+     * Handles the Intent on the thread
      *
-     * @param intent The Intent used to start this IntentService
+     * @param intent  The Intent used to start this Service
+     * @param flags   Additional data about the start request
+     * @param startId The ID of the start request
+     * @return How the system should restart the Service
      */
     @Override
-    protected void onHandleIntent(Intent intent) {
-        // Make sure the Intent is not null
-        if (intent == null) {
-            return;
-        }
-        // Make sure the Intent has extras
-        Bundle extras = intent.getExtras();
-        if (extras == null) {
-            return;
-        }
-        // Make sure the Intent extras has a bundled Capsule
-        if (extras.containsKey("capsule")) {
-            this.mCapsule = extras.getParcelable("capsule");
-            if (this.mCapsule == null) {
-                return;
-            }
-        }
-        // Make sure the Intent extras has a bundled Account
-        if (extras.containsKey("account")) {
-            this.mAccount = extras.getParcelable("account");
-            if (this.mAccount == null) {
-                return;
+    public int onStartCommand(final Intent intent, int flags, final int startId) {
+        this.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                SaveCapsuleService.this.handleIntent(intent);
+                SaveCapsuleService.this.mHandledStartId = startId;
+                SaveCapsuleService.this.stopIfIdle();
             }
-        }
-
-        // Prevent the device from sleeping
-        this.mWakeLock.acquire();
-
-        // Execute a HTTP request to just validate the Capsule text data
-        HttpUrlWwwFormRequest validationRequest = this.sendValidationRequest(this.mCapsule);
-        if (validationRequest.isSuccess()) {
-            // The validation was successful, so perform the real request
-            this.sendCapsuleSaveRequest(this.mCapsule);
-        } else {
-            // The validation was not successful, so display the error messages
-            this.parseAndBroadcastErrors(validationRequest);
-        }
-
-        // Release the WakeLock
-        this.mWakeLock.release();
+        });
+        // The outbox and its alarm take care of anything left when the process dies
+        return START_NOT_STICKY;
     }
 
     /**
-     * Determines the total number of bytes uploaded and sends out a notification if the progress
-     * has changed
-     *
-     * @param bytesUploaded The number of bytes that were just written to the stream
-     * @param totalBytes    The total number of bytes for the whole HTTP request
+     * Stops the Service once the last save has finished, after any start requests queued before it
      */
     @Override
-    public void onDataSent(long bytesUploaded, long totalBytes) {
-        this.mTotalBytesUploaded += bytesUploaded;
-        int currentProgressPercentage = (int) (100 * this.mTotalBytesUploaded / totalBytes);
-        if (currentProgressPercentage > this.mCurrentUploadProgressPercentage) {
-            // Set the new progress status on the Notification
-            this.mNotificationBuilder.setProgress(100, currentProgressPercentage, false);
-            this.mNotifyManager.notify(NOTIFICATION_ID, this.mNotificationBuilder.build());
-            // Retain the most recent progress percentage
-            this.mCurrentUploadProgressPercentage = currentProgressPercentage;
-        }
+    public void onIdle() {
+        this.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                SaveCapsuleService.this.stopIfIdle();
+            }
+        });
     }
 
     /**
-     * Sends a Capsule validation HTTP request and returns the HTTP request object that also
-     * contains the HTTP response data
-     *
-     * @param capsule The Capsule to validate
-     * @return The HTTP request object that also contains the HTTP response data
+     * Stops listening and quits the thread
      */
-    private HttpUrlWwwFormRequest sendValidationRequest(Capsule capsule) {
-        // Send the request
-        return RequestHandler.validateCapsule(this, this.mAccount, capsule, this);
+    @Override
+    public void onDestroy() {
+        OutboxWorker.getInstance(this).setIdleListener(null);
+        this.mThread.quit();
+        super.onDestroy();
     }
 
     /**
-     * Sends a Capsule save HTTP request and returns the HTTP request object that also contains
-     * the HTTP response data
+     * The Service is not bound
      *
-     * @param capsule The Capsule to save
+     * @param intent The Intent used to bind
+     * @return Null
      */
-    private void sendCapsuleSaveRequest(Capsule capsule) {
-        // Send the save request
-        HttpUrlMultiPartRequest httpRequest = RequestHandler.saveCapsule(this, this.mAccount,
-                capsule, this);
-
-        // Determine if the request was a success
-        if (httpRequest.isSuccess()) {
-            // Build a successful notification
-            this.mNotificationBuilder.setContentText(this.getString(R.string.result_complete))
-                    .setProgress(0, 0, false);
-            // Broadcast the successful result
-            this.parseAndBroadcastSuccess(httpRequest);
-        } else {
-            // Build an error notification
-            this.mNotificationBuilder.setContentText(
-                    this.getString(R.string.result_error_encountered)).setProgress(0, 0, false);
-            // The save was not successful, so display the error messages
-            this.parseAndBroadcastErrors(httpRequest);
-        }
-        // Send the notification
-        this.mNotifyManager.notify(NOTIFICATION_ID, this.mNotificationBuilder.build());
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     /**
-     * Parses a successful HTTP request object and broadcasts the result
-     *
-     * @param httpRequest The successful HTTP request object
+     * Stops the Service if no save is being sent.  Does nothing if a newer start request has been
+     * received since the last one was handled.
      */
-    private void parseAndBroadcastSuccess(HttpUrlConnectionRequest httpRequest) {
-        // Will hold the newly saved Capsule parsed from the HTTP response
-        Capsule savedCapsule = null;
-        try {
-            // Parse the HTTP response
-            JSONObject jsonResponse = new JSONObject(httpRequest.getResponseBody());
-            savedCapsule = JSONParser.parseOwnershipCapsule(jsonResponse);
-        } catch (JSONException e) {
-            // There was a parsing error, so broadcast an error
-            List<String> messages = new ArrayList<String>();
-            messages.add(this.getString(R.string.error_cannot_parse_http_response));
-            this.broadcastError(messages);
-        } finally {
-            // Broadcast the newly saved Capsule
-            this.broadcastSuccess(savedCapsule);
+    private void stopIfIdle() {
+        if (OutboxWorker.getInstance(this).isIdle()) {
+            this.stopSelf(this.mHandledStartId);
         }
     }
 
     /**
-     * Parses an unsuccessful HTTP request object and broadcasts the result
+     * Queues the Capsule in the Intent, if there is one, and drains the outbox
      *
-     * @param httpRequest The unsuccessful HTTP request object
-     */
-    private void parseAndBroadcastErrors(HttpUrlConnectionRequest httpRequest) {
-        // Will hold any validation messages
-        List<String> validationMessages = new ArrayList<String>();
-        try {
-            // Parse the HTTP response
-            JSONObject jsonResponse = new JSONObject(httpRequest.getResponseBody());
-            validationMessages = JSONParser.parseSaveCapsuleMessages(jsonResponse);
-        } catch (JSONException e) {
-            // There was a parse error, so indicate that in the error messages
-            validationMessages.add(this.getString(R.string.error_cannot_parse_http_response));
-        } finally {
-            // Broadcast the error messages
-            this.broadcastError(validationMessages);
+     * @param intent The Intent used to start this Service
+     */
+    private void handleIntent(Intent intent) {
+        // Queue the Capsule if one was sent
+        Bundle extras = intent != null ? intent.getExtras() : null;
+        if (extras != null && extras.containsKey("capsule") && extras.containsKey("account")) {
+            Capsule capsule = extras.getParcelable("capsule");
+            Account account = extras.getParcelable("account");
+            if (capsule != null && account != null) {
+                OutboxWorker.enqueue(this, capsule, account);
+            }
         }
-    }
-
-    /**
-     * Creates an Intent with the newly saved Capsule and broadcasts it
-     *
-     * @param capsule The newly saved Capsule
-     */
-    private void broadcastSuccess(Capsule capsule) {
-        // Create an Intent to broadcast
-        Intent intent = new Intent(BROADCAST_ACTION);
-        intent.putExtra("capsule", capsule);
-        // Broadcast the result
-        this.sendBroadcast(intent);
-    }
 
-    /**
-     * Creates an Intent with the specified messages and broadcasts it
-     *
-     * @param messages A collection of messages to broadcast
-     */
-    private void broadcastError(List<String> messages) {
-        // Create an Intent to broadcast
-        Intent intent = new Intent(BROADCAST_ACTION);
-        intent.putStringArrayListExtra("messages", (ArrayList<String>) messages);
-        // Broadcast the result
-        this.sendBroadcast(intent);
+        // Send everything that is due
+        OutboxWorker.getInstance(this).drain();
     }
 
 }
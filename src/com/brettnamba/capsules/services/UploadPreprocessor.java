@@ -0,0 +1,299 @@
+package com.brettnamba.capsules.services;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shrinks a Memoir image before it is uploaded.
+ *
+ * The image is decoded with subsampling so the full-size photo is never held in memory, scaled so
+ * its longest side is at most the maximum dimension, rotated to its MediaStore orientation and
+ * re-encoded as a JPEG into the cache directory.  The processed file is only used if it is smaller
+ * than the original.  It is named after the outbox row of the save, so that a retried save reuses
+ * the same file, which lets a resumable upload of it continue, while two saves of the same photo
+ * never write to or delete each other's file.  The JPEG is written to a temporary file and only
+ * renamed once it is complete, so a process that dies while encoding never leaves a truncated
+ * image behind to be reused.
+ *
+ * @author Brett Namba
+ */
+class UploadPreprocessor {
+
+    /**
+     * The default maximum width or height of a processed image in pixels
+     */
+    static final int DEFAULT_MAX_DIMENSION = 1600;
+
+    /**
+     * The default JPEG quality of a processed image
+     */
+    static final int DEFAULT_QUALITY = 85;
+
+    /**
+     * The name of the directory in the cache that holds processed images
+     */
+    private static final String DIRECTORY = "uploads";
+
+    /**
+     * The tag used for logging
+     */
+    private static final String TAG = "UploadPreprocessor";
+
+    /**
+     * The number of bytes of original images that were processed
+     */
+    private static final AtomicLong sBytesIn = new AtomicLong();
+
+    /**
+     * The number of bytes of processed images that replaced them
+     */
+    private static final AtomicLong sBytesOut = new AtomicLong();
+
+    /**
+     * The current Context
+     */
+    private final Context mContext;
+
+    /**
+     * The ID of the outbox row of the save the image is processed for
+     */
+    private final long mSaveId;
+
+    /**
+     * The maximum width or height of a processed image in pixels
+     */
+    private final int mMaxDimension;
+
+    /**
+     * The JPEG quality of a processed image
+     */
+    private final int mQuality;
+
+    /**
+     * Constructor
+     *
+     * @param context      The current Context
+     * @param saveId       The ID of the outbox row of the save the image is processed for
+     * @param maxDimension The maximum width or height of a processed image in pixels
+     * @param quality      The JPEG quality of a processed image, from 0 to 100
+     */
+    UploadPreprocessor(Context context, long saveId, int maxDimension, int quality) {
+        this.mContext = context;
+        this.mSaveId = saveId;
+        this.mMaxDimension = maxDimension;
+        this.mQuality = quality;
+    }
+
+    /**
+     * Gets the number of bytes that processing has saved
+     *
+     * @return The bytes saved across every processed image
+     */
+    static long getBytesSaved() {
+        return sBytesIn.get() - sBytesOut.get();
+    }
+
+    /**
+     * Gets the size of the processed images as a ratio of the originals
+     *
+     * @return The ratio, or 1 if nothing has been processed
+     */
+    static double getCompressionRatio() {
+        long in = sBytesIn.get();
+        return in > 0 ? (double) sBytesOut.get() / in : 1;
+    }
+
+    /**
+     * Processes the image
+     *
+     * @param fileUri The content URI of the original image
+     * @return The URI of the processed image, or the original URI if it could not be made smaller
+     */
+    Uri process(Uri fileUri) {
+        String type = this.mContext.getContentResolver().getType(fileUri);
+        if (type != null && (!type.startsWith("image/") || type.equals("image/gif"))) {
+            return fileUri;
+        }
+        long originalSize = ResumableUpload.getSize(this.mContext, fileUri);
+        File output = this.getOutputFile();
+
+        // A previous attempt at this save already processed the image
+        if (output.length() > 0) {
+            return Uri.fromFile(output);
+        }
+
+        File partial = new File(output.getPath() + ".tmp");
+        Bitmap bitmap = null;
+        try {
+            // Read the dimensions and decode at the smallest power of two that is large enough
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            this.decode(fileUri, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return fileUri;
+            }
+            int longest = Math.max(options.outWidth, options.outHeight);
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = 1;
+            while (longest / (options.inSampleSize * 2) >= this.mMaxDimension) {
+                options.inSampleSize *= 2;
+            }
+            bitmap = this.decode(fileUri, options);
+            if (bitmap == null) {
+                return fileUri;
+            }
+
+            // Scale down to the maximum dimension and apply the orientation
+            Matrix matrix = new Matrix();
+            int decodedLongest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (decodedLongest > this.mMaxDimension) {
+                float scale = (float) this.mMaxDimension / decodedLongest;
+                matrix.postScale(scale, scale);
+            }
+            int orientation = this.getOrientation(fileUri);
+            if (orientation != 0) {
+                matrix.postRotate(orientation);
+            }
+            if (!matrix.isIdentity()) {
+                Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                        bitmap.getHeight(), matrix, true);
+                if (transformed != bitmap) {
+                    bitmap.recycle();
+                    bitmap = transformed;
+                }
+            }
+
+            // Re-encode into the cache, only giving the file its final name once it is complete
+            OutputStream out = new FileOutputStream(partial);
+            try {
+                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, this.mQuality, out)) {
+                    throw new IOException("The image could not be encoded");
+                }
+            } finally {
+                out.close();
+            }
+            if (!partial.renameTo(output)) {
+                throw new IOException(partial + " could not be renamed");
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            Log.e(TAG, "process(): " + e.getMessage());
+            UploadPreprocessor.delete(partial);
+            UploadPreprocessor.delete(output);
+            return fileUri;
+        } finally {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+
+        // Only send the processed image if it is actually smaller
+        long processedSize = output.length();
+        if (processedSize <= 0 || (originalSize > 0 && processedSize >= originalSize)) {
+            UploadPreprocessor.delete(output);
+            return fileUri;
+        }
+        if (originalSize > 0) {
+            sBytesIn.addAndGet(originalSize);
+            sBytesOut.addAndGet(processedSize);
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "process(): " + originalSize + " -> " + processedSize + " bytes");
+            }
+        }
+        return Uri.fromFile(output);
+    }
+
+    /**
+     * Deletes the processed copy of the image once the save it belongs to is over, whether it was
+     * saved, rejected or given up on
+     */
+    void finish() {
+        File output = this.getOutputFile();
+        UploadPreprocessor.delete(new File(output.getPath() + ".tmp"));
+        UploadPreprocessor.delete(output);
+    }
+
+    /**
+     * Decodes the image
+     *
+     * @param fileUri The content URI of the image
+     * @param options The decoding options
+     * @return The Bitmap, or null if only the bounds were decoded
+     * @throws IOException
+     */
+    private Bitmap decode(Uri fileUri, BitmapFactory.Options options) throws IOException {
+        InputStream in = this.mContext.getContentResolver().openInputStream(fileUri);
+        if (in == null) {
+            throw new IOException("The file could not be opened");
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the rotation the image needs to be displayed upright, which MediaStore keeps for
+     * images it has indexed
+     *
+     * @param fileUri The content URI of the image
+     * @return The rotation in degrees
+     */
+    private int getOrientation(Uri fileUri) {
+        Cursor cursor = null;
+        try {
+            cursor = this.mContext.getContentResolver().query(fileUri,
+                    new String[]{MediaStore.Images.ImageColumns.ORIENTATION}, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getInt(0);
+            }
+        } catch (RuntimeException e) {
+            // The provider does not have an orientation column
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the file the processed image is written to, which is the same for every attempt of
+     * the save
+     *
+     * @return The output file
+     */
+    private File getOutputFile() {
+        File directory = new File(this.mContext.getCacheDir(), DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "getOutputFile(): " + directory + " could not be created");
+        }
+        String name = "memoir-" + this.mSaveId + "-" + this.mMaxDimension + "-" + this.mQuality + ".jpg";
+        return new File(directory, name);
+    }
+
+    /**
+     * Deletes a file, logging if it could not be deleted
+     *
+     * @param file The file
+     */
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "delete(): " + file + " could not be deleted");
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.brettnamba.capsules.syncadapter;
+
+import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compares the client's and the server's collections of Capsule Ownerships and classifies each
+ * Capsule as being only on the client, only on the server, on both with the same etag or on both
+ * with differing etags.
+ *
+ * Both collections are sorted by sync ID and then walked together in a single merge-join pass,
+ * so the comparison is O(n log n) overall instead of the O(n^2) of list containment checks.  The
+ * class has no dependency on the SyncAdapter so it can be exercised on its own.
+ *
+ * @author Brett Namba
+ */
+public final class OwnershipDiff {
+
+    /**
+     * Orders Capsules by their sync ID
+     */
+    private static final Comparator<CapsuleOwnership> SYNC_ID_COMPARATOR = new Comparator<CapsuleOwnership>() {
+        @Override
+        public int compare(CapsuleOwnership lhs, CapsuleOwnership rhs) {
+            long l = lhs.getSyncId();
+            long r = rhs.getSyncId();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    /**
+     * Capsules that only exist on the client
+     */
+    private final List<CapsuleOwnership> mClientOnly;
+
+    /**
+     * Capsules that only exist on the server
+     */
+    private final List<CapsuleOwnership> mServerOnly;
+
+    /**
+     * Client versions of Capsules that exist on both sides with matching etags
+     */
+    private final List<CapsuleOwnership> mSameEtag;
+
+    /**
+     * Client versions of Capsules that exist on both sides with differing etags
+     */
+    private final List<CapsuleOwnership> mOutOfSync;
+
+    /**
+     * Constructor
+     *
+     * @param expectedSize A rough size for the result collections
+     */
+    private OwnershipDiff(int expectedSize) {
+        this.mClientOnly = new ArrayList<CapsuleOwnership>();
+        this.mServerOnly = new ArrayList<CapsuleOwnership>();
+        this.mSameEtag = new ArrayList<CapsuleOwnership>(expectedSize);
+        this.mOutOfSync = new ArrayList<CapsuleOwnership>();
+    }
+
+    /**
+     * Compares the client-side and server-side Capsules
+     *
+     * @param clientCapsules The client-side Capsules
+     * @param serverCapsules The server-side Capsules
+     * @return The classified Capsules
+     */
+    public static OwnershipDiff compute(List<CapsuleOwnership> clientCapsules,
+                                        List<CapsuleOwnership> serverCapsules) {
+        if (clientCapsules == null) {
+            clientCapsules = Collections.emptyList();
+        }
+        if (serverCapsules == null) {
+            serverCapsules = Collections.emptyList();
+        }
+        OwnershipDiff diff = new OwnershipDiff(Math.min(clientCapsules.size(), serverCapsules.size()));
+
+        // Sort copies of both collections by sync ID
+        CapsuleOwnership[] client = clientCapsules.toArray(new CapsuleOwnership[clientCapsules.size()]);
+        CapsuleOwnership[] server = serverCapsules.toArray(new CapsuleOwnership[serverCapsules.size()]);
+        Arrays.sort(client, SYNC_ID_COMPARATOR);
+        Arrays.sort(server, SYNC_ID_COMPARATOR);
+
+        int i = 0;
+        int j = 0;
+        // Capsules that were never pushed to the server have no sync ID and can only be on the client
+        while (i < client.length && client[i].getSyncId() <= 0) {
+            diff.mClientOnly.add(client[i++]);
+        }
+        // The last sync ID that was found on both sides, so server duplicates are not reported
+        long lastMatchedSyncId = 0;
+        while (i < client.length && j < server.length) {
+            long clientSyncId = client[i].getSyncId();
+            long serverSyncId = server[j].getSyncId();
+            if (clientSyncId < serverSyncId) {
+                diff.mClientOnly.add(client[i++]);
+            } else if (clientSyncId > serverSyncId) {
+                if (serverSyncId != lastMatchedSyncId) {
+                    diff.mServerOnly.add(server[j]);
+                }
+                j++;
+            } else {
+                // On both sides, so compare the etags.  The server index is not advanced so that
+                // any client-side duplicates are compared against the same server Capsule.
+                lastMatchedSyncId = serverSyncId;
+                String clientEtag = client[i].getEtag();
+                if (clientEtag != null && clientEtag.equals(server[j].getEtag())) {
+                    diff.mSameEtag.add(client[i]);
+                } else {
+                    diff.mOutOfSync.add(client[i]);
+                }
+                i++;
+            }
+        }
+        // Anything left over is only on one side
+        while (i < client.length) {
+            diff.mClientOnly.add(client[i++]);
+        }
+        while (j < server.length) {
+            if (server[j].getSyncId() != lastMatchedSyncId) {
+                diff.mServerOnly.add(server[j]);
+            }
+            j++;
+        }
+
+        return diff;
+    }
+
+    /**
+     * Gets the Capsules that only exist on the client
+     *
+     * @return Client-only Capsules
+     */
+    public List<CapsuleOwnership> getClientOnly() {
+        return this.mClientOnly;
+    }
+
+    /**
+     * Gets the Capsules that only exist on the server
+     *
+     * @return Server-only Capsules
+     */
+    public List<CapsuleOwnership> getServerOnly() {
+        return this.mServerOnly;
+    }
+
+    /**
+     * Gets the client versions of Capsules on both sides that have matching etags
+     *
+     * @return Capsules where the client has the most recent server data
+     */
+    public List<CapsuleOwnership> getSameEtag() {
+        return this.mSameEtag;
+    }
+
+    /**
+     * Gets the client versions of Capsules on both sides that have differing etags
+     *
+     * @return Capsules where the server has newer data
+     */
+    public List<CapsuleOwnership> getOutOfSync() {
+        return this.mOutOfSync;
+    }
+
+}
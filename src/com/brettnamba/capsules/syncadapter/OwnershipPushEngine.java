@@ -0,0 +1,330 @@
+package com.brettnamba.capsules.syncadapter;
+
+import android.util.Log;
+
+import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+import com.brettnamba.capsules.http.RequestHandler;
+import com.brettnamba.capsules.http.response.EntityDeleteResponse;
+import com.brettnamba.capsules.http.response.OwnershipBatchResponse;
+import com.brettnamba.capsules.http.response.OwnershipResponse;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pushes locally modified Capsule Ownerships to the server.  Capsules are first sent in batch
+ * requests that each carry many saves and deletes.  If the server does not handle batches, or a
+ * batch could not reach the server at all, those Capsules fall back to one request each over a
+ * small, bounded pool of worker threads.  A batch that may have been applied is never sent again
+ * one at a time, since new Capsules would be created twice; its Capsules are left dirty for the
+ * next sync instead.  Only HTTP requests are sent here; the results are handed back so the caller
+ * can write all of them to the ContentProvider together on its own thread.
+ *
+ * Every Capsule is attempted, so a single failure does not prevent the rest from being pushed.
+ *
+ * @author Brett Namba
+ */
+class OwnershipPushEngine {
+
+    /**
+     * The outcome of pushing a single Capsule
+     */
+    static final class Result {
+
+        /**
+         * The Capsule that was pushed, updated with any new server data
+         */
+        private final CapsuleOwnership mCapsule;
+
+        /**
+         * Whether or not the push was a success
+         */
+        private final boolean mSuccess;
+
+        /**
+         * Whether or not the Capsule should be deleted on the client
+         */
+        private final boolean mDeleted;
+
+        /**
+         * Constructor
+         *
+         * @param capsule The Capsule that was pushed
+         * @param success Whether or not the push was a success
+         * @param deleted Whether or not the Capsule should be deleted on the client
+         */
+        private Result(CapsuleOwnership capsule, boolean success, boolean deleted) {
+            this.mCapsule = capsule;
+            this.mSuccess = success;
+            this.mDeleted = deleted;
+        }
+
+        /**
+         * Gets the Capsule that was pushed
+         *
+         * @return The Capsule
+         */
+        CapsuleOwnership getCapsule() {
+            return this.mCapsule;
+        }
+
+        /**
+         * Determines if the push was a success
+         *
+         * @return True if it is a success, false if it is not
+         */
+        boolean isSuccess() {
+            return this.mSuccess;
+        }
+
+        /**
+         * Determines if the Capsule should be deleted on the client
+         *
+         * @return True if it should be deleted, false if it should be saved
+         */
+        boolean isDeleted() {
+            return this.mDeleted;
+        }
+
+    }
+
+    /**
+     * The tag used for logging
+     */
+    private static final String TAG = "OwnershipPushEngine";
+
+    /**
+     * Sends the requests
+     */
+    private final RequestHandler mRequestHandler;
+
+    /**
+     * The maximum number of requests in flight at once
+     */
+    private final int mParallelism;
+
+    /**
+     * The maximum number of Capsules in a single batch request
+     */
+    private final int mBatchSize;
+
+    /**
+     * Set once the server reports that it does not handle batch requests
+     */
+    private volatile boolean mBatchSupported = true;
+
+    /**
+     * Constructor
+     *
+     * @param requestHandler Sends the requests
+     * @param parallelism    The maximum number of requests in flight at once
+     * @param batchSize      The maximum number of Capsules in a single batch request
+     */
+    OwnershipPushEngine(RequestHandler requestHandler, int parallelism, int batchSize) {
+        this.mRequestHandler = requestHandler;
+        this.mParallelism = parallelism;
+        this.mBatchSize = batchSize;
+    }
+
+    /**
+     * Pushes each Capsule to the server and waits for all of them to finish
+     *
+     * @param capsules  The locally modified Capsules
+     * @param authToken The authentication token
+     * @return The result for each Capsule, in the same order
+     * @throws InterruptedException
+     */
+    List<Result> push(List<CapsuleOwnership> capsules, final String authToken) throws InterruptedException {
+        Result[] results = new Result[capsules.size()];
+
+        // Capsules that need to be sent to the server
+        List<Integer> pending = new ArrayList<Integer>(capsules.size());
+        for (int i = 0; i < capsules.size(); i++) {
+            CapsuleOwnership capsule = capsules.get(i);
+            if (capsule.getDeleted() >= 1 && capsule.getSyncId() <= 0) {
+                // A local Capsule was never on the server, so it only needs to be deleted on the client
+                results[i] = new Result(capsule, true, true);
+            } else {
+                pending.add(i);
+            }
+        }
+
+        // Send the Capsules in batches, keeping any that could not be sent that way
+        List<Integer> fallback = new ArrayList<Integer>();
+        for (int i = 0; i < pending.size(); i += this.mBatchSize) {
+            List<Integer> chunk = pending.subList(i, Math.min(i + this.mBatchSize, pending.size()));
+            if (!this.mBatchSupported || !this.pushBatch(capsules, chunk, authToken, results)) {
+                fallback.addAll(chunk);
+            }
+        }
+
+        // Send the rest one at a time over the bounded pool
+        if (!fallback.isEmpty()) {
+            List<Callable<Result>> tasks = new ArrayList<Callable<Result>>(fallback.size());
+            for (int index : fallback) {
+                final CapsuleOwnership capsule = capsules.get(index);
+                tasks.add(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return OwnershipPushEngine.this.pushOne(capsule, authToken);
+                    }
+                });
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(this.mParallelism, tasks.size()));
+            try {
+                List<Future<Result>> futures = executor.invokeAll(tasks);
+                for (int i = 0; i < futures.size(); i++) {
+                    int index = fallback.get(i);
+                    try {
+                        results[index] = futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "push(): " + e.getMessage());
+                        results[index] = new Result(capsules.get(index), false, false);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Sends a chunk of Capsules in a single batch request
+     *
+     * @param capsules  All of the Capsules being pushed
+     * @param indices   The indices of the Capsules in this chunk
+     * @param authToken The authentication token
+     * @param results   Receives the result for each Capsule in the chunk
+     * @return True if the batch was handled, false if it provably did not run and the chunk should
+     * be sent one at a time
+     */
+    private boolean pushBatch(List<CapsuleOwnership> capsules, List<Integer> indices,
+                              String authToken, Result[] results) {
+        List<CapsuleOwnership> chunk = new ArrayList<CapsuleOwnership>(indices.size());
+        for (int index : indices) {
+            chunk.add(capsules.get(index));
+        }
+
+        OwnershipBatchResponse response;
+        try {
+            response = new OwnershipBatchResponse(
+                    this.mRequestHandler.requestOwnershipBatch(authToken, chunk)
+            );
+        } catch (ConnectException | ConnectTimeoutException | UnknownHostException e) {
+            // The request never reached the server
+            Log.e(TAG, "pushBatch(): " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            // The server may have applied the batch before the failure
+            Log.e(TAG, "pushBatch(): " + e.getMessage());
+            OwnershipPushEngine.failChunk(chunk, indices, results);
+            return true;
+        }
+        if (!response.isSupported()) {
+            // Stop trying batches for the lifetime of the engine
+            this.mBatchSupported = false;
+            return false;
+        }
+        if (!response.isSuccess() || response.getItems().size() != chunk.size()) {
+            OwnershipPushEngine.failChunk(chunk, indices, results);
+            return true;
+        }
+
+        // Match each result to its Capsule
+        List<OwnershipBatchResponse.Item> items = response.getItems();
+        for (int i = 0; i < chunk.size(); i++) {
+            CapsuleOwnership capsule = chunk.get(i);
+            OwnershipBatchResponse.Item item = items.get(i);
+            boolean deleted = capsule.getDeleted() >= 1;
+            boolean success = item.isSuccess()
+                    && (deleted || OwnershipPushEngine.applyServerCapsule(capsule, item.getCapsule()));
+            results[indices.get(i)] = new Result(capsule, success, deleted);
+        }
+
+        return true;
+    }
+
+    /**
+     * Marks every Capsule in a batch as failed so it stays dirty and is retried by the next sync
+     *
+     * @param chunk   The Capsules in the batch
+     * @param indices The indices of the Capsules in the batch
+     * @param results Receives the result for each Capsule in the chunk
+     */
+    private static void failChunk(List<CapsuleOwnership> chunk, List<Integer> indices, Result[] results) {
+        for (int i = 0; i < chunk.size(); i++) {
+            CapsuleOwnership capsule = chunk.get(i);
+            results[indices.get(i)] = new Result(capsule, false, capsule.getDeleted() >= 1);
+        }
+    }
+
+    /**
+     * Pushes a single Capsule, either deleting it or sending its modifications
+     *
+     * @param capsule   The Capsule to push
+     * @param authToken The authentication token
+     * @return The result of the push
+     */
+    private Result pushOne(CapsuleOwnership capsule, String authToken) {
+        // Check if the Capsule has been deleted
+        if (capsule.getDeleted() >= 1) {
+            try {
+                EntityDeleteResponse response = new EntityDeleteResponse(
+                        this.mRequestHandler.requestOwnershipDelete(authToken, capsule.getSyncId())
+                );
+                return new Result(capsule, response.isSuccess(), true);
+            } catch (IOException e) {
+                Log.e(TAG, "pushOne(): " + e.getMessage());
+                return new Result(capsule, false, true);
+            }
+        }
+
+        // The Capsule was modified or created
+        try {
+            OwnershipResponse response = new OwnershipResponse(
+                    this.mRequestHandler.requestOwnershipUpdate(authToken, capsule)
+            );
+            boolean success = response.isSuccess()
+                    && OwnershipPushEngine.applyServerCapsule(capsule, response.getCapsule());
+            return new Result(capsule, success, false);
+        } catch (IOException e) {
+            Log.e(TAG, "pushOne(): " + e.getMessage());
+            return new Result(capsule, false, false);
+        }
+    }
+
+    /**
+     * Copies the server's etag and sync ID onto the local Capsule
+     *
+     * @param capsule         The local Capsule
+     * @param responseCapsule The Capsule sent back by the server
+     * @return True if the server sent back a Capsule, otherwise false
+     */
+    private static boolean applyServerCapsule(CapsuleOwnership capsule, CapsuleOwnership responseCapsule) {
+        if (responseCapsule == null) {
+            return false;
+        }
+        // Add the new etag to the Capsule
+        capsule.setEtag(responseCapsule.getEtag());
+        // Add the new sync ID
+        if (responseCapsule.getSyncId() > 0) {
+            capsule.setSyncId(responseCapsule.getSyncId());
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.brettnamba.capsules.syncadapter;
+
+import android.util.Log;
+
+import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+import com.brettnamba.capsules.http.RequestHandler;
+import com.brettnamba.capsules.http.response.OwnershipCollectionResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Sends the REPORT requests for a collection of Capsule Ownerships on a background thread, one
+ * chunk at a time, so the next chunk is being downloaded while the sync thread persists the
+ * previous one.  Parsed chunks are handed over through a bounded queue, so at most a fixed number
+ * of chunks are held in memory no matter how many Capsules are reported.
+ *
+ * @author Brett Namba
+ */
+class OwnershipReportPipeline {
+
+    /**
+     * The result of a single REPORT request
+     */
+    static final class Chunk {
+
+        /**
+         * Whether or not the request was a success
+         */
+        private final boolean mSuccess;
+
+        /**
+         * The Capsules in the response
+         */
+        private final List<CapsuleOwnership> mCapsules;
+
+        /**
+         * Constructor
+         *
+         * @param success  Whether or not the request was a success
+         * @param capsules The Capsules in the response
+         */
+        private Chunk(boolean success, List<CapsuleOwnership> capsules) {
+            this.mSuccess = success;
+            this.mCapsules = capsules;
+        }
+
+        /**
+         * Determines if the request was a success
+         *
+         * @return True if it is a success, false if it is not
+         */
+        boolean isSuccess() {
+            return this.mSuccess;
+        }
+
+        /**
+         * Gets the Capsules in the response
+         *
+         * @return The Capsules
+         */
+        List<CapsuleOwnership> getCapsules() {
+            return this.mCapsules;
+        }
+
+    }
+
+    /**
+     * Marks the end of the pipeline in the queue
+     */
+    private static final Chunk END = new Chunk(true, new ArrayList<CapsuleOwnership>());
+
+    /**
+     * The tag used for logging
+     */
+    private static final String TAG = "OwnershipReportPipeline";
+
+    /**
+     * Sends the REPORT requests
+     */
+    private final RequestHandler mRequestHandler;
+
+    /**
+     * The authentication token
+     */
+    private final String mAuthToken;
+
+    /**
+     * The Capsules to REPORT on
+     */
+    private final List<CapsuleOwnership> mCapsules;
+
+    /**
+     * The number of Capsules in a single REPORT request
+     */
+    private final int mChunkSize;
+
+    /**
+     * Holds the chunks that have been downloaded but not yet taken
+     */
+    private final BlockingQueue<Chunk> mQueue;
+
+    /**
+     * The thread sending the requests
+     */
+    private Thread mThread;
+
+    /**
+     * Constructor
+     *
+     * @param requestHandler Sends the REPORT requests
+     * @param authToken      The authentication token
+     * @param capsules       The Capsules to REPORT on
+     * @param chunkSize      The number of Capsules in a single REPORT request
+     * @param queueDepth     The number of downloaded chunks that can wait to be taken
+     */
+    OwnershipReportPipeline(RequestHandler requestHandler, String authToken,
+                            List<CapsuleOwnership> capsules, int chunkSize, int queueDepth) {
+        this.mRequestHandler = requestHandler;
+        this.mAuthToken = authToken;
+        this.mCapsules = capsules;
+        this.mChunkSize = chunkSize;
+        this.mQueue = new ArrayBlockingQueue<Chunk>(queueDepth);
+    }
+
+    /**
+     * Starts sending the REPORT requests in the background
+     */
+    void start() {
+        this.mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                OwnershipReportPipeline.this.fetch();
+            }
+        }, TAG);
+        this.mThread.start();
+    }
+
+    /**
+     * Waits for the next downloaded chunk
+     *
+     * @return The next chunk or null if all of the chunks have been taken
+     * @throws InterruptedException
+     */
+    Chunk take() throws InterruptedException {
+        Chunk chunk = this.mQueue.take();
+        if (chunk == END) {
+            // Leave the marker in place for any further calls
+            this.mQueue.offer(END);
+            return null;
+        }
+        return chunk;
+    }
+
+    /**
+     * Stops sending any more REPORT requests
+     */
+    void cancel() {
+        if (this.mThread != null) {
+            this.mThread.interrupt();
+        }
+    }
+
+    /**
+     * Sends each REPORT request and queues the parsed response, waiting whenever the queue is full.
+     * However the requests stop, short of being cancelled, a failure chunk stands in for the chunks
+     * that were not requested and the end marker follows, so the consumer never waits on a thread
+     * that has died.  Both wait for room like any other chunk, so the consumer always sees them.
+     */
+    private void fetch() {
+        boolean complete = false;
+        boolean cancelled = false;
+        try {
+            for (int i = 0; i < this.mCapsules.size(); i += this.mChunkSize) {
+                // Get the chunk
+                List<CapsuleOwnership> chunk = this.mCapsules.subList(i,
+                        Math.min(i + this.mChunkSize, this.mCapsules.size()));
+                // Send the request
+                OwnershipCollectionResponse response = new OwnershipCollectionResponse(
+                        this.mRequestHandler.requestOwnershipReport(this.mAuthToken, chunk)
+                );
+                this.mQueue.put(new Chunk(response.isSuccess(), response.getCapsules()));
+            }
+            complete = true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "fetch(): " + e.getMessage());
+        } catch (InterruptedException e) {
+            // Cancelled, so nothing is waiting on the queue anymore
+            cancelled = true;
+        } finally {
+            if (!cancelled) {
+                // The remaining chunks are not requested
+                if (complete || this.put(new Chunk(false, new ArrayList<CapsuleOwnership>()))) {
+                    this.put(END);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a chunk, waiting for room
+     *
+     * @param chunk The chunk
+     * @return True if it was queued, false if the pipeline was cancelled while waiting
+     */
+    private boolean put(Chunk chunk) {
+        try {
+            this.mQueue.put(chunk);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+}
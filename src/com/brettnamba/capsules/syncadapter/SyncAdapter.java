@@ -22,9 +22,8 @@ import com.brettnamba.capsules.http.HttpFactory;
 import com.brettnamba.capsules.http.RequestContract;
 import com.brettnamba.capsules.http.RequestHandler;
 import com.brettnamba.capsules.http.response.CtagResponse;
-import com.brettnamba.capsules.http.response.EntityDeleteResponse;
+import com.brettnamba.capsules.http.response.OwnershipChangesResponse;
 import com.brettnamba.capsules.http.response.OwnershipCollectionResponse;
-import com.brettnamba.capsules.http.response.OwnershipResponse;
 import com.brettnamba.capsules.provider.CapsuleContract;
 import com.brettnamba.capsules.provider.CapsuleOperations;
 
@@ -59,6 +58,11 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
      */
     private final RequestHandler mRequestHandler;
 
+    /**
+     * Pushes local changes to the server
+     */
+    private final OwnershipPushEngine mPushEngine;
+
     /**
      * LocationManager for accessing system location
      */
@@ -74,11 +78,26 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
      */
     private static final String USER_DATA_KEY_OWNERSHIP_CTAG = "ctag_ownerships";
 
+    /**
+     * Key for storing the Ownerships sync token in the AccountManager's user data
+     */
+    private static final String USER_DATA_KEY_OWNERSHIP_SYNC_TOKEN = "sync_token_ownerships";
+
     /**
      * The limit of Capsules to have in a single HTTP request
      */
     private static final int CAPSULE_REQUEST_LIMIT = 50;
 
+    /**
+     * The number of downloaded REPORT chunks that can wait to be saved
+     */
+    private static final int REPORT_QUEUE_DEPTH = 2;
+
+    /**
+     * The number of local changes that can be pushed to the server at once
+     */
+    private static final int PUSH_PARALLELISM = 4;
+
     /**
      * The tag used for logging.
      */
@@ -105,6 +124,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         this.mAccountManager = AccountManager.get(context);
         // Get the HTTP request handler
         this.mRequestHandler = new RequestHandler(HttpFactory.getInstance());
+        // Pushes local changes concurrently
+        this.mPushEngine = new OwnershipPushEngine(this.mRequestHandler, SyncAdapter.PUSH_PARALLELISM,
+                SyncAdapter.CAPSULE_REQUEST_LIMIT);
         // LocationManager and LocationListener
         this.mLocationManager = locationManager;
         this.mLocationListener = locationListener;
@@ -128,6 +150,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         this.mAccountManager = AccountManager.get(context);
         // Get the HTTP request handler
         this.mRequestHandler = new RequestHandler(HttpFactory.getInstance());
+        // Pushes local changes concurrently
+        this.mPushEngine = new OwnershipPushEngine(this.mRequestHandler, SyncAdapter.PUSH_PARALLELISM,
+                SyncAdapter.CAPSULE_REQUEST_LIMIT);
         // LocationManager and LocationListener
         this.mLocationManager = locationManager;
         this.mLocationListener = locationListener;
@@ -177,8 +202,11 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                     this.mRequestHandler.requestCtag(authToken, RequestContract.Uri.CTAG_OWNERSHIPS_URI)
             );
             String serverCtag = null;
+            // The sync token from before the pull, so nothing changed during the sync is skipped
+            String syncToken = null;
             if (response.isSuccess()) {
                 serverCtag = response.getCtag();
+                syncToken = response.getSyncToken();
             }
             // Get the client ctag
             String clientCtag = this.mAccountManager.getUserData(account, SyncAdapter.USER_DATA_KEY_OWNERSHIP_CTAG);
@@ -187,8 +215,18 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 // The client is up-to-date with the server, so just push local changes to the server
                 success = this.syncDirtyOwnerships(account, authToken);
             } else {
-                // The client needs to get updates from the server, so perform a two-way sync
-                success = this.syncOwnershipsTwoWay(account, authToken);
+                // The client needs to get updates from the server, so try to get only the changes
+                OwnershipChangesResponse changes = this.requestOwnershipChanges(account, authToken);
+                if (changes != null) {
+                    success = this.syncOwnershipsDelta(changes, account, authToken);
+                    // The changes that were applied are complete up to their own token
+                    if (changes.getSyncToken() != null) {
+                        syncToken = changes.getSyncToken();
+                    }
+                } else {
+                    // There are no usable changes, so perform a two-way sync
+                    success = this.syncOwnershipsTwoWay(account, authToken);
+                }
             }
 
             // Apply the remaining ContentProviderOperations as a batch
@@ -206,6 +244,11 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                     this.mAccountManager.setUserData(account,
                             SyncAdapter.USER_DATA_KEY_OWNERSHIP_CTAG, serverCtag);
                 }
+                // Save the sync token so the next sync can request only the changes
+                if (syncToken != null) {
+                    this.mAccountManager.setUserData(account,
+                            SyncAdapter.USER_DATA_KEY_OWNERSHIP_SYNC_TOKEN, syncToken);
+                }
             }
         } catch (IOException e) {
             Log.e(TAG, "syncOwnerships(): " + e.getMessage());
@@ -230,13 +273,77 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 account, CapsuleContract.SyncStateAction.DIRTY);
         // Sync
         if (capsules != null && capsules.size() > 0) {
-            for (CapsuleOwnership capsule : capsules) {
-                success = success && this.syncDirtyOwnership(capsule, authToken);
-            }
+            success = this.pushDirtyOwnerships(capsules, authToken);
         }
         return success;
     }
 
+    /**
+     * Requests the Ownerships that changed on the server since the last successful sync.  If the
+     * server rejects the stored sync token, it is cleared so the next sync does not retry it.
+     *
+     * @param account   The Account to perform the sync for
+     * @param authToken The Account's authentication token
+     * @return The changes or null if a two-way sync is needed instead
+     */
+    private OwnershipChangesResponse requestOwnershipChanges(Account account, String authToken) {
+        // Get the client sync token
+        String syncToken = this.mAccountManager.getUserData(account, SyncAdapter.USER_DATA_KEY_OWNERSHIP_SYNC_TOKEN);
+        if (syncToken == null) {
+            return null;
+        }
+
+        try {
+            OwnershipChangesResponse response = new OwnershipChangesResponse(
+                    this.mRequestHandler.requestOwnershipChanges(authToken, syncToken)
+            );
+            if (response.isTokenRejected()) {
+                // The token has expired on the server
+                this.mAccountManager.setUserData(account, SyncAdapter.USER_DATA_KEY_OWNERSHIP_SYNC_TOKEN, null);
+                return null;
+            }
+            return response.isSuccess() ? response : null;
+        } catch (IOException e) {
+            Log.e(TAG, "requestOwnershipChanges(): " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Applies the server's changes since the last sync to the client and then pushes any local
+     * changes to the server.  As with the two-way sync, the server's version of a Capsule takes
+     * priority over local modifications.
+     *
+     * @param changes   The changes from the server
+     * @param account   The Account to perform the sync for
+     * @param authToken The Account's authentication token
+     * @return True if the whole sync was a success, otherwise false
+     */
+    private boolean syncOwnershipsDelta(OwnershipChangesResponse changes, Account account, String authToken) {
+        // Capsules deleted on the server are deleted from the client
+        for (Long syncId : changes.getDeletedSyncIds()) {
+            this.mCapsuleOperations.buildCapsuleDeleteBySyncId(syncId, /* withYield */ true);
+            this.mCapsuleOperations.checkAndApply();
+        }
+
+        // Capsules created or modified on the server are saved to the client
+        for (CapsuleOwnership capsule : changes.getCapsules()) {
+            // Set the Account
+            capsule.setAccountName(account.name);
+            // Build operations to save both the Capsule and Ownership
+            this.mCapsuleOperations.buildOwnershipSave(capsule, CapsuleContract.SyncStateAction.CLEAN);
+            this.mCapsuleOperations.checkAndApply();
+        }
+
+        // Write the server changes before looking for local changes
+        if (this.mCapsuleOperations.applyBatch() == null) {
+            return false;
+        }
+
+        // Push the remaining local changes
+        return this.syncDirtyOwnerships(account, authToken);
+    }
+
     /**
      * Performs a two-way sync by comparing the client's and server's Capsule ownerships and
      * determines what needs to be pushed to the server and what needs to be pulled from the server
@@ -292,43 +399,18 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         boolean success = true;
 
         try {
-            // Determine the Capsules only on the client-side
-            List<CapsuleOwnership> onClient = new ArrayList<CapsuleOwnership>();
-            onClient.addAll(clientCapsules);
-            onClient.removeAll(serverCapsules);
-            // Determine the Capsules only on the server-side
-            List<CapsuleOwnership> onServer = new ArrayList<CapsuleOwnership>();
-            onServer.addAll(serverCapsules);
-            onServer.removeAll(clientCapsules);
-            // Determine Capsules that are on both the client and server
-            List<CapsuleOwnership> onBoth = new ArrayList<CapsuleOwnership>();
-            onBoth.addAll(clientCapsules);
-            onBoth.retainAll(serverCapsules);
-            // Determine Capsules that are up-to-date with the server and those that are not
-            List<CapsuleOwnership> onBothSameEtag = new ArrayList<CapsuleOwnership>();
-            List<CapsuleOwnership> onBothOutOfSync = new ArrayList<CapsuleOwnership>();
-            for (int i = 0; i < onBoth.size(); i++) {
-                // Get the server and client versions
-                CapsuleOwnership commonCapsule = onBoth.get(i);
-                CapsuleOwnership client = clientCapsules.get(clientCapsules.indexOf(commonCapsule));
-                CapsuleOwnership server = serverCapsules.get(serverCapsules.indexOf(commonCapsule));
-                // Determine if the etags differ
-                if (client.getEtag().equals(server.getEtag())) {
-                    // Their etags match, so the client side has the most recent server data
-                    onBothSameEtag.add(commonCapsule);
-                } else {
-                    // Their etags don't match, so the server has newer data
-                    onBothOutOfSync.add(commonCapsule);
-                }
-            }
+            // Classify the Capsules in a single pass keyed by sync ID
+            OwnershipDiff diff = OwnershipDiff.compute(clientCapsules, serverCapsules);
+            List<CapsuleOwnership> onClient = diff.getClientOnly();
+            List<CapsuleOwnership> onServer = diff.getServerOnly();
+            List<CapsuleOwnership> onBothSameEtag = diff.getSameEtag();
+            List<CapsuleOwnership> onBothOutOfSync = diff.getOutOfSync();
 
             // Will hold the Capsules to REPORT on
             List<CapsuleOwnership> reportCapsules = new ArrayList<CapsuleOwnership>();
 
             // Capsules only on the client-side need to be pushed to the server or deleted from the client
-            for (CapsuleOwnership capsule : onClient) {
-                success = success && this.syncDirtyOwnership(capsule, authToken);
-            }
+            List<CapsuleOwnership> pushCapsules = new ArrayList<CapsuleOwnership>(onClient);
 
             // Capsules only on the server-side need to be pulled from the server to the client
             for (CapsuleOwnership capsule : onServer) {
@@ -342,7 +424,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 // Check to see if it is dirty
                 if (capsule.getDirty() > 0) {
                     // It is dirty, so there are local changes that need to be pushed to the server
-                    success = success && this.syncDirtyOwnership(capsule, authToken);
+                    pushCapsules.add(capsule);
                 }
             }
 
@@ -360,9 +442,14 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 }
             }
 
+            // Push the local changes
+            if (pushCapsules.size() > 0) {
+                success = this.pushDirtyOwnerships(pushCapsules, authToken) && success;
+            }
+
             // REPORT on the Capsules
             if (reportCapsules.size() > 0) {
-                success = success && this.reportOwnerships(reportCapsules, account, authToken);
+                success = this.reportOwnerships(reportCapsules, account, authToken) && success;
             }
         } catch (Exception e) {
             Log.e(TAG, "compareOwnerships() " + e.toString() + ": " + e.getMessage());
@@ -373,107 +460,41 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Syncs a local CapsuleOwnership to the server
+     * Pushes local modifications for a collection of CapsuleOwnerships to the server, deleting or
+     * saving each one on the client depending on the result.  All of the requests are attempted
+     * even if some fail, and the results are written to the client in a single batch.
      *
-     * @param capsule   The Capsule to sync
+     * @param capsules  The Capsules to sync
      * @param authToken The authentication token
-     * @return True on a successful sync, otherwise false
+     * @return True if every Capsule was synced, otherwise false
      */
-    private boolean syncDirtyOwnership(CapsuleOwnership capsule, String authToken) {
-        // Flag for keeping track of the success state
-        boolean success;
-
-        // Check if the Capsule has been deleted
-        final boolean isDeleted = capsule.getDeleted() >= 1;
-        if (isDeleted) {
-            // The Capsule has been flagged for deletion, so delete it
-            success = this.deleteDirtyOwnership(capsule, authToken);
-        } else {
-            // The Capsule was not deleted locally, it was modified or created
-            success = this.pushDirtyOwnership(capsule, authToken);
-        }
-
-        return success;
-    }
-
-    /**
-     * Deletes a local CapsuleOwnership.  If it exists on the server, it will also send a request
-     * to delete it on the server
-     *
-     * @param capsule   The Capsule to delete
-     * @param authToken The authentication token
-     * @return True on success, otherwise false
-     */
-    private boolean deleteDirtyOwnership(CapsuleOwnership capsule, String authToken) {
+    private boolean pushDirtyOwnerships(List<CapsuleOwnership> capsules, String authToken) {
         // Flag for keeping track of the success state
         boolean success = true;
 
         try {
-            // See if the Capsule has a server sync ID
-            if (capsule.getSyncId() > 0) {
-                // It has a sync ID, so attempt to delete it on the server first
-                EntityDeleteResponse response = new EntityDeleteResponse(
-                        this.mRequestHandler.requestOwnershipDelete(authToken, capsule.getSyncId())
-                );
-                // If the request was a success, build a Capsule DELETE operation
-                if (response.isSuccess()) {
-                    this.mCapsuleOperations.buildCapsuleDelete(capsule, /* withYield */ true);
-                } else {
+            // Send the requests concurrently
+            List<OwnershipPushEngine.Result> results = this.mPushEngine.push(capsules, authToken);
+            for (OwnershipPushEngine.Result result : results) {
+                if (!result.isSuccess()) {
                     success = false;
+                } else if (result.isDeleted()) {
+                    // Build a Capsule DELETE operation
+                    this.mCapsuleOperations.buildCapsuleDelete(result.getCapsule(), /* withYield */ true);
+                } else {
+                    // Build operations to save both the Capsule and Ownership
+                    this.mCapsuleOperations.buildOwnershipSave(result.getCapsule(),
+                            CapsuleContract.SyncStateAction.CLEAN);
                 }
-            } else {
-                // It is a local Capsule, so only need to build a Capsule DELETE operation
-                this.mCapsuleOperations.buildCapsuleDelete(capsule, /* withYield */ true);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "deleteDirtyOwnership(): " + e.getMessage());
-            success = false;
-        }
-
-        // Check and apply the ContentProviderOperations as a batch if necessary
-        this.mCapsuleOperations.checkAndApply();
-
-        return success;
-    }
-
-    /**
-     * Pushes local modifications for a CapsuleOwnership to the server
-     *
-     * @param capsule   The Capsule to sync
-     * @param authToken The authentication token
-     * @return True on success, otherwise false
-     */
-    private boolean pushDirtyOwnership(CapsuleOwnership capsule, String authToken) {
-        // Flag for keeping track of the success state
-        boolean success = true;
-
-        try {
-            // Send the request to update the Capsule to the server and get the response
-            OwnershipResponse response = new OwnershipResponse(
-                    this.mRequestHandler.requestOwnershipUpdate(authToken, capsule)
-            );
-            // Check if the request was a success
-            if (!response.isSuccess()) {
-                success = false;
-            } else {
-                // Get the Capsule from the response
-                CapsuleOwnership responseCapsule = response.getCapsule();
-                // Add the new etag to the Capsule
-                capsule.setEtag(responseCapsule.getEtag());
-                // Add the new sync ID
-                if (responseCapsule.getSyncId() > 0) {
-                    capsule.setSyncId(responseCapsule.getSyncId());
-                }
-                // Build operations to save both the Capsule and Ownership
-                this.mCapsuleOperations.buildOwnershipSave(capsule, CapsuleContract.SyncStateAction.CLEAN);
             }
-        } catch (IOException e) {
-            Log.e(TAG, "pushDirtyOwnership(): " + e.getMessage());
+        } catch (InterruptedException e) {
+            Log.e(TAG, "pushDirtyOwnerships(): " + e.getMessage());
+            Thread.currentThread().interrupt();
             success = false;
         }
 
-        // Check and apply the ContentProviderOperations as a batch if necessary
-        this.mCapsuleOperations.checkAndApply();
+        // Apply the successful results as a single batch
+        this.mCapsuleOperations.applyBatch();
 
         return success;
     }
@@ -492,38 +513,36 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         // Flag for keeping track of the success state
         boolean success = true;
 
+        // Download the chunks in the background while the previous ones are being saved
+        OwnershipReportPipeline pipeline = new OwnershipReportPipeline(this.mRequestHandler,
+                authToken, capsules, SyncAdapter.CAPSULE_REQUEST_LIMIT, SyncAdapter.REPORT_QUEUE_DEPTH);
+        pipeline.start();
         try {
-            // Split up the report Capsules into smaller collections for the HTTP request
-            for (int i = 0; i < capsules.size(); i += SyncAdapter.CAPSULE_REQUEST_LIMIT) {
-                // Get the chunk
-                List<CapsuleOwnership> chunk = capsules.subList(i,
-                        Math.min(i + SyncAdapter.CAPSULE_REQUEST_LIMIT, capsules.size()));
-                // Send the request
-                OwnershipCollectionResponse response = new OwnershipCollectionResponse(
-                        this.mRequestHandler.requestOwnershipReport(authToken, chunk)
-                );
+            OwnershipReportPipeline.Chunk chunk;
+            while ((chunk = pipeline.take()) != null) {
                 // Check if the response was a success
-                if (!response.isSuccess()) {
+                if (!chunk.isSuccess()) {
                     success = false;
-                } else {
-                    // Get the Capsules from the response
-                    List<CapsuleOwnership> responseCapsules = response.getCapsules();
-                    // Save the Capsules
-                    for (CapsuleOwnership capsule : responseCapsules) {
-                        // Set the Account
-                        capsule.setAccountName(account.name);
-                        // Build operations to save both the Capsule and Ownership
-                        this.mCapsuleOperations.buildOwnershipSave(capsule,
-                                CapsuleContract.SyncStateAction.CLEAN);
-                    }
                 }
+                for (CapsuleOwnership capsule : chunk.getCapsules()) {
+                    // Set the Account
+                    capsule.setAccountName(account.name);
+                    // Build operations to save both the Capsule and Ownership
+                    this.mCapsuleOperations.buildOwnershipSave(capsule,
+                            CapsuleContract.SyncStateAction.CLEAN);
+                }
+                // Apply the operations once the batch is full so memory stays flat
+                this.mCapsuleOperations.checkAndApply();
             }
-        } catch (IOException e) {
+        } catch (InterruptedException e) {
             Log.e(TAG, "reportOwnerships(): " + e.getMessage());
+            Thread.currentThread().interrupt();
             success = false;
+        } finally {
+            pipeline.cancel();
         }
 
-        // Check and apply the ContentProviderOperations as a batch if necessary
+        // Apply any remaining ContentProviderOperations
         this.mCapsuleOperations.checkAndApply();
 
         return success;
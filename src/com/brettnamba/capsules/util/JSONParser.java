@@ -169,6 +169,62 @@ public final class JSONParser {
         }
     }
 
+    /**
+     * Parses a sync token from a JSON server response
+     *
+     * @param json JSONObject representing a Web API JSON response
+     * @return The sync token or null if there is none
+     * @throws JSONException
+     */
+    public static String parseSyncToken(JSONObject json) throws JSONException {
+        if (!json.has(RequestContract.Field.DATA)) {
+            return null;
+        }
+
+        // Get the JSON data object
+        JSONObject dataObject = json.getJSONObject(RequestContract.Field.DATA);
+
+        // Return the token if it exists
+        if (dataObject.has(RequestContract.Field.SYNC_TOKEN) && !dataObject.isNull(RequestContract.Field.SYNC_TOKEN)) {
+            return dataObject.getString(RequestContract.Field.SYNC_TOKEN);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Parses the sync IDs of deleted entities from a JSON server response
+     *
+     * @param json JSONObject representing a Web API JSON response
+     * @return The collection of deleted sync IDs
+     * @throws JSONException
+     */
+    public static List<Long> parseDeletedSyncIds(JSONObject json) throws JSONException {
+        // Will hold the sync IDs
+        List<Long> syncIds = new ArrayList<Long>();
+
+        // Make sure the JSON object has the resource key
+        if (!json.has(RequestContract.Field.DATA)) {
+            return syncIds;
+        }
+
+        // Get the JSON data object
+        JSONObject data = json.getJSONObject(RequestContract.Field.DATA);
+
+        // Make sure the deleted key exists
+        if (!data.has(RequestContract.Field.DELETED_COLLECTION)) {
+            return syncIds;
+        }
+
+        // Get the array of sync IDs
+        JSONArray jsonSyncIds = data.getJSONArray(RequestContract.Field.DELETED_COLLECTION);
+        for (int i = 0; i < jsonSyncIds.length(); i++) {
+            syncIds.add(jsonSyncIds.getLong(i));
+        }
+
+        return syncIds;
+    }
+
     /**
      * Parses an authentication response to retrieve an authentication token.
      *
@@ -0,0 +1,385 @@
+package com.brettnamba.capsules.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.brettnamba.capsules.dataaccess.Capsule;
+import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+import com.brettnamba.capsules.dataaccess.Discovery;
+import com.brettnamba.capsules.dataaccess.Memoir;
+import com.brettnamba.capsules.dataaccess.User;
+import com.brettnamba.capsules.http.RequestContract;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses server responses token by token directly from the response stream.  Capsules are
+ * handed to a consumer as soon as each one has been read, so a large collection never has to be
+ * held as a String or a JSONObject tree.
+ *
+ * JsonReader is only available on Android 3.0 and later, so callers should check
+ * {@link #isSupported()} and fall back to {@link JSONParser} otherwise.  A malformed body is
+ * reported as a {@link MalformedJsonException} and a dropped connection as an IOException.  The
+ * Capsules that were handed to the consumer before the error are not taken back, so a caller that
+ * must not act on part of a collection collects the Capsules and only uses them once parsing has
+ * returned, as {@link com.brettnamba.capsules.http.response.OwnershipCollectionResponse} does.
+ *
+ * @author Brett Namba
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public final class JSONStreamParser {
+
+    /**
+     * Receives each Capsule as it is parsed from the stream
+     *
+     * @param <T> The type of Capsule
+     */
+    public interface CapsuleConsumer<T extends Capsule> {
+
+        /**
+         * Called for each Capsule parsed from the stream
+         *
+         * @param capsule The parsed Capsule
+         */
+        void onCapsule(T capsule);
+
+    }
+
+    /**
+     * Reads a single entry in a collection of Capsules
+     *
+     * @param <T> The type of Capsule
+     */
+    private interface EntryReader<T extends Capsule> {
+
+        /**
+         * Reads the entry the JsonReader is positioned at
+         *
+         * @param reader The JsonReader
+         * @return The Capsule or null if the entry should be skipped
+         * @throws IOException
+         */
+        T read(JsonReader reader) throws IOException;
+
+    }
+
+    /**
+     * Reads entries containing Capsule, Memoir, Discovery and User entities
+     */
+    private static final EntryReader<Capsule> CAPSULE_ENTRY_READER = new EntryReader<Capsule>() {
+        @Override
+        public Capsule read(JsonReader reader) throws IOException {
+            return JSONStreamParser.readCapsuleEntry(reader);
+        }
+    };
+
+    /**
+     * Reads entries that are flat Capsule Ownership objects
+     */
+    private static final EntryReader<CapsuleOwnership> OWNERSHIP_ENTRY_READER = new EntryReader<CapsuleOwnership>() {
+        @Override
+        public CapsuleOwnership read(JsonReader reader) throws IOException {
+            CapsuleOwnership capsule = new CapsuleOwnership();
+            return JSONStreamParser.readCapsule(reader, capsule) ? capsule : null;
+        }
+    };
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private JSONStreamParser() {
+    }
+
+    /**
+     * Determines if streaming parsing is available on this platform
+     *
+     * @return True if it is available, otherwise false
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Parses a collection of Capsules and their Memoirs, Discoveries and Users, handing each one
+     * to the consumer as it is read
+     *
+     * @param in       The response body
+     * @param consumer Receives each Capsule
+     * @return The messages in the response
+     * @throws IOException
+     */
+    public static List<String> parseCapsules(Reader in, CapsuleConsumer<Capsule> consumer)
+            throws IOException {
+        return JSONStreamParser.parseCollection(in, CAPSULE_ENTRY_READER, consumer);
+    }
+
+    /**
+     * Parses a collection of Capsule Ownerships, handing each one to the consumer as it is read
+     *
+     * @param in       The response body
+     * @param consumer Receives each Capsule
+     * @return The messages in the response
+     * @throws IOException
+     */
+    public static List<String> parseOwnershipCollection(Reader in,
+                                                        CapsuleConsumer<CapsuleOwnership> consumer)
+            throws IOException {
+        return JSONStreamParser.parseCollection(in, OWNERSHIP_ENTRY_READER, consumer);
+    }
+
+    /**
+     * Walks the response body, handing every entry in the data's Capsule collection to the
+     * consumer and collecting the messages
+     *
+     * @param in          The response body
+     * @param entryReader Reads each entry in the collection
+     * @param consumer    Receives each Capsule
+     * @param <T>         The type of Capsule
+     * @return The messages in the response
+     * @throws IOException
+     */
+    private static <T extends Capsule> List<String> parseCollection(Reader in,
+                                                                    EntryReader<T> entryReader,
+                                                                    CapsuleConsumer<T> consumer)
+            throws IOException {
+        List<String> messages = new ArrayList<String>();
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (RequestContract.Field.DATA.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    // The data object holding the collection
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (RequestContract.Field.CAPSULE_COLLECTION.equals(reader.nextName())
+                                && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                T capsule = entryReader.read(reader);
+                                if (capsule != null) {
+                                    consumer.onCapsule(capsule);
+                                }
+                            }
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else if (RequestContract.Field.MESSAGES.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    // The messages
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (reader.peek() == JsonToken.STRING) {
+                            messages.add(reader.nextString());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader reports an unexpected structure or value as an unchecked exception
+            throw new MalformedJsonException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+
+        return messages;
+    }
+
+    /**
+     * Reads an entry containing a Capsule and its related entities
+     *
+     * @param reader The JsonReader
+     * @return The Capsule or null if the entry did not contain one
+     * @throws IOException
+     */
+    private static Capsule readCapsuleEntry(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        Capsule capsule = new Capsule();
+        boolean hasCapsule = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+            } else if (RequestContract.Field.CAPSULE_ENTITY.equals(name)) {
+                hasCapsule = JSONStreamParser.readCapsule(reader, capsule);
+            } else if (RequestContract.Field.MEMOIR_ENTITY.equals(name)) {
+                capsule.setMemoir(JSONStreamParser.readMemoir(reader));
+            } else if (RequestContract.Field.DISCOVERY_ENTITY.equals(name)) {
+                capsule.setDiscovery(JSONStreamParser.readDiscovery(reader));
+            } else if (RequestContract.Field.USER_ENTITY.equals(name)) {
+                capsule.setUser(JSONStreamParser.readUser(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return hasCapsule ? capsule : null;
+    }
+
+    /**
+     * Reads a Capsule object into the specified Capsule
+     *
+     * @param reader  The JsonReader
+     * @param capsule The Capsule to populate
+     * @return True if an object was read, false if the value was skipped
+     * @throws IOException
+     */
+    private static boolean readCapsule(JsonReader reader, Capsule capsule) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return false;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (RequestContract.Field.CAPSULE_SYNC_ID.equals(name)) {
+                capsule.setSyncId(reader.nextLong());
+            } else if (RequestContract.Field.CAPSULE_NAME.equals(name)) {
+                capsule.setName(reader.nextString());
+            } else if (RequestContract.Field.CAPSULE_LATITUDE.equals(name)) {
+                capsule.setLatitude(reader.nextDouble());
+            } else if (RequestContract.Field.CAPSULE_LONGITUDE.equals(name)) {
+                capsule.setLongitude(reader.nextDouble());
+            } else if (RequestContract.Field.CAPSULE_RATING.equals(name)) {
+                capsule.setTotalRating(reader.nextInt());
+            } else if (RequestContract.Field.CAPSULE_DISCOVERY_COUNT.equals(name)) {
+                capsule.setDiscoveryCount(reader.nextInt());
+            } else if (RequestContract.Field.CAPSULE_FAVORITE_COUNT.equals(name)) {
+                capsule.setFavoriteCount(reader.nextInt());
+            } else if (RequestContract.Field.CAPSULE_ETAG.equals(name)
+                    && capsule instanceof CapsuleOwnership) {
+                ((CapsuleOwnership) capsule).setEtag(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return true;
+    }
+
+    /**
+     * Reads a Memoir object
+     *
+     * @param reader The JsonReader
+     * @return The Memoir
+     * @throws IOException
+     */
+    private static Memoir readMemoir(JsonReader reader) throws IOException {
+        Memoir memoir = new Memoir();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (RequestContract.Field.MEMOIR_SYNC_ID.equals(name)) {
+                memoir.setSyncId(reader.nextLong());
+            } else if (RequestContract.Field.MEMOIR_TITLE.equals(name)) {
+                memoir.setTitle(reader.nextString());
+            } else if (RequestContract.Field.MEMOIR_MESSAGE.equals(name)) {
+                memoir.setMessage(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return memoir;
+    }
+
+    /**
+     * Reads a Discovery object
+     *
+     * @param reader The JsonReader
+     * @return The Discovery
+     * @throws IOException
+     */
+    private static Discovery readDiscovery(JsonReader reader) throws IOException {
+        Discovery discovery = new Discovery();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (RequestContract.Field.DISCOVERY_SYNC_ID.equals(name)) {
+                discovery.setSyncId(reader.nextLong());
+            } else if (RequestContract.Field.DISCOVERY_OPENED.equals(name)) {
+                discovery.setIsOpened(JSONStreamParser.nextBoolean(reader));
+            } else if (RequestContract.Field.DISCOVERY_FAVORITE.equals(name)) {
+                discovery.setIsFavorite(JSONStreamParser.nextBoolean(reader));
+            } else if (RequestContract.Field.DISCOVERY_RATING.equals(name)) {
+                discovery.setRating(reader.nextInt());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return discovery;
+    }
+
+    /**
+     * Reads a User object
+     *
+     * @param reader The JsonReader
+     * @return The User
+     * @throws IOException
+     */
+    private static User readUser(JsonReader reader) throws IOException {
+        User user = new User();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonToken.NULL && RequestContract.Field.USER_USERNAME.equals(name)) {
+                user.setUsername(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return user;
+    }
+
+    /**
+     * Reads a boolean.  Like JSONObject, this accepts the strings "true" and "false".  Unlike
+     * JSONObject, which rejects numbers, it also accepts the 0 and 1 the server uses for some
+     * flags, treating any non-zero number as true.
+     *
+     * @param reader The JsonReader
+     * @return The boolean value
+     * @throws IOException
+     */
+    private static boolean nextBoolean(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                return reader.nextInt() != 0;
+            default:
+                return Boolean.parseBoolean(reader.nextString());
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.brettnamba.capsules.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests that the precomputed request keys match the keys the requests were built with when they
+ * were formatted on every call
+ *
+ * @author Brett Namba
+ */
+public class RequestTemplatesTest {
+
+    @Test
+    public void dataKeys() {
+        assertEquals(String.format("data[%1$s]", RequestContract.Field.CAPSULE_LATITUDE),
+                RequestTemplates.LATITUDE_KEY);
+        assertEquals(String.format("data[%1$s]", RequestContract.Field.CAPSULE_LONGITUDE),
+                RequestTemplates.LONGITUDE_KEY);
+        assertEquals(String.format("data[%1$s]", RequestContract.Field.DISCOVERY_FAVORITE),
+                RequestTemplates.DISCOVERY_FAVORITE_KEY);
+        assertEquals(String.format("data[%1$s]", RequestContract.Field.DISCOVERY_RATING),
+                RequestTemplates.DISCOVERY_RATING_KEY);
+        assertEquals(String.format("data[%1$s]", RequestContract.Field.UPLOAD_SIZE),
+                RequestTemplates.UPLOAD_SIZE_KEY);
+        assertEquals(String.format("data[%1$s]", RequestContract.Field.UPLOAD_TYPE),
+                RequestTemplates.UPLOAD_TYPE_KEY);
+    }
+
+    @Test
+    public void capsuleKeys() {
+        assertEquals(String.format("data[%1$s][%2$s]", RequestContract.Field.CAPSULE_ENTITY,
+                RequestContract.Field.CAPSULE_NAME), RequestTemplates.CAPSULE_NAME_KEY);
+        assertEquals(String.format("data[%1$s][%2$s]", RequestContract.Field.CAPSULE_ENTITY,
+                RequestContract.Field.CAPSULE_LATITUDE), RequestTemplates.CAPSULE_LATITUDE_KEY);
+        assertEquals(String.format("data[%1$s][%2$s]", RequestContract.Field.CAPSULE_ENTITY,
+                RequestContract.Field.CAPSULE_LONGITUDE), RequestTemplates.CAPSULE_LONGITUDE_KEY);
+    }
+
+    @Test
+    public void memoirKeys() {
+        assertEquals(String.format("data[%1$s][0][%2$s]", RequestContract.Field.MEMOIR_ENTITY,
+                RequestContract.Field.MEMOIR_TITLE), RequestTemplates.MEMOIR_TITLE_KEY);
+        assertEquals(String.format("data[%1$s][0][%2$s]", RequestContract.Field.MEMOIR_ENTITY,
+                RequestContract.Field.MEMOIR_MESSAGE), RequestTemplates.MEMOIR_MESSAGE_KEY);
+        assertEquals(String.format("data[%1$s][0][%2$s]", RequestContract.Field.MEMOIR_ENTITY,
+                RequestContract.Field.MEMOIR_FILE), RequestTemplates.MEMOIR_FILE_KEY);
+        assertEquals(String.format("data[%1$s][0][%2$s]", RequestContract.Field.MEMOIR_ENTITY,
+                RequestContract.Field.MEMOIR_UPLOAD_ID), RequestTemplates.MEMOIR_UPLOAD_ID_KEY);
+    }
+
+    @Test
+    public void reportSyncIdKeys() {
+        // Both the precomputed keys and the keys built on demand
+        for (int i = 0; i < 200; i++) {
+            assertEquals(String.format("data[%1$s][%2$d]", RequestContract.Field.CAPSULE_SYNC_ID, i),
+                    RequestTemplates.reportSyncIdKey(i));
+        }
+        assertSame(RequestTemplates.reportSyncIdKey(3), RequestTemplates.reportSyncIdKey(3));
+    }
+
+    @Test
+    public void batchKeys() {
+        // Both the precomputed keys and the keys built on demand
+        for (int i = 0; i < 200; i++) {
+            RequestTemplates.BatchKeys keys = RequestTemplates.batchKeys(i);
+            assertEquals(String.format("data[%1$d][%2$s]", i, RequestContract.Field.BATCH_ACTION),
+                    keys.mAction);
+            assertEquals(String.format("data[%1$d][%2$s]", i, RequestContract.Field.CAPSULE_SYNC_ID),
+                    keys.mSyncId);
+            assertEquals(String.format("data[%1$d][%2$s]", i, RequestContract.Field.CAPSULE_NAME),
+                    keys.mName);
+            assertEquals(String.format("data[%1$d][%2$s]", i, RequestContract.Field.CAPSULE_LATITUDE),
+                    keys.mLatitude);
+            assertEquals(String.format("data[%1$d][%2$s]", i, RequestContract.Field.CAPSULE_LONGITUDE),
+                    keys.mLongitude);
+        }
+        assertSame(RequestTemplates.batchKeys(3), RequestTemplates.batchKeys(3));
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.brettnamba.capsules.location;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the DiscoveryTrigger with recorded location traces.
+ *
+ * Each fix in a trace is {north offset in meters, east offset in meters, accuracy in meters,
+ * seconds since the start}, relative to ORIGIN.  The traces use the MapActivity discovery radius,
+ * so a request is issued after moving 40 meters beyond the accuracy or after two minutes.
+ *
+ * @author Brett Namba
+ */
+public class DiscoveryTriggerTest {
+
+    /**
+     * The discovery radius used by the MapActivity, in meters
+     */
+    private static final double RADIUS = 161;
+
+    /**
+     * The latitude and longitude the traces are relative to
+     */
+    private static final double[] ORIGIN = new double[]{40.7128, -74.0060};
+
+    /**
+     * A phone lying on a desk, every 5 seconds.  The fixes wander up to 25 meters while reporting
+     * an accuracy of 15 to 30 meters.
+     */
+    private static final double[][] STATIONARY_TRACE = new double[][]{
+            {0, 0, 20, 0}, {4, -3, 18, 5}, {-7, 6, 22, 10}, {12, 9, 25, 15},
+            {-15, -4, 24, 20}, {3, 18, 30, 25}, {-2, -11, 19, 30}, {21, 5, 28, 35},
+            {-9, -17, 26, 40}, {6, 2, 15, 45}, {-19, 14, 29, 50}, {10, -20, 27, 55},
+            {1, 8, 16, 60}, {-12, 3, 21, 65}, {16, -8, 23, 70}, {-5, 22, 30, 75},
+            {7, -6, 17, 80}, {-24, 1, 30, 85}, {13, 13, 24, 90}, {0, -9, 18, 95}
+    };
+
+    /**
+     * A walk north at 1.4 meters per second, every 5 seconds, with a good GPS fix
+     */
+    private static final double[][] WALK_TRACE = new double[][]{
+            {0, 0, 5, 0}, {7, 0, 5, 5}, {14, 1, 5, 10}, {21, 0, 5, 15},
+            {28, -1, 5, 20}, {35, 0, 5, 25}, {42, 1, 5, 30}, {49, 0, 5, 35},
+            {56, 0, 5, 40}, {63, -1, 5, 45}, {70, 0, 5, 50}, {77, 1, 5, 55},
+            {84, 0, 5, 60}
+    };
+
+    /**
+     * The trigger under test
+     */
+    private DiscoveryTrigger mTrigger;
+
+    @Before
+    public void setUp() {
+        this.mTrigger = new DiscoveryTrigger(RADIUS);
+    }
+
+    @Test
+    public void stationaryJitterOnlyIssuesTheFirstRequest() {
+        List<Long> issued = this.replay(STATIONARY_TRACE, 0);
+
+        assertEquals(Arrays.asList(0L), issued);
+        assertEquals(1, this.mTrigger.getIssuedCount());
+        assertEquals(STATIONARY_TRACE.length - 1, this.mTrigger.getSuppressedCount());
+    }
+
+    @Test
+    public void stationaryUserIsRefreshedOnceStale() {
+        // Replay the trace back to back for almost five minutes
+        List<Long> issued = new ArrayList<Long>();
+        for (int offset = 0; offset <= 240; offset += 100) {
+            issued.addAll(this.replay(STATIONARY_TRACE, offset));
+        }
+
+        assertEquals(Arrays.asList(0L, 120L, 240L), issued);
+    }
+
+    @Test
+    public void slowWalkIssuesOnceTheThresholdIsCovered() {
+        List<Long> issued = this.replay(WALK_TRACE, 0);
+
+        // 49 meters less the 5 meter accuracy is the first fix past 40 meters
+        assertEquals(Arrays.asList(0L, 35L), issued);
+        assertEquals(WALK_TRACE.length - 2, this.mTrigger.getSuppressedCount());
+    }
+
+    @Test
+    public void inaccurateFixIsNotTrustedToHaveMoved() {
+        this.issue(0, 0, 0);
+
+        // Far enough away, but the fix is less accurate than the discovery radius
+        assertFalse(this.shouldDiscover(300, 0, 500, 10));
+        // The same distance with a good fix
+        assertTrue(this.shouldDiscover(300, 0, 10, 15));
+    }
+
+    @Test
+    public void resetIssuesOnTheNextFix() {
+        this.issue(0, 0, 0);
+        assertFalse(this.shouldDiscover(2, 2, 10, 5));
+
+        this.mTrigger.reset();
+
+        assertTrue(this.shouldDiscover(2, 2, 10, 10));
+    }
+
+    @Test
+    public void clockGoingBackwardsIssues() {
+        this.issue(0, 0, 60);
+
+        assertTrue(this.shouldDiscover(0, 0, 10, 30));
+    }
+
+    /**
+     * Feeds a trace to the trigger, issuing a request whenever it says so
+     *
+     * @param trace  The fixes
+     * @param offset Seconds added to the time of every fix
+     * @return The times in seconds that issued a request
+     */
+    private List<Long> replay(double[][] trace, long offset) {
+        List<Long> issued = new ArrayList<Long>();
+        for (double[] fix : trace) {
+            long seconds = (long) fix[3] + offset;
+            if (this.shouldDiscover(fix[0], fix[1], fix[2], seconds)) {
+                this.issue(fix[0], fix[1], seconds);
+                issued.add(seconds);
+            }
+        }
+        return issued;
+    }
+
+    /**
+     * Asks the trigger about a fix
+     *
+     * @param north    Meters north of the origin
+     * @param east     Meters east of the origin
+     * @param accuracy The accuracy in meters
+     * @param seconds  The time of the fix in seconds
+     * @return True if a request should be issued
+     */
+    private boolean shouldDiscover(double north, double east, double accuracy, long seconds) {
+        return this.mTrigger.shouldDiscover(latitude(north), longitude(east), (float) accuracy,
+                seconds * 1000);
+    }
+
+    /**
+     * Records a request for a fix
+     *
+     * @param north   Meters north of the origin
+     * @param east    Meters east of the origin
+     * @param seconds The time of the fix in seconds
+     */
+    private void issue(double north, double east, long seconds) {
+        this.mTrigger.onDiscoveryIssued(latitude(north), longitude(east), seconds * 1000);
+    }
+
+    /**
+     * Gets the latitude a number of meters north of the origin
+     *
+     * @param north The meters
+     * @return The latitude
+     */
+    private static double latitude(double north) {
+        return ORIGIN[0] + Math.toDegrees(north / Geo.EARTH_RADIUS);
+    }
+
+    /**
+     * Gets the longitude a number of meters east of the origin
+     *
+     * @param east The meters
+     * @return The longitude
+     */
+    private static double longitude(double east) {
+        return ORIGIN[1] + Math.toDegrees(east / (Geo.EARTH_RADIUS * Math.cos(Math.toRadians(ORIGIN[0]))));
+    }
+
+}
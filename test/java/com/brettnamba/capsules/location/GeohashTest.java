@@ -0,0 +1,163 @@
+package com.brettnamba.capsules.location;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the Geohash encoding and the cell covers built on it
+ *
+ * @author Brett Namba
+ */
+public class GeohashTest {
+
+    @Test
+    public void encodesKnownGeohashes() {
+        assertEquals("ezs42", Geohash.encode(42.6, -5.6, 5));
+        assertEquals("u4pruydqqvj", Geohash.encode(57.64911, 10.40744, 11));
+        assertEquals("s0000000", Geohash.encode(0, 0, 8));
+    }
+
+    @Test
+    public void longerGeohashesStartWithShorterOnes() {
+        String full = Geohash.encode(40.7128, -74.0060, Geohash.MAX_PRECISION);
+        for (int precision = 1; precision < Geohash.MAX_PRECISION; precision++) {
+            assertTrue(full.startsWith(Geohash.encode(40.7128, -74.0060, precision)));
+        }
+    }
+
+    @Test
+    public void boundsContainTheEncodedPoint() {
+        double[] b = Geohash.bounds(Geohash.encode(57.64911, 10.40744, 8));
+
+        assertTrue(b[0] <= 57.64911 && 57.64911 < b[2]);
+        assertTrue(b[1] <= 10.40744 && 10.40744 < b[3]);
+        // Eight characters are 20 bits of latitude and 20 bits of longitude
+        assertEquals(180 / Math.pow(2, 20), b[2] - b[0], 1e-12);
+        assertEquals(360 / Math.pow(2, 20), b[3] - b[1], 1e-12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void boundsRejectInvalidCharacters() {
+        Geohash.bounds("ezs4a");
+    }
+
+    @Test
+    public void coverHasEveryCellOfTheBoxOnce() {
+        double south = 40.70, west = -74.02, north = 40.72, east = -73.99;
+        List<String> cells = Geohash.cover(south, west, north, east, 6);
+
+        assertEquals(cells.size(), new HashSet<String>(cells).size());
+        // The corners and the middle of the box are covered
+        Set<String> covered = new HashSet<String>(cells);
+        assertTrue(covered.contains(Geohash.encode(south, west, 6)));
+        assertTrue(covered.contains(Geohash.encode(north, east, 6)));
+        assertTrue(covered.contains(Geohash.encode(south, east, 6)));
+        assertTrue(covered.contains(Geohash.encode(north, west, 6)));
+        assertTrue(covered.contains(Geohash.encode((south + north) / 2, (west + east) / 2, 6)));
+        // No cell lies outside of the box
+        for (String cell : cells) {
+            double[] b = Geohash.bounds(cell);
+            assertTrue(b[2] > south && b[0] <= north && b[3] > west && b[1] <= east);
+        }
+    }
+
+    @Test
+    public void coverOfACircleContainsEveryPointInIt() {
+        double lat = 40.7128, lng = -74.0060, radius = 161;
+        Set<String> covered = new HashSet<String>(Geohash.cover(lat, lng, radius, 8));
+        for (int bearing = 0; bearing < 360; bearing += 15) {
+            double north = radius * Math.cos(Math.toRadians(bearing));
+            double east = radius * Math.sin(Math.toRadians(bearing));
+            double pointLat = lat + Math.toDegrees(north / Geo.EARTH_RADIUS);
+            double pointLng = lng + Math.toDegrees(
+                    east / (Geo.EARTH_RADIUS * Math.cos(Math.toRadians(lat))));
+            assertTrue(covered.contains(Geohash.encode(pointLat, pointLng, 8)));
+        }
+    }
+
+    @Test
+    public void precisionForStaysWithinTheCellLimit() {
+        double[] box = Geohash.boundingBox(40.7128, -74.0060, 500);
+        int precision = Geohash.precisionFor(box[0], box[1], box[2], box[3], 16);
+
+        assertTrue(Geohash.cover(box[0], box[1], box[2], box[3], precision).size() <= 16);
+        // One more character would need more cells
+        assertTrue(Geohash.cover(box[0], box[1], box[2], box[3], precision + 1).size() > 16);
+        // The whole world still gets a precision
+        assertEquals(1, Geohash.precisionFor(-90, -180, 90, 180, 1));
+    }
+
+    @Test
+    public void centerWithinAndIntersects() {
+        String cell = Geohash.encode(40.7128, -74.0060, 8);
+        double[] b = Geohash.bounds(cell);
+        double centerLat = (b[0] + b[2]) / 2;
+        double centerLng = (b[1] + b[3]) / 2;
+
+        assertTrue(Geohash.isCenterWithin(cell, centerLat, centerLng, 1));
+        assertTrue(Geohash.intersects(cell, centerLat, centerLng, 1));
+
+        // A circle just north of the cell reaches its edge but not its center
+        double northLat = b[2] + Math.toDegrees(5 / Geo.EARTH_RADIUS);
+        assertFalse(Geohash.isCenterWithin(cell, northLat, centerLng, 10));
+        assertTrue(Geohash.intersects(cell, northLat, centerLng, 10));
+        assertFalse(Geohash.intersects(cell, northLat, centerLng, 4));
+    }
+
+    @Test
+    public void boundingBoxSpansTheRadius() {
+        double[] box = Geohash.boundingBox(40.7128, -74.0060, 1000);
+
+        assertEquals(1000, Geo.distance(40.7128, -74.0060, box[2], -74.0060), 0.5);
+        assertEquals(1000, Geo.distance(40.7128, -74.0060, box[0], -74.0060), 0.5);
+        assertEquals(1000, Geo.distance(40.7128, -74.0060, 40.7128, box[3]), 0.5);
+        assertEquals(1000, Geo.distance(40.7128, -74.0060, 40.7128, box[1]), 0.5);
+    }
+
+    @Test
+    public void boundingBoxOfACircleAroundAPoleSpansEveryLongitude() {
+        double[] north = Geohash.boundingBox(90, 0, 1000);
+        double[] south = Geohash.boundingBox(-90, 45, 1000);
+
+        assertEquals(90 - Math.toDegrees(1000 / Geo.EARTH_RADIUS), north[0], 1e-12);
+        assertEquals(-180, north[1], 0);
+        assertEquals(90, north[2], 0);
+        assertEquals(180, north[3], 0);
+        assertEquals(-90, south[0], 0);
+        assertEquals(-180, south[1], 0);
+        assertEquals(-90 + Math.toDegrees(1000 / Geo.EARTH_RADIUS), south[2], 1e-12);
+        assertEquals(180, south[3], 0);
+    }
+
+    @Test
+    public void boundingBoxOfACircleAcrossAPoleSpansEveryLongitude() {
+        // 20 km from a center 11 km short of the pole reaches the other side of it
+        double[] box = Geohash.boundingBox(89.9, 10, 20000);
+
+        assertEquals(-180, box[1], 0);
+        assertEquals(90, box[2], 0);
+        assertEquals(180, box[3], 0);
+        // A point just across the pole is inside the circle and the box
+        assertTrue(Geo.distance(89.9, 10, 89.95, -170) < 20000);
+        assertTrue(box[0] <= 89.95 && box[1] <= -170);
+    }
+
+    @Test
+    public void boundingBoxOfAZeroRadiusIsThePoint() {
+        double[] box = Geohash.boundingBox(40.7128, -74.0060, 0);
+
+        assertEquals(40.7128, box[0], 0);
+        assertEquals(-74.0060, box[1], 0);
+        assertEquals(40.7128, box[2], 0);
+        assertEquals(-74.0060, box[3], 0);
+        assertEquals(1, Geohash.cover(40.7128, -74.0060, 0, 8).size());
+    }
+
+}
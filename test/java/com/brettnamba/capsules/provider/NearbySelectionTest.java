@@ -0,0 +1,161 @@
+package com.brettnamba.capsules.provider;
+
+import com.brettnamba.capsules.location.Geo;
+import com.brettnamba.capsules.location.Geohash;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the selection of the Capsules within a radius or bounding box, including its edge cases
+ *
+ * @author Brett Namba
+ */
+public class NearbySelectionTest {
+
+    /**
+     * Finds the cells of the geohash ranges in a WHERE clause
+     */
+    private static final Pattern CELL = Pattern.compile(
+            CapsuleContract.Capsules.GEOHASH + " >= '([0-9a-z]+)'");
+
+    @Test
+    public void radiusIsFilteredByDistance() {
+        NearbySelection selection = NearbySelection.forRadius(40.7128, -74.0060, 500);
+
+        double radiusDegrees = Math.toDegrees(500 / Geo.EARTH_RADIUS);
+        assertTrue(selection.getWhere().endsWith(" <= " + radiusDegrees * radiusDegrees));
+        assertTrue(cells(selection.getWhere()).size() <= NearbySelection.MAX_CELLS);
+        assertTrue(isCovered(selection, 40.7128, -74.0060));
+    }
+
+    @Test
+    public void zeroRadiusOnlyMatchesTheCenter() {
+        NearbySelection selection = NearbySelection.forRadius(40.7128, -74.0060, 0);
+
+        assertArrayEquals(new double[]{40.7128, -74.0060, 40.7128, -74.0060},
+                selection.getBox(), 0);
+        assertTrue(selection.getWhere().endsWith(" <= 0.0"));
+        assertTrue(isCovered(selection, 40.7128, -74.0060));
+    }
+
+    @Test
+    public void radiusAroundAPoleCoversEveryLongitude() {
+        for (double lat : new double[]{90, -90, 89.9, -89.9}) {
+            NearbySelection selection = NearbySelection.forRadius(lat, 10, 20000);
+            double[] box = selection.getBox();
+
+            assertTrue(box[1] == -180 && box[3] == 180);
+            // The projection does not hold across the pole, so only the box is filtered by
+            assertFalse(selection.getWhere().contains(" <= "));
+            // A point on the far side of the pole is covered
+            double farLat = lat > 0 ? 89.95 : -89.95;
+            assertTrue(Geo.distance(lat, 10, farLat, -170) < 20000);
+            assertTrue(isCovered(selection, farLat, -170));
+            assertTrue(isCovered(selection, farLat, 179.99));
+        }
+    }
+
+    @Test
+    public void zeroRadiusAtAPoleMatchesEveryLongitude() {
+        NearbySelection selection = NearbySelection.forRadius(90, 0, 0);
+
+        assertArrayEquals(new double[]{90, -180, 90, 180}, selection.getBox(), 0);
+        assertTrue(isCovered(selection, 90, 0));
+    }
+
+    @Test
+    public void boxIsOnlyFilteredByTheBox() {
+        NearbySelection selection = NearbySelection.forBox(40.70, -74.02, 40.72, -73.99);
+
+        assertFalse(selection.getWhere().contains(" <= "));
+        assertTrue(isCovered(selection, 40.71, -74.00));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANegativeRadius() {
+        NearbySelection.forRadius(40.7128, -74.0060, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInfiniteRadius() {
+        NearbySelection.forRadius(40.7128, -74.0060, Double.POSITIVE_INFINITY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANaNRadius() {
+        NearbySelection.forRadius(40.7128, -74.0060, Double.NaN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANaNCenter() {
+        NearbySelection.forRadius(Double.NaN, -74.0060, 500);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInfiniteCenter() {
+        NearbySelection.forRadius(40.7128, Double.NEGATIVE_INFINITY, 500);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsALatitudePastAPole() {
+        NearbySelection.forRadius(90.5, 0, 500);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInfiniteBox() {
+        NearbySelection.forBox(40.70, -74.02, Double.POSITIVE_INFINITY, -73.99);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInsideOutBox() {
+        NearbySelection.forBox(40.72, -74.02, 40.70, -73.99);
+    }
+
+    /**
+     * Determines if a point is inside the bounding box and one of the geohash ranges of a
+     * selection
+     *
+     * @param selection The selection
+     * @param lat       The latitude of the point
+     * @param lng       The longitude of the point
+     * @return True if the point passes both filters
+     */
+    private static boolean isCovered(NearbySelection selection, double lat, double lng) {
+        double[] box = selection.getBox();
+        if (lat < box[0] || lat > box[2] || lng < box[1] || lng > box[3]) {
+            return false;
+        }
+        String geohash = Geohash.encode(lat, lng, Geohash.MAX_PRECISION);
+        for (String cell : cells(selection.getWhere())) {
+            if (geohash.startsWith(cell)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the cells of the geohash ranges in a WHERE clause
+     *
+     * @param where The WHERE clause
+     * @return The geohashes of the cells
+     */
+    private static List<String> cells(String where) {
+        List<String> cells = new ArrayList<String>();
+        Matcher matcher = CELL.matcher(where);
+        while (matcher.find()) {
+            cells.add(matcher.group(1));
+        }
+        return cells;
+    }
+
+}
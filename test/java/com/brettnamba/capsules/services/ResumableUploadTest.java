@@ -0,0 +1,608 @@
+package com.brettnamba.capsules.services;
+
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import com.brettnamba.capsules.http.RequestHandler;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the ResumableUpload against a stub upload endpoint that answers with queued responses
+ * and records every chunk it is sent
+ *
+ * @author Brett Namba
+ */
+public class ResumableUploadTest {
+
+    /**
+     * The outbox row ID of the save under test
+     */
+    private static final long SAVE_ID = 7;
+
+    /**
+     * A file of two and a half chunks
+     */
+    private static final byte[] FILE = ResumableUploadTest.buildFile(
+            ResumableUpload.CHUNK_SIZE * 5 / 2);
+
+    /**
+     * The stub upload endpoint
+     */
+    private StubEndpoint mEndpoint;
+
+    /**
+     * The stored upload sessions
+     */
+    private MemorySessions mSessions;
+
+    @Before
+    public void setUp() {
+        this.mEndpoint = new StubEndpoint();
+        this.mSessions = new MemorySessions();
+    }
+
+    @Test
+    public void newUploadSendsEveryChunkAtTheAcknowledgedOffset() throws IOException {
+        this.mEndpoint.mStart.add(upload(HttpStatus.SC_CREATED, "u1", 0));
+        this.acknowledgeEveryChunk();
+        TestUpload upload = this.newUpload(SAVE_ID);
+
+        assertEquals("u1", upload.upload(null, FILE.length, null));
+
+        assertEquals(Arrays.asList(0L, (long) ResumableUpload.CHUNK_SIZE,
+                2L * ResumableUpload.CHUNK_SIZE), this.mEndpoint.mChunkOffsets);
+        assertArrayEquals(FILE, this.mEndpoint.getReceived());
+        assertTrue(upload.mSleeps.isEmpty());
+        // The session is kept until the Capsule is saved
+        assertEquals(FILE.length + ":u1", this.mSessions.getString("save-" + SAVE_ID, null));
+    }
+
+    @Test
+    public void storedSessionContinuesFromTheServerOffset() throws IOException {
+        this.mSessions.edit().putString("save-" + SAVE_ID, FILE.length + ":u1").commit();
+        this.mEndpoint.mStatus.add(upload(HttpStatus.SC_OK, "u1", ResumableUpload.CHUNK_SIZE));
+        this.acknowledgeEveryChunk();
+
+        assertEquals("u1", this.newUpload(SAVE_ID).upload(null, FILE.length, null));
+
+        assertEquals(0, this.mEndpoint.mStartCount);
+        assertEquals(Arrays.asList((long) ResumableUpload.CHUNK_SIZE,
+                2L * ResumableUpload.CHUNK_SIZE), this.mEndpoint.mChunkOffsets);
+    }
+
+    @Test
+    public void sessionForAnotherSizeStartsAgain() throws IOException {
+        this.mSessions.edit().putString("save-" + SAVE_ID, "123:old").commit();
+        this.mEndpoint.mStart.add(upload(HttpStatus.SC_CREATED, "u2", 0));
+        this.acknowledgeEveryChunk();
+
+        assertEquals("u2", this.newUpload(SAVE_ID).upload(null, FILE.length, null));
+
+        assertEquals(0, this.mEndpoint.mStatusCount);
+        assertEquals(1, this.mEndpoint.mStartCount);
+    }
+
+    @Test
+    public void offsetConflictMovesToTheServerOffset() throws IOException {
+        int chunk = ResumableUpload.CHUNK_SIZE;
+        this.mEndpoint.mStart.add(upload(HttpStatus.SC_CREATED, "u1", 0));
+        // The server already has the second chunk, then loses part of it
+        this.mEndpoint.mChunk.add(upload(HttpStatus.SC_OK, "u1", chunk));
+        this.mEndpoint.mChunk.add(upload(HttpStatus.SC_CONFLICT, "u1", 2L * chunk));
+        this.mEndpoint.mChunk.add(upload(HttpStatus.SC_CONFLICT, "u1", chunk + 100));
+        this.acknowledgeEveryChunk();
+
+        assertEquals("u1", this.newUpload(SAVE_ID).upload(null, FILE.length, null));
+
+        assertEquals(Arrays.asList(0L, (long) chunk, 2L * chunk, chunk + 100L, chunk + 100L + chunk),
+                this.mEndpoint.mChunkOffsets);
+        // The chunk sent after going back starts with the right bytes
+        assertEquals(FILE[chunk + 100], this.mEndpoint.mChunks.get(3)[0]);
+    }
+
+    @Test
+    public void expiredSessionIsForgotten() {
+        this.mSessions.edit().putString("save-" + SAVE_ID, FILE.length + ":u1").commit();
+        this.mEndpoint.mStatus.add(upload(HttpStatus.SC_OK, "u1", 0));
+        this.mEndpoint.mChunk.add(upload(HttpStatus.SC_GONE, null, -1));
+
+        try {
+            this.newUpload(SAVE_ID).upload(null, FILE.length, null);
+            fail("The expired session was not reported");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertNull(this.mSessions.getString("save-" + SAVE_ID, null));
+    }
+
+    @Test
+    public void sessionTheServerNoLongerHasStartsAgain() throws IOException {
+        this.mSessions.edit().putString("save-" + SAVE_ID, FILE.length + ":u1").commit();
+        this.mEndpoint.mStatus.add(upload(HttpStatus.SC_NOT_FOUND, null, -1));
+        this.mEndpoint.mStart.add(upload(HttpStatus.SC_CREATED, "u2", 0));
+        this.acknowledgeEveryChunk();
+
+        assertEquals("u2", this.newUpload(SAVE_ID).upload(null, FILE.length, null));
+
+        assertEquals(FILE.length + ":u2", this.mSessions.getString("save-" + SAVE_ID, null));
+        assertEquals(Arrays.asList("u2", "u2", "u2"), this.mEndpoint.mChunkUploadIds);
+    }
+
+    @Test
+    public void failedChunkIsRetriedWithBackoff() throws IOException {
+        this.mEndpoint.mStart.add(upload(HttpStatus.SC_CREATED, "u1", 0));
+        this.mEndpoint.mChunk.add(new IOException("Connection reset"));
+        this.mEndpoint.mChunk.add(upload(HttpStatus.SC_SERVICE_UNAVAILABLE, null, -1));
+        this.acknowledgeEveryChunk();
+        TestUpload upload = this.newUpload(SAVE_ID);
+
+        assertEquals("u1", upload.upload(null, FILE.length, null));
+
+        assertEquals(Arrays.asList(1000L, 2000L), upload.mSleeps);
+        assertEquals(Arrays.asList(0L, 0L, 0L, (long) ResumableUpload.CHUNK_SIZE,
+                2L * ResumableUpload.CHUNK_SIZE), this.mEndpoint.mChunkOffsets);
+    }
+
+    @Test
+    public void chunkIsGivenUpOnAfterTheLastAttempt() {
+        this.mEndpoint.mStart.add(upload(HttpStatus.SC_CREATED, "u1", 0));
+        this.mEndpoint.mFailChunks = true;
+        TestUpload upload = this.newUpload(SAVE_ID);
+
+        try {
+            upload.upload(null, FILE.length, null);
+            fail("The failed chunk was not reported");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertEquals(Arrays.asList(1000L, 2000L, 4000L, 8000L), upload.mSleeps);
+        // The session is kept so the next attempt of the save resumes it
+        assertEquals(FILE.length + ":u1", this.mSessions.getString("save-" + SAVE_ID, null));
+    }
+
+    @Test
+    public void unsupportedServerSendsTheFileWithTheSave() throws IOException {
+        this.mEndpoint.mStart.add(upload(HttpStatus.SC_METHOD_NOT_ALLOWED, null, -1));
+
+        assertNull(this.newUpload(SAVE_ID).upload(null, FILE.length, null));
+
+        assertTrue(this.mEndpoint.mChunkOffsets.isEmpty());
+    }
+
+    @Test
+    public void savesOfTheSameFileHaveTheirOwnSessions() throws IOException {
+        this.mEndpoint.mStart.add(upload(HttpStatus.SC_CREATED, "u1", 0));
+        this.mEndpoint.mStart.add(upload(HttpStatus.SC_CREATED, "u2", 0));
+        this.acknowledgeEveryChunk();
+        TestUpload first = this.newUpload(1);
+        TestUpload second = this.newUpload(2);
+
+        assertEquals("u1", first.upload(null, FILE.length, null));
+        assertEquals("u2", second.upload(null, FILE.length, null));
+        first.finish();
+
+        assertNull(this.mSessions.getString("save-1", null));
+        assertEquals(FILE.length + ":u2", this.mSessions.getString("save-2", null));
+    }
+
+    /**
+     * Makes the stub acknowledge every chunk that is not answered by a queued response
+     */
+    private void acknowledgeEveryChunk() {
+        this.mEndpoint.mAcknowledge = true;
+    }
+
+    /**
+     * Creates an upload of the test file against the stub endpoint
+     *
+     * @param saveId The outbox row ID of the save
+     * @return The upload
+     */
+    private TestUpload newUpload(long saveId) {
+        return new TestUpload(this.mSessions, this.mEndpoint, saveId);
+    }
+
+    /**
+     * Builds an upload session response
+     *
+     * @param status   The HTTP status code
+     * @param uploadId The upload ID or null to leave it out
+     * @param offset   The offset or -1 to leave it out
+     * @return The response
+     */
+    private static HttpResponse upload(int status, String uploadId, long offset) {
+        StringBuilder upload = new StringBuilder();
+        if (uploadId != null) {
+            upload.append("\"id\":\"").append(uploadId).append("\"");
+        }
+        if (offset >= 0) {
+            upload.append(upload.length() > 0 ? "," : "").append("\"offset\":").append(offset);
+        }
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        try {
+            response.setEntity(new StringEntity("{\"data\":{\"upload\":{" + upload + "}}}"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return response;
+    }
+
+    /**
+     * Builds the contents of a test file
+     *
+     * @param size The size in bytes
+     * @return The contents
+     */
+    private static byte[] buildFile(int size) {
+        byte[] file = new byte[size];
+        for (int i = 0; i < size; i++) {
+            file[i] = (byte) (i * 31 + i / 251);
+        }
+        return file;
+    }
+
+    /**
+     * A ResumableUpload that reads the test file and records its backoff instead of sleeping
+     */
+    private static class TestUpload extends ResumableUpload {
+
+        /**
+         * The delays that were waited for, in milliseconds
+         */
+        private final List<Long> mSleeps = new ArrayList<Long>();
+
+        /**
+         * Constructor
+         *
+         * @param sessions The stored upload sessions
+         * @param endpoint The stub upload endpoint
+         * @param saveId   The outbox row ID of the save
+         */
+        private TestUpload(SharedPreferences sessions, RequestHandler endpoint, long saveId) {
+            super(null, sessions, endpoint, "token", saveId);
+        }
+
+        @Override
+        InputStream openFile(Uri fileUri) {
+            return new ByteArrayInputStream(FILE);
+        }
+
+        @Override
+        String getType(Uri fileUri) {
+            return "image/jpeg";
+        }
+
+        @Override
+        void sleep(long millis) {
+            this.mSleeps.add(millis);
+        }
+
+    }
+
+    /**
+     * Stands in for the upload endpoint of the server.  Each request is answered with the next
+     * queued response for it, where a queued IOException is thrown instead.
+     */
+    private static class StubEndpoint extends RequestHandler {
+
+        /**
+         * Responses to starting a session
+         */
+        private final LinkedList<Object> mStart = new LinkedList<Object>();
+
+        /**
+         * Responses to asking for the offset of a session
+         */
+        private final LinkedList<Object> mStatus = new LinkedList<Object>();
+
+        /**
+         * Responses to chunks
+         */
+        private final LinkedList<Object> mChunk = new LinkedList<Object>();
+
+        /**
+         * The offset of every chunk that was sent
+         */
+        private final List<Long> mChunkOffsets = new ArrayList<Long>();
+
+        /**
+         * The upload ID of every chunk that was sent
+         */
+        private final List<String> mChunkUploadIds = new ArrayList<String>();
+
+        /**
+         * The bytes of every chunk that was sent
+         */
+        private final List<byte[]> mChunks = new ArrayList<byte[]>();
+
+        /**
+         * The file as the server stored it
+         */
+        private final Map<Long, byte[]> mStored = new HashMap<Long, byte[]>();
+
+        /**
+         * The number of sessions that were started
+         */
+        private int mStartCount;
+
+        /**
+         * The number of times the offset was asked for
+         */
+        private int mStatusCount;
+
+        /**
+         * Whether or not chunks without a queued response are acknowledged
+         */
+        private boolean mAcknowledge;
+
+        /**
+         * Whether or not every chunk fails
+         */
+        private boolean mFailChunks;
+
+        /**
+         * Constructor
+         */
+        private StubEndpoint() {
+            super(null);
+        }
+
+        @Override
+        public HttpResponse requestUploadStart(String authToken, long size, String contentType)
+                throws IOException {
+            this.mStartCount++;
+            return StubEndpoint.next(this.mStart);
+        }
+
+        @Override
+        public HttpResponse requestUploadStatus(String authToken, String uploadId)
+                throws IOException {
+            this.mStatusCount++;
+            return StubEndpoint.next(this.mStatus);
+        }
+
+        @Override
+        public HttpResponse requestUploadChunk(String authToken, String uploadId, byte[] chunk,
+                                               int length, long offset, long total)
+                throws IOException {
+            this.mChunkOffsets.add(offset);
+            this.mChunkUploadIds.add(uploadId);
+            this.mChunks.add(Arrays.copyOf(chunk, length));
+            if (this.mFailChunks) {
+                throw new IOException("Connection timed out");
+            }
+            if (!this.mChunk.isEmpty()) {
+                HttpResponse response = StubEndpoint.next(this.mChunk);
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                    this.mStored.put(offset, Arrays.copyOf(chunk, length));
+                }
+                return response;
+            }
+            if (!this.mAcknowledge) {
+                throw new IOException("No response queued");
+            }
+            this.mStored.put(offset, Arrays.copyOf(chunk, length));
+            return upload(HttpStatus.SC_OK, uploadId, offset + length);
+        }
+
+        /**
+         * Gets the file from the chunks the server stored, in order of their offsets
+         *
+         * @return The bytes
+         */
+        private byte[] getReceived() {
+            List<Long> offsets = new ArrayList<Long>(this.mStored.keySet());
+            Collections.sort(offsets);
+            byte[] received = new byte[0];
+            for (long offset : offsets) {
+                byte[] chunk = this.mStored.get(offset);
+                byte[] grown = Arrays.copyOf(received, (int) offset + chunk.length);
+                System.arraycopy(chunk, 0, grown, (int) offset, chunk.length);
+                received = grown;
+            }
+            return received;
+        }
+
+        /**
+         * Takes the next queued response
+         *
+         * @param queue The queue
+         * @return The response
+         * @throws IOException If the queued response is an IOException
+         */
+        private static HttpResponse next(LinkedList<Object> queue) throws IOException {
+            if (queue.isEmpty()) {
+                throw new IOException("No response queued");
+            }
+            Object next = queue.removeFirst();
+            if (next instanceof IOException) {
+                throw (IOException) next;
+            }
+            return (HttpResponse) next;
+        }
+
+    }
+
+    /**
+     * SharedPreferences held in memory
+     */
+    private static class MemorySessions implements SharedPreferences {
+
+        /**
+         * The stored values
+         */
+        private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<String, Object>(this.mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return this.mValues.containsKey(key) ? (String) this.mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return this.mValues.containsKey(key) ? (Set<String>) this.mValues.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return this.mValues.containsKey(key) ? (Integer) this.mValues.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return this.mValues.containsKey(key) ? (Long) this.mValues.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return this.mValues.containsKey(key) ? (Float) this.mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return this.mValues.containsKey(key) ? (Boolean) this.mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return this.mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        /**
+         * Applies its changes to the MemorySessions when they are committed
+         */
+        private class MemoryEditor implements Editor {
+
+            /**
+             * The values to put
+             */
+            private final Map<String, Object> mPut = new HashMap<String, Object>();
+
+            /**
+             * The keys to remove
+             */
+            private final List<String> mRemove = new ArrayList<String>();
+
+            /**
+             * Whether or not every value is removed first
+             */
+            private boolean mClear;
+
+            @Override
+            public Editor putString(String key, String value) {
+                this.mPut.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                this.mPut.put(key, values);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                this.mPut.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                this.mPut.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                this.mPut.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                this.mPut.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                this.mRemove.add(key);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                this.mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                if (this.mClear) {
+                    MemorySessions.this.mValues.clear();
+                }
+                for (String key : this.mRemove) {
+                    MemorySessions.this.mValues.remove(key);
+                }
+                MemorySessions.this.mValues.putAll(this.mPut);
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                this.commit();
+            }
+
+        }
+
+    }
+
+}
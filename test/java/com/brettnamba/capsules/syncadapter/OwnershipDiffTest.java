@@ -0,0 +1,174 @@
+package com.brettnamba.capsules.syncadapter;
+
+import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the classification of client and server Capsule Ownerships, including collections the
+ * size of a large account
+ *
+ * @author Brett Namba
+ */
+public class OwnershipDiffTest {
+
+    @Test
+    public void classifiesEachCapsule() {
+        List<CapsuleOwnership> client = Arrays.asList(
+                capsule(1, "a"), capsule(2, "b"), capsule(3, "c"), capsule(5, "e"));
+        List<CapsuleOwnership> server = Arrays.asList(
+                capsule(4, "d"), capsule(3, "x"), capsule(2, "b"), capsule(6, "f"));
+
+        OwnershipDiff diff = OwnershipDiff.compute(client, server);
+
+        assertEquals(Arrays.asList(1L, 5L), syncIds(diff.getClientOnly()));
+        assertEquals(Arrays.asList(4L, 6L), syncIds(diff.getServerOnly()));
+        assertEquals(Arrays.asList(2L), syncIds(diff.getSameEtag()));
+        assertEquals(Arrays.asList(3L), syncIds(diff.getOutOfSync()));
+        // The client versions are reported for Capsules on both sides
+        assertSame(client.get(1), diff.getSameEtag().get(0));
+        assertSame(client.get(2), diff.getOutOfSync().get(0));
+    }
+
+    @Test
+    public void nullCollectionsAreEmpty() {
+        List<CapsuleOwnership> capsules = Arrays.asList(capsule(1, "a"), capsule(2, "b"));
+
+        OwnershipDiff clientOnly = OwnershipDiff.compute(capsules, null);
+        assertEquals(Arrays.asList(1L, 2L), syncIds(clientOnly.getClientOnly()));
+        assertTrue(clientOnly.getServerOnly().isEmpty());
+
+        OwnershipDiff serverOnly = OwnershipDiff.compute(null, capsules);
+        assertEquals(Arrays.asList(1L, 2L), syncIds(serverOnly.getServerOnly()));
+        assertTrue(serverOnly.getClientOnly().isEmpty());
+
+        OwnershipDiff empty = OwnershipDiff.compute(null, null);
+        assertTrue(empty.getClientOnly().isEmpty());
+        assertTrue(empty.getServerOnly().isEmpty());
+        assertTrue(empty.getSameEtag().isEmpty());
+        assertTrue(empty.getOutOfSync().isEmpty());
+    }
+
+    @Test
+    public void unsyncedCapsulesAreOnlyOnTheClient() {
+        List<CapsuleOwnership> client = Arrays.asList(capsule(0, null), capsule(0, null), capsule(1, "a"));
+        List<CapsuleOwnership> server = Arrays.asList(capsule(1, "a"));
+
+        OwnershipDiff diff = OwnershipDiff.compute(client, server);
+
+        assertEquals(Arrays.asList(0L, 0L), syncIds(diff.getClientOnly()));
+        assertEquals(Arrays.asList(1L), syncIds(diff.getSameEtag()));
+        assertTrue(diff.getServerOnly().isEmpty());
+    }
+
+    @Test
+    public void missingEtagIsOutOfSync() {
+        OwnershipDiff diff = OwnershipDiff.compute(Arrays.asList(capsule(1, null)),
+                Arrays.asList(capsule(1, null)));
+
+        assertEquals(Arrays.asList(1L), syncIds(diff.getOutOfSync()));
+    }
+
+    @Test
+    public void duplicatesAreComparedToTheSameCapsule() {
+        List<CapsuleOwnership> client = Arrays.asList(capsule(1, "a"), capsule(1, "old"), capsule(2, "b"));
+        List<CapsuleOwnership> server = Arrays.asList(capsule(1, "a"), capsule(2, "b"), capsule(2, "b"));
+
+        OwnershipDiff diff = OwnershipDiff.compute(client, server);
+
+        // Both client copies are compared against the one server Capsule
+        assertEquals(Arrays.asList(1L, 2L), syncIds(diff.getSameEtag()));
+        assertEquals(Arrays.asList(1L), syncIds(diff.getOutOfSync()));
+        // The second server copy is not reported as being only on the server
+        assertTrue(diff.getServerOnly().isEmpty());
+        assertTrue(diff.getClientOnly().isEmpty());
+    }
+
+    @Test
+    public void largeCollectionOf10000() {
+        this.assertLargeCollection(10000);
+    }
+
+    @Test
+    public void largeCollectionOf100000() {
+        this.assertLargeCollection(100000);
+    }
+
+    /**
+     * Compares shuffled collections where a tenth of the Capsules are only on the client, a tenth
+     * are only on the server and a tenth have changed on the server
+     *
+     * @param size The number of Capsules on each side
+     */
+    private void assertLargeCollection(int size) {
+        List<CapsuleOwnership> client = new ArrayList<CapsuleOwnership>(size);
+        List<CapsuleOwnership> server = new ArrayList<CapsuleOwnership>(size);
+        for (int i = 1; i <= size; i++) {
+            switch (i % 10) {
+                case 0:
+                    client.add(capsule(i, "etag" + i));
+                    break;
+                case 1:
+                    server.add(capsule(i, "etag" + i));
+                    break;
+                case 2:
+                    client.add(capsule(i, "etag" + i));
+                    server.add(capsule(i, "changed" + i));
+                    break;
+                default:
+                    client.add(capsule(i, "etag" + i));
+                    server.add(capsule(i, "etag" + i));
+                    break;
+            }
+        }
+        Random random = new Random(size);
+        Collections.shuffle(client, random);
+        Collections.shuffle(server, random);
+
+        OwnershipDiff diff = OwnershipDiff.compute(client, server);
+
+        assertEquals(size / 10, diff.getClientOnly().size());
+        assertEquals(size / 10, diff.getServerOnly().size());
+        assertEquals(size / 10, diff.getOutOfSync().size());
+        assertEquals(size - 3 * (size / 10), diff.getSameEtag().size());
+    }
+
+    /**
+     * Creates a Capsule Ownership
+     *
+     * @param syncId The sync ID
+     * @param etag   The etag
+     * @return The Capsule
+     */
+    private static CapsuleOwnership capsule(long syncId, String etag) {
+        CapsuleOwnership capsule = new CapsuleOwnership();
+        capsule.setSyncId(syncId);
+        capsule.setEtag(etag);
+        return capsule;
+    }
+
+    /**
+     * Gets the sync IDs of Capsules in order
+     *
+     * @param capsules The Capsules
+     * @return The sync IDs
+     */
+    private static List<Long> syncIds(List<CapsuleOwnership> capsules) {
+        List<Long> syncIds = new ArrayList<Long>(capsules.size());
+        for (CapsuleOwnership capsule : capsules) {
+            syncIds.add(capsule.getSyncId());
+        }
+        return syncIds;
+    }
+
+}
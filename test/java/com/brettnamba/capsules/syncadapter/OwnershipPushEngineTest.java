@@ -0,0 +1,252 @@
+package com.brettnamba.capsules.syncadapter;
+
+import com.brettnamba.capsules.dataaccess.Capsule;
+import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+import com.brettnamba.capsules.http.RequestHandler;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests when the OwnershipPushEngine falls back from batch requests to one request per Capsule,
+ * and when it leaves a batch's Capsules dirty instead
+ *
+ * @author Brett Namba
+ */
+public class OwnershipPushEngineTest {
+
+    @Test
+    public void batchResultsAreMatchedToTheirCapsules() throws InterruptedException {
+        StubServer server = new StubServer();
+        server.mBatches.add(batch("{\"status\":200,\"capsule\":{\"id\":1,\"etag\":\"b1\"}},"
+                + "{\"status\":204},"
+                + "{\"status\":422}"));
+        List<CapsuleOwnership> capsules = Arrays.asList(
+                capsule(1, false), capsule(2, true), capsule(3, false), capsule(0, true));
+
+        List<OwnershipPushEngine.Result> results =
+                new OwnershipPushEngine(server, 2, 3).push(capsules, "token");
+
+        assertEquals(Collections.singletonList(3), server.mBatchSizes);
+        assertTrue(server.mSingles.isEmpty());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("b1", results.get(0).getCapsule().getEtag());
+        assertTrue(results.get(1).isSuccess() && results.get(1).isDeleted());
+        assertFalse(results.get(2).isSuccess());
+        // A Capsule that was never on the server is only deleted on the client
+        assertTrue(results.get(3).isSuccess() && results.get(3).isDeleted());
+    }
+
+    @Test
+    public void batchThatCouldNotConnectIsSentOneAtATime() throws InterruptedException {
+        for (IOException failure : new IOException[]{new ConnectException("Refused"),
+                new ConnectTimeoutException("Timed out"), new UnknownHostException("No DNS")}) {
+            StubServer server = new StubServer();
+            server.mBatches.add(failure);
+            server.mBatches.add(failure);
+            List<CapsuleOwnership> capsules = Arrays.asList(
+                    capsule(1, false), capsule(2, true), capsule(3, false));
+
+            List<OwnershipPushEngine.Result> results =
+                    new OwnershipPushEngine(server, 2, 2).push(capsules, "token");
+
+            // Batching is still tried for the next chunk
+            assertEquals(Arrays.asList(2, 1), server.mBatchSizes);
+            assertEquals(Arrays.asList("delete 2", "update 1", "update 3"),
+                    sorted(server.mSingles));
+            for (OwnershipPushEngine.Result result : results) {
+                assertTrue(result.isSuccess());
+            }
+            assertEquals("s1", results.get(0).getCapsule().getEtag());
+        }
+    }
+
+    @Test
+    public void serverWithoutBatchesStopsBeingSentThem() throws InterruptedException {
+        for (int status : new int[]{HttpStatus.SC_NOT_FOUND, HttpStatus.SC_METHOD_NOT_ALLOWED,
+                HttpStatus.SC_NOT_IMPLEMENTED}) {
+            StubServer server = new StubServer();
+            server.mBatches.add(response(status, null));
+            OwnershipPushEngine engine = new OwnershipPushEngine(server, 2, 2);
+
+            List<OwnershipPushEngine.Result> results = engine.push(Arrays.asList(
+                    capsule(1, false), capsule(2, false), capsule(3, false)), "token");
+            engine.push(Collections.singletonList(capsule(4, false)), "token");
+
+            // Only the first chunk was sent as a batch
+            assertEquals(Collections.singletonList(2), server.mBatchSizes);
+            assertEquals(Arrays.asList("update 1", "update 2", "update 3", "update 4"),
+                    sorted(server.mSingles));
+            for (OwnershipPushEngine.Result result : results) {
+                assertTrue(result.isSuccess());
+            }
+        }
+    }
+
+    @Test
+    public void batchThatTimedOutIsFailedAndNotSentAgain() throws InterruptedException {
+        StubServer server = new StubServer();
+        server.mBatches.add(new SocketTimeoutException("Read timed out"));
+        server.mBatches.add(batch("{\"status\":200,\"capsule\":{\"id\":3,\"etag\":\"b3\"}}"));
+
+        List<OwnershipPushEngine.Result> results = new OwnershipPushEngine(server, 2, 2).push(
+                Arrays.asList(capsule(1, false), capsule(2, true), capsule(3, false)), "token");
+
+        // The server may have applied the first batch, so it is left for the next sync
+        assertTrue(server.mSingles.isEmpty());
+        assertEquals(Arrays.asList(2, 1), server.mBatchSizes);
+        assertFalse(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertTrue(results.get(1).isDeleted());
+        assertTrue(results.get(2).isSuccess());
+    }
+
+    @Test
+    public void batchWithTheWrongNumberOfResultsIsFailed() throws InterruptedException {
+        StubServer server = new StubServer();
+        server.mBatches.add(batch("{\"status\":200,\"capsule\":{\"id\":1,\"etag\":\"b1\"}}"));
+
+        List<OwnershipPushEngine.Result> results = new OwnershipPushEngine(server, 2, 2).push(
+                Arrays.asList(capsule(1, false), capsule(2, false)), "token");
+
+        // The results cannot be matched to the Capsules, and the batch may have been applied
+        assertTrue(server.mSingles.isEmpty());
+        assertFalse(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals("e1", results.get(0).getCapsule().getEtag());
+    }
+
+    /**
+     * Creates a locally modified Capsule Ownership
+     *
+     * @param syncId  The sync ID, or 0 if it was never on the server
+     * @param deleted Whether or not it was deleted locally
+     * @return The Capsule
+     */
+    private static CapsuleOwnership capsule(long syncId, boolean deleted) {
+        CapsuleOwnership capsule = new CapsuleOwnership();
+        capsule.setSyncId(syncId);
+        capsule.setEtag("e" + syncId);
+        capsule.setDeleted(deleted ? 1 : 0);
+        return capsule;
+    }
+
+    /**
+     * Builds a successful batch response
+     *
+     * @param results The JSON results, separated by commas
+     * @return The response
+     */
+    private static HttpResponse batch(String results) {
+        return response(HttpStatus.SC_OK, "{\"data\":{\"results\":[" + results + "]}}");
+    }
+
+    /**
+     * Builds a response
+     *
+     * @param status The HTTP status code
+     * @param body   The body or null for none
+     * @return The response
+     */
+    private static HttpResponse response(int status, String body) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        if (body != null) {
+            try {
+                response.setEntity(new StringEntity(body));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Sorts the requests sent one at a time, which finish in no particular order
+     *
+     * @param requests The requests
+     * @return The sorted requests
+     */
+    private static List<String> sorted(List<String> requests) {
+        List<String> sorted = new ArrayList<String>(requests);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Answers each batch request with the next queued response, where a queued IOException is
+     * thrown instead, and accepts every request for a single Capsule
+     */
+    private static class StubServer extends RequestHandler {
+
+        /**
+         * The answers to batch requests
+         */
+        private final LinkedList<Object> mBatches = new LinkedList<Object>();
+
+        /**
+         * The number of Capsules in each batch request
+         */
+        private final List<Integer> mBatchSizes = new ArrayList<Integer>();
+
+        /**
+         * The requests for a single Capsule, which are sent from several threads
+         */
+        private final List<String> mSingles = Collections.synchronizedList(new ArrayList<String>());
+
+        /**
+         * Constructor
+         */
+        private StubServer() {
+            super(null);
+        }
+
+        @Override
+        public HttpResponse requestOwnershipBatch(String authToken, List<CapsuleOwnership> capsules)
+                throws IOException {
+            this.mBatchSizes.add(capsules.size());
+            if (this.mBatches.isEmpty()) {
+                throw new AssertionError("No batch response queued");
+            }
+            Object next = this.mBatches.removeFirst();
+            if (next instanceof IOException) {
+                throw (IOException) next;
+            }
+            return (HttpResponse) next;
+        }
+
+        @Override
+        public HttpResponse requestOwnershipUpdate(String authToken, Capsule capsule) {
+            this.mSingles.add("update " + capsule.getSyncId());
+            return response(HttpStatus.SC_OK, "{\"data\":{\"capsule\":{\"id\":"
+                    + capsule.getSyncId() + ",\"etag\":\"s" + capsule.getSyncId() + "\"}}}");
+        }
+
+        @Override
+        public HttpResponse requestOwnershipDelete(String authToken, long syncId) {
+            this.mSingles.add("delete " + syncId);
+            return response(HttpStatus.SC_NO_CONTENT, null);
+        }
+
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.brettnamba.capsules.syncadapter;
+
+import com.brettnamba.capsules.dataaccess.CapsuleOwnership;
+import com.brettnamba.capsules.http.RequestHandler;
+
+import org.apache.http.HttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the OwnershipReportPipeline always ends with a failure chunk and the end marker when
+ * its requests stop early
+ *
+ * @author Brett Namba
+ */
+public class OwnershipReportPipelineTest {
+
+    @Test(timeout = 5000)
+    public void failedRequestEndsThePipeline() throws InterruptedException {
+        OwnershipReportPipeline pipeline = start(new IOException("Connection reset"));
+
+        OwnershipReportPipeline.Chunk chunk = pipeline.take();
+
+        assertFalse(chunk.isSuccess());
+        assertTrue(chunk.getCapsules().isEmpty());
+        assertNull(pipeline.take());
+        assertNull(pipeline.take());
+    }
+
+    @Test(timeout = 5000)
+    public void unexpectedErrorEndsThePipeline() throws InterruptedException {
+        OwnershipReportPipeline pipeline = start(new IllegalStateException("Bad request"));
+
+        OwnershipReportPipeline.Chunk chunk = pipeline.take();
+
+        assertFalse(chunk.isSuccess());
+        assertNull(pipeline.take());
+    }
+
+    @Test(timeout = 5000)
+    public void emptyCollectionOnlyEnds() throws InterruptedException {
+        StubReport report = new StubReport(null);
+        OwnershipReportPipeline pipeline = new OwnershipReportPipeline(report, "token",
+                new ArrayList<CapsuleOwnership>(), 10, 1);
+        pipeline.start();
+
+        assertNull(pipeline.take());
+        assertEquals(0, report.mRequests);
+    }
+
+    /**
+     * Starts a pipeline of two chunks whose first request fails
+     *
+     * @param failure The failure of the request
+     * @return The started pipeline
+     */
+    private static OwnershipReportPipeline start(Exception failure) {
+        List<CapsuleOwnership> capsules = new ArrayList<CapsuleOwnership>();
+        for (int i = 1; i <= 4; i++) {
+            CapsuleOwnership capsule = new CapsuleOwnership();
+            capsule.setSyncId(i);
+            capsules.add(capsule);
+        }
+        OwnershipReportPipeline pipeline = new OwnershipReportPipeline(new StubReport(failure),
+                "token", capsules, 2, 1);
+        pipeline.start();
+        return pipeline;
+    }
+
+    /**
+     * Fails every REPORT request
+     */
+    private static class StubReport extends RequestHandler {
+
+        /**
+         * The failure of every request
+         */
+        private final Exception mFailure;
+
+        /**
+         * The number of requests that were sent
+         */
+        private int mRequests;
+
+        /**
+         * Constructor
+         *
+         * @param failure The failure of every request
+         */
+        private StubReport(Exception failure) {
+            super(null);
+            this.mFailure = failure;
+        }
+
+        @Override
+        public HttpResponse requestOwnershipReport(String authToken,
+                                                   List<CapsuleOwnership> capsules)
+                throws IOException {
+            this.mRequests++;
+            if (this.mFailure instanceof IOException) {
+                throw (IOException) this.mFailure;
+            }
+            throw (RuntimeException) this.mFailure;
+        }
+
+    }
+
+}